@@ -0,0 +1,458 @@
+package ch.epfl.imhof;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xml.sax.SAXException;
+
+import ch.epfl.imhof.dem.DigitalElevationModel;
+import ch.epfl.imhof.dem.Earth;
+import ch.epfl.imhof.dem.HGTDigitalElevationModel;
+import ch.epfl.imhof.dem.ReliefShader;
+import ch.epfl.imhof.geometry.Point;
+import ch.epfl.imhof.osm.OSMMap;
+import ch.epfl.imhof.osm.OSMMapReader;
+import ch.epfl.imhof.osm.OSMToGeoTransformer;
+import ch.epfl.imhof.painting.Color;
+import ch.epfl.imhof.painting.ImageBlender;
+import ch.epfl.imhof.painting.Java2DCanvas;
+import ch.epfl.imhof.painting.Painter;
+import ch.epfl.imhof.painting.SwissPainter;
+import ch.epfl.imhof.projection.CH1903Projection;
+import ch.epfl.imhof.projection.Projection;
+
+//@formatter:off
+/**
+ * The JMH benchmarks of every stage of the rendering of a map, so that the
+ * effect of an optimization can be measured, and a regression caught:
+ * - read and readGzip: OSMMapReader.readOSMFile, on a plain and on a
+ *   gzipped file;
+ * - transform: OSMToGeoTransformer.transform;
+ * - draw: SwissPainter.painter().drawMap on a Java2DCanvas;
+ * - relief: ReliefShader.shadedRelief;
+ * - project, inverse, projectAll and inverseAll: CH1903Projection, point
+ *   by point and in arrays, the time being given per point;
+ * - blend: ImageBlender.multiply, which replaced Main.mix;
+ * - png: PNGStreamWriter, on the blended image.
+ * <p>
+ * The stages of the map are measured for every size of zone (the Zone
+ * parameter size, in kilometres), and the ones of the image for every
+ * resolution too (the Image parameter dpi). The zones are squares around
+ * Lausanne, filled with synthetic OSM data of a constant density:
+ * buildings, roads, rivers, forests and lakes with islands. The relief
+ * comes from a synthetic DEM of waves, or from the HGT file covering
+ * Lausanne given as the Image parameter hgt.
+ * <p>
+ * The module is built by bench/pom.xml, for instance:
+ *   java -jar target/bench/benchmarks.jar PipelineBenchmark.relief
+ *        -p size=5 -p dpi=300 -p hgt=N46E006.hgt
+ *
+ * @author Maxime Kjaer (250694)
+ * @author Timote Vaucher (246532)
+ */
+//@formatter:on
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PipelineBenchmark {
+    private static final double CENTER_LONGITUDE = Math.toRadians(6.63);
+    private static final double CENTER_LATITUDE = Math.toRadians(46.52);
+    private static final int WAYS_PER_SQUARE_KILOMETRE = 600;
+    private static final int PROJECTED_POINTS = 1 << 20;
+    private static final double INCHES_PER_METRE = 39.3700787;
+    private static final double BLUR_RADIUS = 1.7; // in millimetres
+    private static final Vector3 LIGHT = new Vector3(-1, 1, 1);
+    private static final int PARALLELISM = Runtime.getRuntime()
+            .availableProcessors();
+    private static final Projection PROJECTION = new CH1903Projection();
+
+    /**
+     * Random points around Lausanne, and their projections.
+     */
+    @State(Scope.Benchmark)
+    public static class Points {
+        PointGeo[] points = new PointGeo[PROJECTED_POINTS];
+        Point[] projected = new Point[PROJECTED_POINTS];
+        double[] lonLat = new double[2 * PROJECTED_POINTS];
+        double[] xy = new double[2 * PROJECTED_POINTS];
+        double[] inverse = new double[2 * PROJECTED_POINTS];
+
+        @Setup
+        public void setUp() {
+            Random random = new Random(1);
+            for (int i = 0; i < PROJECTED_POINTS; ++i) {
+                points[i] = new PointGeo(CENTER_LONGITUDE + 0.01
+                        * random.nextGaussian(), CENTER_LATITUDE + 0.01
+                        * random.nextGaussian());
+                projected[i] = PROJECTION.project(points[i]);
+                lonLat[2 * i] = points[i].longitude();
+                lonLat[2 * i + 1] = points[i].latitude();
+            }
+            PROJECTION.projectAll(lonLat, xy);
+        }
+    }
+
+    /**
+     * A square zone around Lausanne, its synthetic OSM files, and its map.
+     */
+    @State(Scope.Benchmark)
+    public static class Zone {
+        @Param({ "2", "5", "10" })
+        double size;
+
+        Point bl, tr;
+        File plain, gzipped;
+        OSMMap osmMap;
+        Map map;
+
+        @Setup
+        public void setUp() throws IOException, SAXException {
+            // The zone, which is a little smaller than the data around it
+            double halfSide = size * 500;
+            Point center = PROJECTION.project(new PointGeo(CENTER_LONGITUDE,
+                    CENTER_LATITUDE));
+            bl = new Point(center.x() - halfSide, center.y() - halfSide);
+            tr = new Point(center.x() + halfSide, center.y() + halfSide);
+
+            plain = File.createTempFile("benchmark", ".osm");
+            gzipped = File.createTempFile("benchmark", ".osm.gz");
+            int ways = (int) (WAYS_PER_SQUARE_KILOMETRE * size * size);
+            writeOSM(new FileOutputStream(plain), bl, tr, ways);
+            writeOSM(new GZIPOutputStream(new FileOutputStream(gzipped)), bl,
+                    tr, ways);
+            osmMap = OSMMapReader.readOSMFile(plain.getPath(), false);
+            map = new OSMToGeoTransformer(PROJECTION).transform(osmMap);
+        }
+
+        @TearDown
+        public void tearDown() {
+            plain.delete();
+            gzipped.delete();
+        }
+    }
+
+    /**
+     * The image of a zone at a resolution, with its map and its relief.
+     */
+    @State(Scope.Benchmark)
+    public static class Image {
+        @Param({ "150", "300" })
+        int dpi;
+
+        // The HGT file of the relief, or the synthetic DEM if empty
+        @Param({ "" })
+        String hgt;
+
+        Point bl, tr;
+        int width, height;
+        double blur;
+        Map map;
+        Painter painter = SwissPainter.painter();
+        DigitalElevationModel model;
+        ReliefShader shader;
+        BufferedImage image, relief;
+
+        @Setup
+        public void setUp(Zone zone) throws IOException {
+            bl = zone.bl;
+            tr = zone.tr;
+            map = zone.map;
+            double resolution = dpi * INCHES_PER_METRE;
+            height = (int) Math.round(resolution / 25000 * (tr.y() - bl.y()));
+            width = (int) Math.round(resolution / 25000 * (tr.x() - bl.x()));
+            blur = resolution * BLUR_RADIUS / 1000;
+
+            model = hgt.isEmpty() ? new WavyModel()
+                    : new HGTDigitalElevationModel(new File(hgt));
+            shader = new ReliefShader(PROJECTION, model, LIGHT, PARALLELISM);
+            Java2DCanvas canvas = new Java2DCanvas(bl, tr, width, height, dpi,
+                    Color.WHITE);
+            painter.drawMap(map, canvas);
+            image = canvas.image();
+            relief = shader.shadedRelief(bl, tr, width, height, blur);
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            model.close();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PROJECTED_POINTS)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void project(Points points, Blackhole blackhole) {
+        for (PointGeo p : points.points)
+            blackhole.consume(PROJECTION.project(p));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PROJECTED_POINTS)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void inverse(Points points, Blackhole blackhole) {
+        for (Point p : points.projected)
+            blackhole.consume(PROJECTION.inverse(p));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PROJECTED_POINTS)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public double[] projectAll(Points points) {
+        PROJECTION.projectAll(points.lonLat, points.xy);
+        return points.xy;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PROJECTED_POINTS)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public double[] inverseAll(Points points) {
+        // The points are written apart, so that they stay the same
+        PROJECTION.inverseAll(points.xy, points.inverse);
+        return points.inverse;
+    }
+
+    @Benchmark
+    public OSMMap read(Zone zone) throws IOException, SAXException {
+        return OSMMapReader.readOSMFile(zone.plain.getPath(), false);
+    }
+
+    @Benchmark
+    public OSMMap readGzip(Zone zone) throws IOException, SAXException {
+        return OSMMapReader.readOSMFile(zone.gzipped.getPath(), true);
+    }
+
+    @Benchmark
+    public Map transform(Zone zone) {
+        return new OSMToGeoTransformer(PROJECTION).transform(zone.osmMap);
+    }
+
+    @Benchmark
+    public BufferedImage draw(Image image) {
+        Java2DCanvas canvas = new Java2DCanvas(image.bl, image.tr,
+                image.width, image.height, image.dpi, Color.WHITE);
+        image.painter.drawMap(image.map, canvas);
+        return canvas.image();
+    }
+
+    @Benchmark
+    public BufferedImage relief(Image image) {
+        return image.shader.shadedRelief(image.bl, image.tr, image.width,
+                image.height, image.blur);
+    }
+
+    @Benchmark
+    public BufferedImage blend(Image image) {
+        // The cost of a multiplication doesn't depend on the values of the
+        // pixels, so the image is blended again and again in place
+        ImageBlender.multiply(image.image, image.relief, 1);
+        return image.image;
+    }
+
+    @Benchmark
+    public long png(Image image) throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        try (PNGStreamWriter png = new PNGStreamWriter(out, image.width,
+                image.height, 4, PNGStreamWriter.Filter.ADAPTIVE, 1)) {
+            png.writeRows(image.image);
+        }
+        return out.count;
+    }
+
+    /**
+     * Writes an OSM file of synthetic data around a zone: buildings, forests
+     * and lakes with islands as closed ways and multipolygons, roads and
+     * rivers as open ways, on random layers.
+     */
+    private static void writeOSM(OutputStream stream, Point bl, Point tr,
+            int ways) throws IOException {
+        String[] highways = { "motorway", "trunk", "primary", "secondary",
+                "tertiary", "residential", "service", "footway", "path",
+                "track" };
+        String[] areas = { "building=yes", "landuse=forest",
+                "landuse=residential", "leisure=park", "landuse=meadow" };
+        Random random = new Random(ways);
+        double width = tr.x() - bl.x(), height = tr.y() - bl.y();
+        try (Writer writer = new OutputStreamWriter(stream,
+                StandardCharsets.UTF_8);
+                PrintWriter out = new PrintWriter(writer)) {
+            out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            out.println("<osm version=\"0.6\">");
+            long nodeId = 1, wayId = 1;
+            StringBuilder wayElements = new StringBuilder();
+            StringBuilder relationElements = new StringBuilder();
+            for (int w = 0; w < ways; ++w) {
+                boolean closed = random.nextInt(10) >= 6;
+                double x = bl.x() + (random.nextDouble() * 1.2 - 0.1) * width;
+                double y = bl.y() + (random.nextDouble() * 1.2 - 0.1)
+                        * height;
+                int count = closed ? 4 + random.nextInt(12)
+                        : 2 + random.nextInt(40);
+                double radius = 5 + random.nextDouble() * 40;
+                double angle = random.nextDouble() * 2 * Math.PI;
+                long first = nodeId;
+                for (int i = 0; i < count; ++i) {
+                    double nx, ny;
+                    if (closed) {
+                        double a = 2 * Math.PI * i / count;
+                        nx = x + radius * Math.cos(a);
+                        ny = y + radius * Math.sin(a);
+                    } else {
+                        angle += 0.3 * random.nextGaussian();
+                        x += 8 * Math.cos(angle);
+                        y += 8 * Math.sin(angle);
+                        nx = x;
+                        ny = y;
+                    }
+                    node(out, nodeId++, nx, ny);
+                }
+                wayElements.append(" <way id=\"").append(wayId++)
+                        .append("\">\n");
+                for (long id = first; id < nodeId; ++id)
+                    nd(wayElements, id);
+                if (closed) {
+                    nd(wayElements, first);
+                    String[] tag = areas[random.nextInt(areas.length)]
+                            .split("=");
+                    tag(wayElements, tag[0], tag[1]);
+                } else if (random.nextInt(5) == 0) {
+                    tag(wayElements, "waterway", "river");
+                } else {
+                    tag(wayElements, "highway",
+                            highways[random.nextInt(highways.length)]);
+                    if (random.nextInt(8) == 0) {
+                        tag(wayElements, "bridge", "yes");
+                        tag(wayElements, "layer", "1");
+                    }
+                }
+                wayElements.append(" </way>\n");
+
+                // A lake with islands, every hundred ways
+                if (w % 100 == 99) {
+                    long relationWays = wayId;
+                    int islands = 5 + random.nextInt(20);
+                    for (int r = 0; r <= islands; ++r) {
+                        double ringRadius = r == 0 ? 400 : 20;
+                        double rx = r == 0 ? x : x + (random.nextDouble() - 0.5)
+                                * 500;
+                        double ry = r == 0 ? y : y + (random.nextDouble() - 0.5)
+                                * 500;
+                        long ringFirst = nodeId;
+                        for (int i = 0; i < 24; ++i) {
+                            double a = 2 * Math.PI * i / 24;
+                            node(out, nodeId++, rx + ringRadius * Math.cos(a),
+                                    ry + ringRadius * Math.sin(a));
+                        }
+                        wayElements.append(" <way id=\"").append(wayId++)
+                                .append("\">\n");
+                        for (long id = ringFirst; id < nodeId; ++id)
+                            nd(wayElements, id);
+                        nd(wayElements, ringFirst);
+                        wayElements.append(" </way>\n");
+                    }
+                    relationElements.append(" <relation id=\"").append(w)
+                            .append("\">\n");
+                    for (long id = relationWays; id < wayId; ++id)
+                        relationElements.append(
+                                "  <member type=\"way\" ref=\"").append(id)
+                                .append("\" role=\"")
+                                .append(id == relationWays ? "outer" : "inner")
+                                .append("\"/>\n");
+                    tag(relationElements, "type", "multipolygon");
+                    tag(relationElements, "natural", "water");
+                    relationElements.append(" </relation>\n");
+                }
+            }
+            out.print(wayElements);
+            out.print(relationElements);
+            out.println("</osm>");
+        }
+    }
+
+    private static void node(PrintWriter out, long id, double x, double y) {
+        PointGeo p = PROJECTION.inverse(new Point(x, y));
+        out.println(String.format(Locale.ROOT,
+                " <node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\"/>", id,
+                Math.toDegrees(p.latitude()), Math.toDegrees(p.longitude())));
+    }
+
+    private static void nd(StringBuilder out, long id) {
+        out.append("  <nd ref=\"").append(id).append("\"/>\n");
+    }
+
+    private static void tag(StringBuilder out, String key, String value) {
+        out.append("  <tag k=\"").append(key).append("\" v=\"").append(value)
+                .append("\"/>\n");
+    }
+
+    /**
+     * A stream that only counts the bytes written to it.
+     */
+    private static final class CountingOutputStream extends OutputStream {
+        private long count = 0;
+
+        @Override
+        public void write(int b) {
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length) {
+            count += length;
+        }
+    }
+
+    /**
+     * A DEM of waves of a few hundred metres, which covers the whole world.
+     */
+    private static final class WavyModel implements DigitalElevationModel {
+        private static final double WAVES = Earth.RADIUS / 300;
+
+        @Override
+        public Vector3 normalAt(PointGeo p) {
+            return new Vector3(0.4 * Math.sin(p.longitude() * WAVES),
+                    0.4 * Math.cos(p.latitude() * WAVES * 1.3), 1);
+        }
+
+        @Override
+        public double elevationAt(PointGeo p) {
+            return 100 * Math.cos(p.longitude() * WAVES)
+                    - 70 * Math.sin(p.latitude() * WAVES * 1.3);
+        }
+
+        @Override
+        public boolean contains(PointGeo p) {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
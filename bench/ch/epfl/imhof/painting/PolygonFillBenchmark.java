@@ -0,0 +1,166 @@
+package ch.epfl.imhof.painting;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.epfl.imhof.geometry.ClosedPolyLine;
+import ch.epfl.imhof.geometry.Point;
+import ch.epfl.imhof.geometry.PolyLine;
+import ch.epfl.imhof.geometry.Polygon;
+
+//@formatter:off
+/**
+ * The JMH benchmarks comparing the filling of polygons with holes by
+ * Java2DCanvas, which fills a single even-odd path, with the subtraction of
+ * the holes from the shell through java.awt.geom.Area, which the canvas used
+ * to do:
+ * - evenOddPath: Java2DCanvas.drawPolygon;
+ * - areaSubtraction: the shell minus every hole, filled as an Area.
+ * <p>
+ * The polygons are in the style of testBuildingMultipleHoles.osm, scaled up
+ * to many holes: a shell pierced by a grid of holeCount small irregular
+ * holes. Before measuring, the pixels that differ between the two fills are
+ * printed. The subtraction of areas grows much faster than linearly with the
+ * number of holes: keep the counts small.
+ * <p>
+ * The module is built by bench/pom.xml, for instance:
+ *   java -jar target/bench/benchmarks.jar PolygonFillBenchmark
+ *        -p holeCount=10,100
+ *
+ * @author Maxime Kjaer (250694)
+ * @author Timote Vaucher (246532)
+ */
+//@formatter:on
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PolygonFillBenchmark {
+    private static final int SIZE = 1024; // in pixels
+    private static final int DPI = 72;
+    private static final Point BL = new Point(0, 0), TR = new Point(1, 1);
+
+    @Param({ "10", "100", "300", "1000" })
+    int holeCount;
+
+    Polygon polygon;
+    Java2DCanvas canvas;
+    Graphics2D areaContext;
+    AffineTransform toImage;
+
+    @Setup
+    public void setUp() {
+        polygon = scaledUp(holeCount);
+        canvas = new Java2DCanvas(BL, TR, SIZE, SIZE, DPI, Color.WHITE);
+        BufferedImage areaImage = new BufferedImage(SIZE, SIZE,
+                BufferedImage.TYPE_INT_RGB);
+        areaContext = areaImage.createGraphics();
+        areaContext.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_ON);
+        areaContext.setColor(java.awt.Color.WHITE);
+        areaContext.fillRect(0, 0, SIZE, SIZE);
+        areaContext.setColor(java.awt.Color.BLACK);
+        toImage = new AffineTransform(SIZE, 0, 0, -SIZE, 0, SIZE);
+
+        // The images are compared after a single fill, as the anti-aliased
+        // edges darken at every fill. The anti-aliasing itself can differ
+        // slightly.
+        canvas.drawPolygon(polygon, Color.BLACK);
+        areaSubtraction();
+        int differing = 0, maxDifference = 0;
+        for (int y = 0; y < SIZE; ++y) {
+            for (int x = 0; x < SIZE; ++x) {
+                int path = canvas.image().getRGB(x, y) & 0xFF;
+                int difference = Math.abs(path
+                        - (areaImage.getRGB(x, y) & 0xFF));
+                if (difference != 0)
+                    ++differing;
+                maxDifference = Math.max(maxDifference, difference);
+            }
+        }
+        System.out.println(String.format(Locale.ROOT,
+                "%d holes: %d pixels differ, by at most %d", holeCount,
+                differing, maxDifference));
+    }
+
+    @Benchmark
+    public BufferedImage evenOddPath() {
+        canvas.drawPolygon(polygon, Color.BLACK);
+        return canvas.image();
+    }
+
+    @Benchmark
+    public Area areaSubtraction() {
+        Area area = new Area(path(polygon.shell(), toImage));
+        for (PolyLine hole : polygon.holes())
+            area.subtract(new Area(path(hole, toImage)));
+        areaContext.fill(area);
+        return area;
+    }
+
+    /**
+     * Returns a unit square shell pierced by a grid of irregular holes.
+     */
+    private static Polygon scaledUp(int holeCount) {
+        Random random = new Random(holeCount);
+        int side = (int) Math.ceil(Math.sqrt(holeCount));
+        double cell = 1d / (side + 1);
+        List<ClosedPolyLine> holes = new ArrayList<>();
+        for (int h = 0; h < holeCount; ++h) {
+            double cx = cell * (1 + h % side), cy = cell * (1 + h / side);
+            int vertices = 4 + random.nextInt(9);
+            List<Point> points = new ArrayList<>();
+            for (int v = 0; v < vertices; ++v) {
+                double angle = 2 * Math.PI * v / vertices;
+                double radius = cell * (0.2 + 0.2 * random.nextDouble());
+                points.add(new Point(cx + radius * Math.cos(angle), cy
+                        + radius * Math.sin(angle)));
+            }
+            holes.add(new ClosedPolyLine(points));
+        }
+        List<Point> shell = new ArrayList<>();
+        shell.add(BL);
+        shell.add(new Point(TR.x(), BL.y()));
+        shell.add(TR);
+        shell.add(new Point(BL.x(), TR.y()));
+        return new Polygon(new ClosedPolyLine(shell), holes);
+    }
+
+    private static Path2D path(PolyLine polyLine, AffineTransform transform) {
+        Path2D.Double path = new Path2D.Double();
+        boolean first = true;
+        for (Point p : polyLine.points()) {
+            if (first)
+                path.moveTo(p.x(), p.y());
+            else
+                path.lineTo(p.x(), p.y());
+            first = false;
+        }
+        path.closePath();
+        path.transform(transform);
+        return path;
+    }
+}
@@ -90,15 +90,26 @@ public final class Attributes {
      *         corresponding map or when the parsing fails
      */
     public int get(String key, int defaultValue) {
+        String value = get(key);
+        // Most entities lack the key, which mustn't cost an exception
+        if (value == null)
+            return defaultValue;
         try {
-            return Integer.parseInt(get(key)); // Throw a NFE if "get" returns
-                                               // null
-        } catch (NumberFormatException e) { // Thus if key doesn't exist we get
-                                            // default result
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
             return defaultValue;
         }
     }
 
+    /**
+     * Returns the keys of the attributes.
+     * 
+     * @return an unmodifiable set of the keys of the attributes
+     */
+    public Set<String> keySet() {
+        return attributes.keySet();
+    }
+
     /**
      * Constructs a new instance trough the associated builder with a specified
      * list of keys to keep. Other keys and associated value are not copied.
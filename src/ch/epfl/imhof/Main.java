@@ -1,24 +1,27 @@
 package ch.epfl.imhof;
 
-import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.regex.Pattern;
 
-import javax.imageio.ImageIO;
-
+import ch.epfl.imhof.dem.DigitalElevationModel;
 import ch.epfl.imhof.dem.Earth;
 import ch.epfl.imhof.dem.HGTDigitalElevationModel;
+import ch.epfl.imhof.dem.MosaicDigitalElevationModel;
 import ch.epfl.imhof.dem.ReliefShader;
 import ch.epfl.imhof.geometry.Point;
 import ch.epfl.imhof.osm.OSMMap;
-import ch.epfl.imhof.osm.OSMMapReader;
+import ch.epfl.imhof.osm.OSMMapCache;
 import ch.epfl.imhof.osm.OSMToGeoTransformer;
-import ch.epfl.imhof.painting.Color;
-import ch.epfl.imhof.painting.Java2DCanvas;
 import ch.epfl.imhof.painting.Painter;
 import ch.epfl.imhof.painting.SwissPainter;
 import ch.epfl.imhof.projection.CH1903Projection;
 import ch.epfl.imhof.projection.Projection;
+import ch.epfl.imhof.projection.WebMercatorProjection;
 
 /**
  * The Main class is what ties everything else together. It's the main
@@ -33,29 +36,46 @@ public class Main {
     private final static double BLUR_RADIUS = 1.7; // in millimetres.
     private final static Pattern gzPattern = Pattern.compile(".+\\.gz$");
     private final static Vector3 LIGHT_VECTOR = new Vector3(-1, 1, 1);
+    // Margin around the map in which the OSM entities are still read, so
+    // that the lines along its borders are drawn whole (in metres).
+    private final static double READ_MARGIN = 100;
+
+    // Option of the first argument that renders a pyramid of tiles
+    private final static String TILES_OPTION = "-tiles";
+    // Option of the last argument of the tiles that precomputes the shades
+    private final static String PRECOMPUTE_OPTION = "-precompute";
 
     // @formatter:off
     /**
      * The method to execute to create a map.
+     * <p>
+     * If the first argument is -tiles, it renders a pyramid of tiles instead,
+     * @see #tiles(String[])
      * 
      * @param args
-     *            It takes a list of 8 strings: 
-     *            - The name of the .osm or .osm.gz file 
-     *            - The name of the .hgt file
+     *            It takes a list of 8 or 9 strings: 
+     *            - The name of the .osm, .osm.gz or .osm.pbf file 
+     *            - The name of the .hgt file, or of a directory of .hgt files
      *            - The longitude of the bottom left point
      *            - The latitude of the bottom left point
      *            - The longitude of the top right point
      *            - The latitude of the top right point
      *            - The resolution (in dpi) of the map
-     *            - The name of the outputted file.
+     *            - The name of the outputted file
+     *            - Optionally, the name of the file receiving the metrics of
+     *              the stages of the render, as JSON lines.
      * @throws IllegalArgumentException
-     *             if there are more or less than 8 arguments.
+     *             if there are more or less than 8 or 9 arguments.
      */
     // @formatter:on
     public static void main(String[] args) {
-        if (args.length != 8)
+        if (args.length > 0 && args[0].equals(TILES_OPTION)) {
+            tiles(args);
+            return;
+        }
+        if (args.length != 8 && args.length != 9)
             throw new IllegalArgumentException(
-                    "Le nombre d'arguments fourni est incorrect.\n  Nombre d'arguments attendus: 8\n  Nombre d'arguments donnés: "
+                    "Le nombre d'arguments fourni est incorrect.\n  Nombre d'arguments attendus: 8 ou 9\n  Nombre d'arguments donnés: "
                             + args.length);
 
         String mapName = args[0];
@@ -68,6 +88,7 @@ public class Main {
         double trLatitude = Math.toRadians(Double.parseDouble(args[5]));
         int dpi = Integer.parseInt(args[6]);
         String outputName = args[7];
+        String metricsName = args.length == 9 ? args[8] : null;
 
         // Now, convert the input to metrics that we can use:
         Projection projector = new CH1903Projection();
@@ -83,44 +104,193 @@ public class Main {
 
         Painter painter = SwissPainter.painter();
         OSMToGeoTransformer transformer = new OSMToGeoTransformer(projector);
+        RenderMetrics metrics = new RenderMetrics();
         OSMMap osmMap = null;
 
-        try {
-            osmMap = OSMMapReader.readOSMFile(mapName,
-                    gzPattern.matcher(mapName).matches());
-
+        try (RenderMetrics.Stage stage = metrics.start("read")) {
+            osmMap = OSMMapCache.readOSMFile(mapName, gzPattern.matcher(
+                    mapName).matches(), readZoneCorner(projector, bl, tr,
+                    true), readZoneCorner(projector, bl, tr, false),
+                    e -> System.err.println(e.getMessage()));
+            stage.count("ways", osmMap.ways().size()).count("relations",
+                    osmMap.relations().size());
         } catch (Exception e) {
             System.out.println("An error occured while reading the file.");
             e.printStackTrace();
+            return;
         }
 
-        Map map = transformer.transform(osmMap);
-        Java2DCanvas canvas = new Java2DCanvas(bl, tr, width, height, dpi,
-                Color.WHITE);
-        try (HGTDigitalElevationModel model = new HGTDigitalElevationModel(
-                new File(hgtName))) {
-            ReliefShader rel = new ReliefShader(projector, model, LIGHT_VECTOR);
-            BufferedImage relief = rel
-                    .shadedRelief(bl, tr, width, height, blur);
-            painter.drawMap(map, canvas);
-            ImageIO.write(mix(canvas.image(), relief), "png", new File(
-                    outputName));
+        Map map;
+        try (RenderMetrics.Stage stage = metrics.start("transform")) {
+            map = transformer.transform(osmMap);
+            stage.count("polylines", map.polyLines().size()).count(
+                    "polygons", map.polygons().size());
+        }
+        File hgtFile = new File(hgtName);
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        // The image is rendered and written strip by strip, so that big maps
+        // don't need to fit in memory
+        try (DigitalElevationModel model = hgtFile.isDirectory()
+                ? new MosaicDigitalElevationModel(hgtFile)
+                : new HGTDigitalElevationModel(hgtFile)) {
+            ReliefShader rel = new ReliefShader(projector, model,
+                    LIGHT_VECTOR, parallelism);
+            new StripRenderer(map, painter, rel, dpi, blur,
+                    StripRenderer.STRIP_HEIGHT, parallelism).render(bl, tr,
+                    width, height, new BufferedOutputStream(
+                            new FileOutputStream(outputName)), metrics);
         } catch (Exception e) {
             System.out.println("An error occured while writing the file.");
             e.printStackTrace();
         }
+
+        if (metricsName != null) {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(
+                    metricsName), StandardCharsets.UTF_8)) {
+                metrics.writeJSONLines(writer);
+            } catch (Exception e) {
+                System.out
+                        .println("An error occured while writing the metrics.");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // @formatter:off
+    /**
+     * Renders the web map tiles of a zone in a directory, which holds the
+     * tile (x, y) of the zoom z in z/x/y.png. The tiles that are more recent
+     * than the OSM and HGT files are kept.
+     * 
+     * @param args
+     *            It takes a list of 11 or 12 strings: 
+     *            - The -tiles option
+     *            - The name of the .osm, .osm.gz or .osm.pbf file 
+     *            - The name of the .hgt file, or of a directory of .hgt files
+     *            - The longitude of the bottom left point
+     *            - The latitude of the bottom left point
+     *            - The longitude of the top right point
+     *            - The latitude of the top right point
+     *            - The lowest zoom
+     *            - The highest zoom
+     *            - The resolution (in dpi) of the tiles
+     *            - The name of the directory of the tiles.
+     *            - Optionally, the -precompute option, which precomputes
+     *              the shades of the DEM once for all the zooms, at the cost
+     *              of 4 bytes per cell of every HGT file in memory.
+     * @throws IllegalArgumentException
+     *             if there are more or less than 11 or 12 arguments, or if
+     *             the 12th one isn't the -precompute option.
+     */
+    // @formatter:on
+    private static void tiles(String[] args) {
+        if (args.length != 11 && args.length != 12)
+            throw new IllegalArgumentException(
+                    "Le nombre d'arguments fourni est incorrect.\n  Nombre d'arguments attendus: 11 ou 12\n  Nombre d'arguments donnés: "
+                            + args.length);
+        if (args.length == 12 && !args[11].equals(PRECOMPUTE_OPTION))
+            throw new IllegalArgumentException("Option inconnue: " + args[11]);
+
+        String mapName = args[1];
+        String hgtName = args[2];
+        PointGeo blGeo = new PointGeo(Math.toRadians(Double
+                .parseDouble(args[3])), Math.toRadians(Double
+                .parseDouble(args[4])));
+        PointGeo trGeo = new PointGeo(Math.toRadians(Double
+                .parseDouble(args[5])), Math.toRadians(Double
+                .parseDouble(args[6])));
+        int minZoom = Integer.parseInt(args[7]);
+        int maxZoom = Integer.parseInt(args[8]);
+        int dpi = Integer.parseInt(args[9]);
+        File directory = new File(args[10]);
+        boolean precompute = args.length == 12;
+
+        // The map is read and transformed once for all the tiles
+        Projection projector = new WebMercatorProjection();
+        Point bl = projector.project(blGeo);
+        Point tr = projector.project(trGeo);
+        double blur = (dpi * INCHES_PER_METRE * BLUR_RADIUS) / (1000d);
+        Map map = null;
+        try {
+            OSMMap osmMap = OSMMapCache.readOSMFile(mapName, gzPattern
+                    .matcher(mapName).matches(), readZoneCorner(projector, bl,
+                    tr, true), readZoneCorner(projector, bl, tr, false),
+                    e -> System.err.println(e.getMessage()));
+            map = new OSMToGeoTransformer(projector).transform(osmMap);
+        } catch (Exception e) {
+            System.out.println("An error occured while reading the file.");
+            e.printStackTrace();
+            return;
+        }
+
+        File hgtFile = new File(hgtName);
+        long sourcesLastModified = Math.max(new File(mapName).lastModified(),
+                lastModified(hgtFile));
+        try (DigitalElevationModel model = hgtFile.isDirectory()
+                ? new MosaicDigitalElevationModel(hgtFile)
+                : new HGTDigitalElevationModel(hgtFile)) {
+            TileRenderer renderer = new TileRenderer(map,
+                    SwissPainter.painter(), model, LIGHT_VECTOR, dpi, blur,
+                    precompute);
+            int rendered = renderer.renderPyramid(blGeo, trGeo, minZoom,
+                    maxZoom, directory, sourcesLastModified, Runtime
+                            .getRuntime().availableProcessors());
+            System.out.println(rendered + " tiles rendered.");
+        } catch (Exception e) {
+            System.out.println("An error occured while writing the tiles.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the last modification time of a file, or of the most recent
+     * file of a directory.
+     */
+    private static long lastModified(File file) {
+        long lastModified = file.lastModified();
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                lastModified = Math.max(lastModified, lastModified(child));
+        return lastModified;
     }
 
-    private static BufferedImage mix(BufferedImage i1, BufferedImage i2) {
-        BufferedImage out = new BufferedImage(i1.getWidth(), i1.getHeight(),
-                i1.getType());
-        for (int i = 0; i < i1.getWidth(); ++i) {
-            for (int j = 0; j < i1.getHeight(); ++j) {
-                Color mixed = Color.rgb(i1.getRGB(i, j)).multiplyWith(
-                        Color.rgb(i2.getRGB(i, j)));
-                out.setRGB(i, j, mixed.packedRBG());
+    /**
+     * Returns a corner of the zone of the OSM file that must be read to draw
+     * the projected map between bl and tr. The zone is the smallest one that
+     * contains the map and its margin, once inverse projected.
+     * 
+     * @param projector
+     *            the projection of the map
+     * @param bl
+     *            the bottom left corner of the map, projected
+     * @param tr
+     *            the top right corner of the map, projected
+     * @param bottomLeft
+     *            true for the bottom left corner of the zone, false for its
+     *            top right one
+     * @return the corner of the zone, in WGS 84 coordinates
+     */
+    private static PointGeo readZoneCorner(Projection projector, Point bl,
+            Point tr, boolean bottomLeft) {
+        double longitude = bottomLeft ? Double.POSITIVE_INFINITY
+                : Double.NEGATIVE_INFINITY;
+        double latitude = longitude;
+        // The borders of the map aren't straight once inverse projected, so
+        // their middles are taken into account as well as the corners.
+        for (int i = 0; i <= 2; ++i) {
+            for (int j = 0; j <= 2; ++j) {
+                double x = bl.x() - READ_MARGIN + i
+                        * (tr.x() - bl.x() + 2 * READ_MARGIN) / 2d;
+                double y = bl.y() - READ_MARGIN + j
+                        * (tr.y() - bl.y() + 2 * READ_MARGIN) / 2d;
+                PointGeo p = projector.inverse(new Point(x, y));
+                longitude = bottomLeft ? Math.min(longitude, p.longitude())
+                        : Math.max(longitude, p.longitude());
+                latitude = bottomLeft ? Math.min(latitude, p.latitude())
+                        : Math.max(latitude, p.latitude());
             }
         }
-        return out;
+        return new PointGeo(longitude, latitude);
     }
 }
@@ -6,8 +6,11 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.stream.IntStream;
 
 import static java.util.Objects.requireNonNull;
+import ch.epfl.imhof.geometry.PackedRTree;
+import ch.epfl.imhof.geometry.Point;
 import ch.epfl.imhof.geometry.PolyLine;
 import ch.epfl.imhof.geometry.Polygon;
 
@@ -20,8 +23,22 @@ import ch.epfl.imhof.geometry.Polygon;
  * 
  */
 public final class Map {
+    /**
+     * The lowest layer of the layer index
+     */
+    public static final int MIN_LAYER = -5;
+    /**
+     * The highest layer of the layer index
+     */
+    public static final int MAX_LAYER = 5;
+
     private final List<Attributed<PolyLine>> polyLines;
     private final List<Attributed<Polygon>> polygons;
+    // Built the first time a layer is requested
+    private volatile List<List<Attributed<PolyLine>>> polyLinesByLayer;
+    private volatile List<List<Attributed<Polygon>>> polygonsByLayer;
+    // Built the first time a subset is requested
+    private volatile PackedRTree index;
 
     /**
      * Constructs a new Map of polylines and polygons
@@ -57,6 +74,144 @@ public final class Map {
         return polygons;
     }
 
+    /**
+     * Returns the polylines of the given layer, in the order of the map. The
+     * layer of an element is the value of its "layer" attribute, or 0 if it
+     * has none. The layers are indexed the first time one is requested, so
+     * that drawing a map layer by layer doesn't filter it for each layer.
+     * 
+     * @param layer
+     *            the layer, between MIN_LAYER and MAX_LAYER
+     * @return an unmodifiable list of the polylines of the layer
+     * @throws IllegalArgumentException
+     *             if the layer isn't between MIN_LAYER and MAX_LAYER
+     */
+    public List<Attributed<PolyLine>> polyLinesOnLayer(int layer) {
+        checkLayer(layer);
+        List<List<Attributed<PolyLine>>> byLayer = polyLinesByLayer;
+        if (byLayer == null) {
+            byLayer = byLayer(polyLines);
+            polyLinesByLayer = byLayer;
+        }
+        return byLayer.get(layer - MIN_LAYER);
+    }
+
+    /**
+     * Returns the polygons of the given layer, in the order of the map. The
+     * layer of an element is the value of its "layer" attribute, or 0 if it
+     * has none.
+     * 
+     * @param layer
+     *            the layer, between MIN_LAYER and MAX_LAYER
+     * @return an unmodifiable list of the polygons of the layer
+     * @throws IllegalArgumentException
+     *             if the layer isn't between MIN_LAYER and MAX_LAYER
+     */
+    public List<Attributed<Polygon>> polygonsOnLayer(int layer) {
+        checkLayer(layer);
+        List<List<Attributed<Polygon>>> byLayer = polygonsByLayer;
+        if (byLayer == null) {
+            byLayer = byLayer(polygons);
+            polygonsByLayer = byLayer;
+        }
+        return byLayer.get(layer - MIN_LAYER);
+    }
+
+    /**
+     * Returns the map of the elements whose bounding box intersects the given
+     * rectangle, in the order of the map. The bounding box of a polygon is the
+     * one of its shell.
+     * <p>
+     * The bounding boxes are indexed in an R-tree the first time a subset is
+     * requested, so that the cost of the next subsets depends on the number
+     * of elements they contain rather than on the size of the map.
+     * 
+     * @param bl
+     *            the bottom left corner of the rectangle
+     * @param tr
+     *            the top right corner of the rectangle
+     * @return the map of the elements intersecting the rectangle; this map if
+     *         all of its elements are within the rectangle
+     * @throws IllegalArgumentException
+     *             if bl isn't below and to the left of tr
+     */
+    public Map subset(Point bl, Point tr) {
+        if (bl.x() > tr.x() || bl.y() > tr.y())
+            throw new IllegalArgumentException(
+                    "The bottom left point must be below and to the left of the top right point");
+        PackedRTree tree = index;
+        if (tree == null) {
+            tree = buildIndex();
+            index = tree;
+        }
+        if (tree.isWithin(bl.x(), bl.y(), tr.x(), tr.y()))
+            return this;
+
+        IntStream.Builder found = IntStream.builder();
+        tree.search(bl.x(), bl.y(), tr.x(), tr.y(), found);
+        List<Attributed<PolyLine>> foundPolyLines = new ArrayList<>();
+        List<Attributed<Polygon>> foundPolygons = new ArrayList<>();
+        // The elements are numbered polylines first, in the order of the map
+        for (int i : found.build().sorted().toArray()) {
+            if (i < polyLines.size())
+                foundPolyLines.add(polyLines.get(i));
+            else
+                foundPolygons.add(polygons.get(i - polyLines.size()));
+        }
+        return new Map(foundPolyLines, foundPolygons);
+    }
+
+    private PackedRTree buildIndex() {
+        double[] boxes = new double[4 * (polyLines.size() + polygons.size())];
+        int i = 0;
+        for (Attributed<PolyLine> polyLine : polyLines)
+            boundingBox(polyLine.value(), boxes, i++);
+        for (Attributed<Polygon> polygon : polygons)
+            boundingBox(polygon.value().shell(), boxes, i++);
+        return new PackedRTree(boxes);
+    }
+
+    private static void boundingBox(PolyLine polyLine, double[] boxes, int i) {
+        double minX = Double.POSITIVE_INFINITY, minY = minX;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = maxX;
+        for (Point point : polyLine.points()) {
+            minX = Math.min(minX, point.x());
+            minY = Math.min(minY, point.y());
+            maxX = Math.max(maxX, point.x());
+            maxY = Math.max(maxY, point.y());
+        }
+        boxes[4 * i] = minX;
+        boxes[4 * i + 1] = minY;
+        boxes[4 * i + 2] = maxX;
+        boxes[4 * i + 3] = maxY;
+    }
+
+    private static void checkLayer(int layer) {
+        if (layer < MIN_LAYER || MAX_LAYER < layer)
+            throw new IllegalArgumentException("The layer must be between "
+                    + MIN_LAYER + " and " + MAX_LAYER + ": " + layer);
+    }
+
+    /**
+     * Sorts the elements into one bucket per layer. The elements whose layer
+     * is out of the index are left out. Computing the index twice in
+     * concurrent calls is harmless, as both give the same buckets.
+     */
+    private static <T> List<List<Attributed<T>>> byLayer(
+            List<Attributed<T>> elements) {
+        List<List<Attributed<T>>> buckets = new ArrayList<>();
+        for (int l = MIN_LAYER; l <= MAX_LAYER; ++l)
+            buckets.add(new ArrayList<>());
+        for (Attributed<T> element : elements) {
+            int layer = element.attributeValue("layer", 0);
+            if (MIN_LAYER <= layer && layer <= MAX_LAYER)
+                buckets.get(layer - MIN_LAYER).add(element);
+        }
+        for (int l = 0; l < buckets.size(); ++l)
+            buckets.set(l, Collections.unmodifiableList(buckets.get(l)));
+        return Collections.unmodifiableList(buckets);
+    }
+
     /**
      * A Builder for the Map, which will assist in the creation of a such object
      * by allowing us to add polylines and polygons one at a time.
@@ -0,0 +1,550 @@
+package ch.epfl.imhof;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+//@formatter:off
+/**
+ * Writes a PNG image to a stream, a strip of rows after the other, so that
+ * the whole image never has to be in memory.
+ * <p>
+ * The image is written as 8 bits RGB, without interlacing:
+ * - every row is filtered with the filter of the chosen strategy, the
+ *   adaptive one choosing for each row the filter giving the smallest sum of
+ *   absolute differences, like most PNG encoders do;
+ * - the filtered rows form a single zlib stream, cut into IDAT chunks of at
+ *   most CHUNK_SIZE bytes.
+ * The zlib stream is compressed the way pigz does: it is cut into blocks of
+ * BLOCK_SIZE bytes that are deflated in parallel, each of them primed with
+ * the 32 KiB that precede it as dictionary, and ended on a byte boundary by
+ * a sync flush. The blocks are then concatenated in order, which gives a
+ * single valid deflate stream, whatever the parallelism.
+ * <p>
+ * The image is only complete once all its rows have been written and the
+ * writer has been closed.
+ *
+ * @author Maxime Kjaer (250694)
+ * @author Timote Vaucher (246532)
+ */
+//@formatter:on
+public final class PNGStreamWriter implements Closeable {
+    private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G',
+            '\r', '\n', 0x1A, '\n' };
+    private static final int CHUNK_SIZE = 1 << 16; // in bytes
+    private static final int BLOCK_SIZE = 1 << 17; // in bytes
+    private static final int DICTIONARY_SIZE = 1 << 15; // in bytes
+    private static final int BYTES_PER_PIXEL = 3;
+
+    /**
+     * The strategies of filtering of the rows, before their compression
+     */
+    public enum Filter {
+        NONE, SUB, UP, AVERAGE, PAETH, ADAPTIVE
+    }
+
+    private final DataOutputStream out;
+    private final int width, height, level, parallelism;
+    private final Filter filter;
+    private final ChunkOutputStream idat;
+    private final ExecutorService executor;
+    // The blocks being deflated, in the order of the stream
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final Adler32 adler = new Adler32();
+    // The filter of the rows written on the calling thread, whose previous
+    // row is the last row written
+    private final RowFilter rowFilter;
+    // The block being filled, and the one before it
+    private byte[] block = new byte[BLOCK_SIZE], previousBlock = null;
+    private int blockSize = 0;
+    private int rowsWritten = 0;
+
+    /**
+     * Constructs a writer of a PNG image with the default compression and
+     * the adaptive filter, which compresses on the calling thread only, and
+     * writes the header of the image to the stream.
+     *
+     * @param out
+     *            the stream receiving the image, which is closed with the
+     *            writer
+     * @param width
+     *            the width of the image, in pixels
+     * @param height
+     *            the height of the image, in pixels
+     * @throws IOException
+     *             if the header can't be written
+     * @throws IllegalArgumentException
+     *             if the width or the height isn't positive
+     */
+    public PNGStreamWriter(OutputStream out, int width, int height)
+            throws IOException {
+        this(out, width, height, Deflater.DEFAULT_COMPRESSION,
+                Filter.ADAPTIVE, 1);
+    }
+
+    /**
+     * Constructs a writer of a PNG image, and writes the header of the image
+     * to the stream.
+     *
+     * @param out
+     *            the stream receiving the image, which is closed with the
+     *            writer
+     * @param width
+     *            the width of the image, in pixels
+     * @param height
+     *            the height of the image, in pixels
+     * @param level
+     *            the level of compression, from 0 to 9, or
+     *            Deflater.DEFAULT_COMPRESSION
+     * @param filter
+     *            the strategy of filtering of the rows
+     * @param parallelism
+     *            the number of threads compressing the image (1 means that
+     *            the image is compressed on the calling thread only)
+     * @throws IOException
+     *             if the header can't be written
+     * @throws IllegalArgumentException
+     *             if the width or the height isn't positive, if the level
+     *             doesn't exist or if the parallelism is smaller than 1
+     */
+    public PNGStreamWriter(OutputStream out, int width, int height,
+            int level, Filter filter, int parallelism) throws IOException {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException(
+                    "Width and height must be bigger than 0");
+        if (level != Deflater.DEFAULT_COMPRESSION
+                && (level < Deflater.NO_COMPRESSION
+                        || level > Deflater.BEST_COMPRESSION))
+            throw new IllegalArgumentException(
+                    "Invalid compression level : " + level);
+        if (parallelism < 1)
+            throw new IllegalArgumentException(
+                    "Parallelism must be at least 1, was : " + parallelism);
+        this.out = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        this.level = level;
+        this.filter = filter;
+        this.parallelism = parallelism;
+        rowFilter = new RowFilter();
+
+        this.out.write(SIGNATURE);
+        ChunkOutputStream header = new ChunkOutputStream("IHDR");
+        DataOutputStream headerData = new DataOutputStream(header);
+        headerData.writeInt(width);
+        headerData.writeInt(height);
+        headerData.writeByte(8); // bits per component
+        headerData.writeByte(2); // RGB
+        headerData.writeByte(0); // deflate compression
+        headerData.writeByte(0); // adaptive filtering
+        headerData.writeByte(0); // no interlacing
+        header.writeChunk();
+
+        idat = new ChunkOutputStream("IDAT");
+        idat.write(zlibHeader(level));
+        executor = parallelism == 1 ? null : Executors
+                .newFixedThreadPool(parallelism);
+    }
+
+    /**
+     * Writes all the rows of a strip, below the rows already written.
+     *
+     * @param strip
+     *            the next rows of the image
+     * @throws IOException
+     *             if the rows can't be written
+     * @throws IllegalArgumentException
+     *             if the strip doesn't have the width of the image, or if it
+     *             has more rows than the image has left
+     */
+    public void writeRows(BufferedImage strip) throws IOException {
+        if (strip.getWidth() != width)
+            throw new IllegalArgumentException("The strip must be " + width
+                    + " pixels wide, was : " + strip.getWidth());
+        if (strip.getHeight() > height - rowsWritten)
+            throw new IllegalArgumentException("The image only has "
+                    + (height - rowsWritten) + " rows left, the strip has "
+                    + strip.getHeight());
+
+        int rows = strip.getHeight();
+        if (executor == null || rows < 2 * parallelism) {
+            for (int y = 0; y < rows; ++y)
+                write(rowFilter.filteredRow(strip, y));
+        } else {
+            // The rows are filtered in parallel, each range of rows starting
+            // from the row before it
+            List<Future<byte[][]>> ranges = new ArrayList<>();
+            for (int t = 0; t < parallelism; ++t) {
+                int first = t * rows / parallelism;
+                int last = (t + 1) * rows / parallelism;
+                RowFilter rangeFilter = new RowFilter();
+                if (first == 0)
+                    rangeFilter.setPrevious(rowFilter);
+                else
+                    rangeFilter.setPrevious(strip, first - 1);
+                ranges.add(executor.submit(() -> {
+                    byte[][] filteredRows = new byte[last - first][];
+                    for (int y = first; y < last; ++y)
+                        filteredRows[y - first] = rangeFilter.filteredRow(
+                                strip, y).clone();
+                    return filteredRows;
+                }));
+            }
+            for (Future<byte[][]> range : ranges)
+                for (byte[] row : get(range))
+                    write(row);
+            rowFilter.setPrevious(strip, rows - 1);
+        }
+        rowsWritten += rows;
+    }
+
+    /**
+     * Finishes the image and closes the stream.
+     *
+     * @throws IOException
+     *             if the end of the image can't be written, or if some of its
+     *             rows haven't been written (the stream is then closed
+     *             anyway)
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (rowsWritten < height)
+                throw new IOException("Only " + rowsWritten + " rows of "
+                        + height + " were written");
+            submitBlock(true);
+            while (!pending.isEmpty())
+                idat.write(next());
+            DataOutputStream checksum = new DataOutputStream(idat);
+            checksum.writeInt((int) adler.getValue());
+            idat.close();
+            new ChunkOutputStream("IEND").writeChunk();
+        } finally {
+            if (executor != null)
+                executor.shutdownNow();
+            out.close();
+        }
+    }
+
+    /**
+     * Adds the bytes of a filtered row to the zlib stream.
+     */
+    private void write(byte[] row) throws IOException {
+        adler.update(row);
+        int offset = 0;
+        while (offset < row.length) {
+            if (blockSize == BLOCK_SIZE)
+                submitBlock(false);
+            int copied = Math.min(row.length - offset, BLOCK_SIZE - blockSize);
+            System.arraycopy(row, offset, block, blockSize, copied);
+            blockSize += copied;
+            offset += copied;
+        }
+    }
+
+    /**
+     * Deflates the current block, on the executor if there is one, and writes
+     * the blocks deflated in the meantime. The number of blocks being
+     * deflated is bounded, so that the memory used doesn't depend on the
+     * size of the image.
+     */
+    private void submitBlock(boolean last) throws IOException {
+        BlockDeflation deflation = new BlockDeflation(block, blockSize,
+                previousBlock, last);
+        if (executor == null) {
+            idat.write(deflation.call());
+        } else {
+            pending.add(executor.submit(deflation));
+            while (!pending.isEmpty()
+                    && (pending.size() > 2 * parallelism || pending.peek()
+                            .isDone()))
+                idat.write(next());
+        }
+        previousBlock = block;
+        block = new byte[BLOCK_SIZE];
+        blockSize = 0;
+    }
+
+    /**
+     * Waits for the first block being deflated, and returns it.
+     */
+    private byte[] next() throws IOException {
+        return get(pending.remove());
+    }
+
+    /**
+     * Waits for the result of a task of the executor.
+     */
+    private static <T> T get(Future<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing the image",
+                    e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException("Unable to compress the image",
+                    e.getCause());
+        }
+    }
+
+    private static int paeth(int left, int up, int upLeft) {
+        int estimate = left + up - upLeft;
+        int toLeft = Math.abs(estimate - left);
+        int toUp = Math.abs(estimate - up);
+        int toUpLeft = Math.abs(estimate - upLeft);
+        if (toLeft <= toUp && toLeft <= toUpLeft)
+            return left;
+        return toUp <= toUpLeft ? up : upLeft;
+    }
+
+    /**
+     * The filter of consecutive rows, with the strategy of the writer. Each
+     * row is filtered with the row before it.
+     */
+    private final class RowFilter {
+        private final int[] rgb = new int[width];
+        // The previous row and the current one, and the current one filtered
+        // by every filter, each preceded by the type of its filter
+        private byte[] previous = new byte[BYTES_PER_PIXEL * width];
+        private byte[] current = new byte[BYTES_PER_PIXEL * width];
+        private final byte[][] filtered = new byte[Filter.ADAPTIVE.ordinal()][];
+
+        private RowFilter() {
+            for (int f = 0; f < filtered.length; ++f) {
+                filtered[f] = new byte[1 + BYTES_PER_PIXEL * width];
+                filtered[f][0] = (byte) f;
+            }
+        }
+
+        /**
+         * Makes the row of a strip the previous row.
+         */
+        private void setPrevious(BufferedImage strip, int y) {
+            read(strip, y, previous);
+        }
+
+        /**
+         * Makes the previous row of another filter the previous row.
+         */
+        private void setPrevious(RowFilter that) {
+            System.arraycopy(that.previous, 0, previous, 0, previous.length);
+        }
+
+        private void read(BufferedImage strip, int y, byte[] row) {
+            strip.getRGB(0, y, width, 1, rgb, 0, width);
+            for (int x = 0; x < width; ++x) {
+                row[BYTES_PER_PIXEL * x] = (byte) (rgb[x] >> 16);
+                row[BYTES_PER_PIXEL * x + 1] = (byte) (rgb[x] >> 8);
+                row[BYTES_PER_PIXEL * x + 2] = (byte) rgb[x];
+            }
+        }
+
+        /**
+         * Returns the row of a strip filtered by the filter of the strategy,
+         * in an array that is reused by the next row, and makes it the
+         * previous row. The adaptive strategy chooses the filter that gives
+         * the smallest sum of the absolute values of its bytes, taken as
+         * signed.
+         */
+        private byte[] filteredRow(BufferedImage strip, int y) {
+            read(strip, y, current);
+            byte[] row = filteredRow();
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+            return row;
+        }
+
+        private byte[] filteredRow() {
+            int length = current.length;
+            for (int i = 0; i < length; ++i) {
+                int raw = current[i] & 0xFF;
+                int left = i < BYTES_PER_PIXEL ? 0
+                        : current[i - BYTES_PER_PIXEL] & 0xFF;
+                int up = previous[i] & 0xFF;
+                int upLeft = i < BYTES_PER_PIXEL ? 0
+                        : previous[i - BYTES_PER_PIXEL] & 0xFF;
+                switch (filter) {
+                case NONE:
+                    filtered[0][i + 1] = (byte) raw;
+                    break;
+                case SUB:
+                    filtered[1][i + 1] = (byte) (raw - left);
+                    break;
+                case UP:
+                    filtered[2][i + 1] = (byte) (raw - up);
+                    break;
+                case AVERAGE:
+                    filtered[3][i + 1] = (byte) (raw - (left + up) / 2);
+                    break;
+                case PAETH:
+                    filtered[4][i + 1] = (byte) (raw - paeth(left, up, upLeft));
+                    break;
+                default:
+                    filtered[0][i + 1] = (byte) raw;
+                    filtered[1][i + 1] = (byte) (raw - left);
+                    filtered[2][i + 1] = (byte) (raw - up);
+                    filtered[3][i + 1] = (byte) (raw - (left + up) / 2);
+                    filtered[4][i + 1] = (byte) (raw - paeth(left, up, upLeft));
+                }
+            }
+            if (filter != Filter.ADAPTIVE)
+                return filtered[filter.ordinal()];
+
+            byte[] best = null;
+            long bestSum = Long.MAX_VALUE;
+            for (byte[] row : filtered) {
+                long sum = 0;
+                for (int i = 1; i <= length; ++i)
+                    sum += Math.abs(row[i]);
+                if (sum < bestSum) {
+                    best = row;
+                    bestSum = sum;
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Returns the header of a zlib stream without dictionary, whose level
+     * field tells the level of compression.
+     */
+    private static byte[] zlibHeader(int level) {
+        int compressionInfo = 0x78; // deflate, window of 32 KiB
+        int levelField;
+        if (level == Deflater.DEFAULT_COMPRESSION || level == 6)
+            levelField = 2;
+        else if (level < 2)
+            levelField = 0;
+        else
+            levelField = level < 6 ? 1 : 3;
+        int flags = levelField << 6;
+        flags += 31 - (compressionInfo << 8 | flags) % 31;
+        return new byte[] { (byte) compressionInfo, (byte) flags };
+    }
+
+    /**
+     * The deflation of a block of the zlib stream into raw deflate data,
+     * primed with the end of the block before it. A block that isn't the
+     * last one is ended by a sync flush, so that the next one starts on a
+     * byte boundary.
+     */
+    private final class BlockDeflation implements Callable<byte[]> {
+        private final byte[] block, previousBlock;
+        private final int size;
+        private final boolean last;
+
+        private BlockDeflation(byte[] block, int size, byte[] previousBlock,
+                boolean last) {
+            this.block = block;
+            this.size = size;
+            this.previousBlock = previousBlock;
+            this.last = last;
+        }
+
+        @Override
+        public byte[] call() {
+            Deflater deflater = new Deflater(level, true);
+            try {
+                if (previousBlock != null)
+                    deflater.setDictionary(previousBlock, BLOCK_SIZE
+                            - DICTIONARY_SIZE, DICTIONARY_SIZE);
+                deflater.setInput(block, 0, size);
+                if (last)
+                    deflater.finish();
+                byte[] output = new byte[size + size / 8 + 64];
+                int length = 0;
+                while (true) {
+                    if (length == output.length)
+                        output = Arrays.copyOf(output, 2 * output.length);
+                    int written = deflater.deflate(output, length,
+                            output.length - length, last ? Deflater.NO_FLUSH
+                                    : Deflater.SYNC_FLUSH);
+                    length += written;
+                    // The block is complete once the deflater leaves room in
+                    // the output
+                    if (last ? deflater.finished() : length < output.length)
+                        break;
+                }
+                return Arrays.copyOf(output, length);
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * A stream that gathers the data of chunks of a type, and writes them to
+     * the stream of the image whenever CHUNK_SIZE bytes are gathered, and
+     * when it is closed.
+     */
+    private final class ChunkOutputStream extends OutputStream {
+        private final byte[] type;
+        private final byte[] data = new byte[CHUNK_SIZE];
+        private int size = 0;
+
+        private ChunkOutputStream(String type) {
+            this.type = type.getBytes(StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (size == CHUNK_SIZE)
+                writeChunk();
+            data[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (size == CHUNK_SIZE)
+                    writeChunk();
+                int copied = Math.min(length, CHUNK_SIZE - size);
+                System.arraycopy(b, offset, data, size, copied);
+                size += copied;
+                offset += copied;
+                length -= copied;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (size > 0)
+                writeChunk();
+        }
+
+        /**
+         * Writes the gathered data as a chunk, which can be empty.
+         */
+        private void writeChunk() throws IOException {
+            CRC32 crc = new CRC32();
+            crc.update(type);
+            crc.update(data, 0, size);
+            out.writeInt(size);
+            out.write(type);
+            out.write(data, 0, size);
+            out.writeInt((int) crc.getValue());
+            size = 0;
+        }
+    }
+}
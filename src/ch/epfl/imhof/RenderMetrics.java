@@ -0,0 +1,258 @@
+package ch.epfl.imhof;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+//@formatter:off
+/**
+ * Records the cost of the stages of a render: reading, transforming,
+ * shading, drawing, blending, encoding. For every stage, it sums over all
+ * its runs:
+ * - the wall time;
+ * - the CPU time of the thread running the stage;
+ * - the CPU time of the whole process, which includes the threads the
+ *   stage runs in parallel (and the garbage collector);
+ * - the bytes allocated by the thread running the stage;
+ * - the counts of the entities it processed (ways, polygons, pixels...).
+ * The times and bytes that the JVM can't measure are -1.
+ * <p>
+ * The totals are written as a report of JSON lines, one line per stage in
+ * the order they were first run. Every run of a stage is also committed as
+ * a JFR event ch.epfl.imhof.Stage, which is recorded when a flight recording
+ * is running.
+ * <p>
+ * Stages may be run from several threads at once.
+ *
+ * @author Maxime Kjaer (250694)
+ * @author Timote Vaucher (246532)
+ */
+//@formatter:on
+public final class RenderMetrics {
+    private static final ThreadMXBean THREADS = ManagementFactory
+            .getThreadMXBean();
+    private static final OperatingSystemMXBean SYSTEM = ManagementFactory
+            .getOperatingSystemMXBean();
+
+    private final java.util.Map<String, Totals> totals = new LinkedHashMap<>();
+
+    /**
+     * Starts a run of a stage, which ends when it is closed:
+     *
+     * <pre>
+     * try (RenderMetrics.Stage stage = metrics.start("draw")) {
+     *     ...
+     *     stage.count("pixels", width * height);
+     * }
+     * </pre>
+     *
+     * @param name
+     *            the name of the stage
+     * @return the run of the stage
+     */
+    public Stage start(String name) {
+        return new Stage(name);
+    }
+
+    /**
+     * Writes the totals of every stage as JSON lines.
+     *
+     * @param out
+     *            the destination of the lines
+     * @throws IOException
+     *             if the lines can't be written
+     */
+    public synchronized void writeJSONLines(Appendable out) throws IOException {
+        for (Entry<String, Totals> stage : totals.entrySet()) {
+            Totals t = stage.getValue();
+            out.append("{\"stage\":").append(quoted(stage.getKey()))
+                    .append(",\"runs\":").append(Long.toString(t.runs))
+                    .append(",\"wall_ns\":").append(Long.toString(t.wall))
+                    .append(",\"thread_cpu_ns\":")
+                    .append(Long.toString(t.threadCpu))
+                    .append(",\"process_cpu_ns\":")
+                    .append(Long.toString(t.processCpu))
+                    .append(",\"allocated_bytes\":")
+                    .append(Long.toString(t.allocated))
+                    .append(",\"counts\":{");
+            String separator = "";
+            for (Entry<String, Long> count : t.counts.entrySet()) {
+                out.append(separator).append(quoted(count.getKey()))
+                        .append(':').append(count.getValue().toString());
+                separator = ",";
+            }
+            out.append("}}\n");
+        }
+    }
+
+    private synchronized void add(Stage stage, long wall, long threadCpu,
+            long processCpu, long allocated) {
+        Totals t = totals.computeIfAbsent(stage.name, n -> new Totals());
+        t.runs += 1;
+        t.wall += wall;
+        t.threadCpu = sum(t.threadCpu, threadCpu);
+        t.processCpu = sum(t.processCpu, processCpu);
+        t.allocated = sum(t.allocated, allocated);
+        stage.counts.forEach((k, v) -> t.counts.merge(k, v, Long::sum));
+    }
+
+    // The sum of two measures, unknown if any of them is
+    private static long sum(long a, long b) {
+        return a < 0 || b < 0 ? -1 : a + b;
+    }
+
+    private static String quoted(String s) {
+        StringBuilder b = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\')
+                b.append('\\').append(c);
+            else if (c < ' ')
+                b.append(String.format("\\u%04x", (int) c));
+            else
+                b.append(c);
+        }
+        return b.append('"').toString();
+    }
+
+    private static long threadCpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS
+                .getCurrentThreadCpuTime() : -1;
+    }
+
+    private static long processCpuTime() {
+        if (!(SYSTEM instanceof com.sun.management.OperatingSystemMXBean))
+            return -1;
+        return ((com.sun.management.OperatingSystemMXBean) SYSTEM)
+                .getProcessCpuTime();
+    }
+
+    private static long allocatedBytes() {
+        if (!(THREADS instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        com.sun.management.ThreadMXBean threads;
+        threads = (com.sun.management.ThreadMXBean) THREADS;
+        if (!threads.isThreadAllocatedMemorySupported()
+                || !threads.isThreadAllocatedMemoryEnabled())
+            return -1;
+        return threads.getThreadAllocatedBytes(Thread.currentThread()
+                .getId());
+    }
+
+    // The difference between two measures, unknown if any of them is
+    private static long difference(long end, long start) {
+        return end < 0 || start < 0 ? -1 : end - start;
+    }
+
+    /**
+     * A run of a stage, which measures the resources used from its start
+     * until it is closed, on the thread that started it.
+     */
+    public final class Stage implements AutoCloseable {
+        private final String name;
+        private final java.util.Map<String, Long> counts;
+        private final StageEvent event = new StageEvent();
+        private final long wall, threadCpu, processCpu, allocated;
+        private boolean closed = false;
+
+        private Stage(String name) {
+            this.name = name;
+            this.counts = new LinkedHashMap<>();
+            event.begin();
+            this.allocated = allocatedBytes();
+            this.processCpu = processCpuTime();
+            this.threadCpu = threadCpuTime();
+            this.wall = System.nanoTime();
+        }
+
+        /**
+         * Adds a number of entities processed by the stage.
+         *
+         * @param entity
+         *            the kind of entities, like "ways" or "pixels"
+         * @param count
+         *            the number of entities
+         * @return this run
+         */
+        public Stage count(String entity, long count) {
+            counts.merge(entity, count, Long::sum);
+            return this;
+        }
+
+        /**
+         * Ends the run, adding its measures to the totals of its stage and
+         * committing its JFR event. Closing it again does nothing.
+         */
+        @Override
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            long wall = System.nanoTime() - this.wall;
+            long threadCpu = difference(threadCpuTime(), this.threadCpu);
+            long processCpu = difference(processCpuTime(), this.processCpu);
+            long allocated = difference(allocatedBytes(), this.allocated);
+            add(this, wall, threadCpu, processCpu, allocated);
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.stage = name;
+                event.threadCpuTime = threadCpu;
+                event.processCpuTime = processCpu;
+                event.allocated = allocated;
+                event.counts = counts.toString();
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * The JFR event of a run of a stage, whose duration is its wall time
+     */
+    @Name("ch.epfl.imhof.Stage")
+    @Label("Render Stage")
+    @Category("Imhof")
+    @Description("A stage of the rendering of a map")
+    static final class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("Thread CPU Time")
+        @Timespan
+        long threadCpuTime;
+
+        @Label("Process CPU Time")
+        @Timespan
+        long processCpuTime;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+
+        @Label("Counts")
+        String counts;
+    }
+
+    /**
+     * The totals of the runs of a stage
+     */
+    private static final class Totals {
+        private long runs = 0, wall = 0, threadCpu = 0, processCpu = 0,
+                allocated = 0;
+        private final java.util.Map<String, Long> counts;
+
+        private Totals() {
+            this.counts = new LinkedHashMap<>();
+        }
+    }
+}
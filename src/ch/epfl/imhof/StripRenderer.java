@@ -0,0 +1,196 @@
+package ch.epfl.imhof;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import ch.epfl.imhof.dem.ReliefShader;
+import ch.epfl.imhof.geometry.Point;
+import ch.epfl.imhof.painting.Color;
+import ch.epfl.imhof.painting.ImageBlender;
+import ch.epfl.imhof.painting.Java2DCanvas;
+import ch.epfl.imhof.painting.Painter;
+
+//@formatter:off
+/**
+ * Renders a map with its relief as a PNG image, a horizontal strip after the
+ * other, so that the memory used only depends on the height of the strips
+ * and not on the size of the image. For every strip:
+ * - the relief of its rows is shaded, with the rows around them that the
+ *   blur needs;
+ * - the map is drawn on a canvas holding the rows of the strip only;
+ * - the relief is blended into the map, and the rows are written to the
+ *   PNG stream, which is compressed in parallel.
+ * The image is the same as the one rendered at once.
+ *
+ * @author Maxime Kjaer (250694)
+ * @author Timote Vaucher (246532)
+ */
+//@formatter:on
+public final class StripRenderer {
+    /**
+     * The default height of the strips, in pixels
+     */
+    public static final int STRIP_HEIGHT = 512;
+    // The level of the PNG writer of ImageIO, which compresses nearly as
+    // well as the default level of zlib, in half the time
+    private static final int COMPRESSION_LEVEL = 4;
+
+    private final Map map;
+    private final Painter painter;
+    private final ReliefShader shader;
+    private final int dpi, stripHeight, parallelism;
+    private final double blurRadius;
+
+    /**
+     * Constructs a renderer of strips.
+     *
+     * @param map
+     *            the map to draw, projected with the projection of the shader
+     * @param painter
+     *            the painter drawing the map
+     * @param shader
+     *            the shader of the relief
+     * @param dpi
+     *            the resolution of the image, which gives the width of the
+     *            lines, in dots per inch
+     * @param blurRadius
+     *            the radius of the blur of the relief, in pixels
+     * @param stripHeight
+     *            the height of the strips, in pixels
+     * @param parallelism
+     *            the number of threads drawing, blending and compressing
+     *            each strip
+     * @throws IllegalArgumentException
+     *             if the resolution or the height of the strips isn't
+     *             positive, if the blur radius is negative or if the
+     *             parallelism is smaller than 1
+     */
+    public StripRenderer(Map map, Painter painter, ReliefShader shader,
+            int dpi, double blurRadius, int stripHeight, int parallelism) {
+        if (dpi <= 0)
+            throw new IllegalArgumentException(
+                    "Resolution must be bigger than 0");
+        if (blurRadius < 0)
+            throw new IllegalArgumentException(
+                    "The blur radius cannot be negative, was : " + blurRadius);
+        if (stripHeight <= 0)
+            throw new IllegalArgumentException(
+                    "The height of the strips must be bigger than 0");
+        if (parallelism < 1)
+            throw new IllegalArgumentException(
+                    "Parallelism must be at least 1, was : " + parallelism);
+        this.map = map;
+        this.painter = painter;
+        this.shader = shader;
+        this.dpi = dpi;
+        this.blurRadius = blurRadius;
+        this.stripHeight = stripHeight;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Renders the image of a zone as a PNG image, written to a stream that is
+     * closed afterwards.
+     *
+     * @param bl
+     *            the bottom left point of the zone
+     * @param tr
+     *            the top right point of the zone
+     * @param width
+     *            the width of the image, in pixels
+     * @param height
+     *            the height of the image, in pixels
+     * @param out
+     *            the stream receiving the PNG image
+     * @throws IOException
+     *             if the image can't be written
+     * @throws IllegalArgumentException
+     *             if the width or the height isn't positive, if bl isn't below
+     *             and to the left of tr, or if the relief doesn't cover the
+     *             zone
+     */
+    public void render(Point bl, Point tr, int width, int height,
+            OutputStream out) throws IOException {
+        render(bl, tr, width, height, out, new RenderMetrics());
+    }
+
+    /**
+     * Renders the image of a zone as a PNG image, written to a stream that is
+     * closed afterwards, and records the cost of its stages: relief, draw,
+     * blend and png, summed over the strips. The elements of the map are
+     * counted once by the draw stage, however many strips there are.
+     *
+     * @param bl
+     *            the bottom left point of the zone
+     * @param tr
+     *            the top right point of the zone
+     * @param width
+     *            the width of the image, in pixels
+     * @param height
+     *            the height of the image, in pixels
+     * @param out
+     *            the stream receiving the PNG image
+     * @param metrics
+     *            the metrics recording the stages
+     * @throws IOException
+     *             if the image can't be written
+     * @throws IllegalArgumentException
+     *             if the width or the height isn't positive, if bl isn't below
+     *             and to the left of tr, or if the relief doesn't cover the
+     *             zone
+     */
+    public void render(Point bl, Point tr, int width, int height,
+            OutputStream out, RenderMetrics metrics) throws IOException {
+        PNGStreamWriter png = new PNGStreamWriter(out, width, height,
+                COMPRESSION_LEVEL, PNGStreamWriter.Filter.ADAPTIVE,
+                parallelism);
+        try {
+            for (int firstRow = 0; firstRow < height; firstRow += stripHeight) {
+                int rows = Math.min(stripHeight, height - firstRow);
+                long pixels = (long) width * rows;
+
+                Java2DCanvas canvas;
+                try (RenderMetrics.Stage stage = metrics.start("draw")) {
+                    canvas = new Java2DCanvas(bl, tr, width, height, dpi,
+                            Color.WHITE, firstRow, rows);
+                    canvas.drawMap(painter, map, parallelism);
+                    // Every strip goes through the whole map, whose elements
+                    // are only counted once
+                    if (firstRow == 0)
+                        stage.count("polylines", map.polyLines().size())
+                                .count("polygons", map.polygons().size());
+                    stage.count("pixels", pixels);
+                }
+                BufferedImage relief;
+                try (RenderMetrics.Stage stage = metrics.start("relief")) {
+                    relief = shader.shadedRows(bl, tr, width, height,
+                            blurRadius, firstRow, rows);
+                    stage.count("pixels", pixels);
+                }
+                try (RenderMetrics.Stage stage = metrics.start("blend")) {
+                    ImageBlender.multiply(canvas.image(), relief, parallelism);
+                    stage.count("pixels", pixels);
+                }
+                try (RenderMetrics.Stage stage = metrics.start("png")) {
+                    png.writeRows(canvas.image());
+                    stage.count("rows", rows);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                png.close();
+            } catch (IOException closing) {
+                e.addSuppressed(closing);
+            }
+            throw e;
+        }
+        // The last blocks are compressed when the writer is closed
+        RenderMetrics.Stage stage = metrics.start("png");
+        try {
+            png.close();
+        } finally {
+            stage.close();
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package ch.epfl.imhof;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import ch.epfl.imhof.dem.DigitalElevationModel;
+import ch.epfl.imhof.dem.ReliefShader;
+import ch.epfl.imhof.geometry.Point;
+import ch.epfl.imhof.painting.Color;
+import ch.epfl.imhof.painting.ImageBlender;
+import ch.epfl.imhof.painting.Java2DCanvas;
+import ch.epfl.imhof.painting.Painter;
+import ch.epfl.imhof.projection.Projection;
+import ch.epfl.imhof.projection.WebMercatorProjection;
+
+//@formatter:off
+/**
+ * Renders the tiles of the web maps (the XYZ scheme) from a single map and a
+ * single DEM. The map must have been projected with the
+ * WebMercatorProjection, and it is drawn on every tile, which only draws the
+ * elements it can show.
+ * <p>
+ * A pyramid of tiles is rendered in a directory, the tile (x, y) of the zoom
+ * z being z/x/y.png:
+ * - the tile 0/0/0 covers the whole projected world, and each tile of a
+ *   zoom is split into four tiles on the next zoom;
+ * - the x coordinates grow towards the east, the y ones towards the south.
+ * The tiles are rendered in parallel, and the tiles more recent than the
+ * sources of the map are kept.
+ * <p>
+ * The relief is only shaded on the tiles contained in the DEM along with the
+ * margin blurred with them, the other ones only show the map. Since every
+ * zoom shades the same zone again, the renderer may have the DEM precompute
+ * its shades first.
+ *
+ * @author Maxime Kjaer (250694)
+ * @author Timote Vaucher (246532)
+ */
+//@formatter:on
+public final class TileRenderer {
+    /**
+     * The width and height of the tiles, in pixels
+     */
+    public static final int TILE_SIZE = 256;
+    /**
+     * The highest zoom supported by the renderer
+     */
+    public static final int MAX_ZOOM = 24;
+
+    private final Projection projection = new WebMercatorProjection();
+    private final Map map;
+    private final Painter painter;
+    private final ReliefShader shader;
+    private final int dpi;
+    private final double blurRadius;
+
+    /**
+     * Constructs a renderer of tiles.
+     *
+     * @param map
+     *            the map to draw, projected with the WebMercatorProjection
+     * @param painter
+     *            the painter drawing the map
+     * @param model
+     *            the DEM of the relief
+     * @param lightSource
+     *            the direction of the light shading the relief
+     * @param dpi
+     *            the resolution of the tiles, which gives the width of the
+     *            lines, in dots per inch
+     * @param blurRadius
+     *            the radius of the blur of the relief, in pixels
+     * @throws IllegalArgumentException
+     *             if the resolution isn't positive or if the blur radius is
+     *             negative
+     */
+    public TileRenderer(Map map, Painter painter,
+            DigitalElevationModel model, Vector3 lightSource, int dpi,
+            double blurRadius) {
+        this(map, painter, model, lightSource, dpi, blurRadius, false);
+    }
+
+    /**
+     * Constructs a renderer of tiles, which may have the DEM precompute its
+     * shades for the light source.
+     *
+     * @param map
+     *            the map to draw, projected with the WebMercatorProjection
+     * @param painter
+     *            the painter drawing the map
+     * @param model
+     *            the DEM of the relief
+     * @param lightSource
+     *            the direction of the light shading the relief
+     * @param dpi
+     *            the resolution of the tiles, which gives the width of the
+     *            lines, in dots per inch
+     * @param blurRadius
+     *            the radius of the blur of the relief, in pixels
+     * @param precomputeShades
+     *            true if the DEM precomputes its shades, which speeds up the
+     *            relief of the pyramids spanning several zooms but takes
+     *            memory (see DigitalElevationModel.precomputeShades)
+     * @throws IllegalArgumentException
+     *             if the resolution isn't positive or if the blur radius is
+     *             negative
+     */
+    public TileRenderer(Map map, Painter painter,
+            DigitalElevationModel model, Vector3 lightSource, int dpi,
+            double blurRadius, boolean precomputeShades) {
+        if (dpi <= 0)
+            throw new IllegalArgumentException(
+                    "Resolution must be bigger than 0");
+        if (blurRadius < 0)
+            throw new IllegalArgumentException(
+                    "The blur radius cannot be negative, was : " + blurRadius);
+        this.map = map;
+        this.painter = painter;
+        // The tiles are rendered in parallel, each of them on a single thread
+        this.shader = new ReliefShader(projection, model, lightSource);
+        this.dpi = dpi;
+        this.blurRadius = blurRadius;
+        if (precomputeShades)
+            model.precomputeShades(lightSource);
+    }
+
+    /**
+     * Renders a tile.
+     *
+     * @param zoom
+     *            the zoom of the tile
+     * @param x
+     *            the x coordinate of the tile
+     * @param y
+     *            the y coordinate of the tile
+     * @return the image of the tile
+     * @throws IllegalArgumentException
+     *             if the zoom isn't between 0 and MAX_ZOOM, or if the tile
+     *             doesn't exist at this zoom
+     */
+    public BufferedImage renderTile(int zoom, int x, int y) {
+        checkZoom(zoom);
+        if (x < 0 || y < 0 || x >= 1 << zoom || y >= 1 << zoom)
+            throw new IllegalArgumentException("There is no tile " + x + ", "
+                    + y + " at zoom " + zoom);
+        double side = tileSide(zoom);
+        Point bl = new Point(-WebMercatorProjection.HALF_WORLD + x * side,
+                WebMercatorProjection.HALF_WORLD - (y + 1) * side);
+        Point tr = new Point(bl.x() + side, bl.y() + side);
+
+        Java2DCanvas canvas = new Java2DCanvas(bl, tr, TILE_SIZE, TILE_SIZE,
+                dpi, Color.WHITE);
+        painter.drawMap(map, canvas);
+        // The relief is blurred with a margin around the tile, which must be
+        // in the DEM too
+        if (!shader.covers(bl, tr, TILE_SIZE, TILE_SIZE, blurRadius))
+            return canvas.image();
+        BufferedImage relief = shader.shadedRelief(bl, tr, TILE_SIZE,
+                TILE_SIZE, blurRadius);
+        ImageBlender.multiply(canvas.image(), relief, 1);
+        return canvas.image();
+    }
+
+    /**
+     * Renders the tiles covering a zone, for every zoom of a range, in a
+     * directory. The tiles whose file has been modified after the given
+     * time are kept as they are.
+     *
+     * @param bl
+     *            the bottom left corner of the zone
+     * @param tr
+     *            the top right corner of the zone
+     * @param minZoom
+     *            the lowest zoom to render
+     * @param maxZoom
+     *            the highest zoom to render
+     * @param directory
+     *            the directory of the pyramid of tiles
+     * @param sourcesLastModified
+     *            the last time the sources of the map and of the relief were
+     *            modified, in milliseconds since the epoch
+     * @param parallelism
+     *            the number of tiles rendered at the same time
+     * @return the number of tiles rendered, the ones kept excluded
+     * @throws IOException
+     *             if a tile can't be written
+     * @throws IllegalArgumentException
+     *             if the zooms aren't an increasing range of [0, MAX_ZOOM], if
+     *             bl isn't below and to the left of tr, or if parallelism is
+     *             smaller than 1
+     */
+    public int renderPyramid(PointGeo bl, PointGeo tr, int minZoom,
+            int maxZoom, File directory, long sourcesLastModified,
+            int parallelism) throws IOException {
+        checkZoom(minZoom);
+        checkZoom(maxZoom);
+        if (minZoom > maxZoom)
+            throw new IllegalArgumentException(
+                    "The lowest zoom is higher than the highest one");
+        if (bl.longitude() > tr.longitude() || bl.latitude() > tr.latitude())
+            throw new IllegalArgumentException(
+                    "The bottom left point must be below and to the left of the top right point");
+        if (parallelism < 1)
+            throw new IllegalArgumentException(
+                    "The parallelism must be at least 1, was : " + parallelism);
+
+        Point projectedBl = projection.project(bl);
+        Point projectedTr = projection.project(tr);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        List<Future<Boolean>> tiles = new ArrayList<>();
+        try {
+            for (int zoom = minZoom; zoom <= maxZoom; ++zoom) {
+                double side = tileSide(zoom);
+                int maxTile = (1 << zoom) - 1;
+                int minX = tileCoordinate(projectedBl.x(), side, maxTile);
+                int maxX = tileCoordinate(projectedTr.x(), side, maxTile);
+                int minY = tileCoordinate(-projectedTr.y(), side, maxTile);
+                int maxY = tileCoordinate(-projectedBl.y(), side, maxTile);
+                for (int x = minX; x <= maxX; ++x) {
+                    for (int y = minY; y <= maxY; ++y) {
+                        File file = new File(directory, zoom + File.separator
+                                + x + File.separator + y + ".png");
+                        if (file.lastModified() > sourcesLastModified)
+                            continue;
+                        int z = zoom, tileX = x, tileY = y;
+                        tiles.add(executor.submit(() -> {
+                            writeTile(renderTile(z, tileX, tileY), file);
+                            return true;
+                        }));
+                    }
+                }
+            }
+            for (Future<Boolean> tile : tiles)
+                tile.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while rendering the tiles", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException("Unable to render a tile", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return tiles.size();
+    }
+
+    /**
+     * Writes a tile under a temporary name first, so that an interrupted
+     * rendering never leaves a half written tile that would look up to date.
+     */
+    private static void writeTile(BufferedImage tile, File file)
+            throws IOException {
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+            throw new IOException("Unable to create the directory " + parent);
+        File temporary = new File(file.getPath() + ".tmp");
+        if (!ImageIO.write(tile, "png", temporary))
+            throw new IOException("No PNG writer available");
+        Files.move(temporary.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void checkZoom(int zoom) {
+        if (zoom < 0 || zoom > MAX_ZOOM)
+            throw new IllegalArgumentException("The zoom must be between 0 and "
+                    + MAX_ZOOM + ", was : " + zoom);
+    }
+
+    /**
+     * Returns the side of the tiles of a zoom, in metres.
+     */
+    private static double tileSide(int zoom) {
+        return 2 * WebMercatorProjection.HALF_WORLD / (1 << zoom);
+    }
+
+    /**
+     * Returns the index of the tile containing a coordinate, the tiles being
+     * numbered from the west or from the north.
+     */
+    private static int tileCoordinate(double coordinate, double side,
+            int maxTile) {
+        double fromOrigin = coordinate + WebMercatorProjection.HALF_WORLD;
+        int tile = (int) Math.floor(fromOrigin / side);
+        return Math.max(0, Math.min(tile, maxTile));
+    }
+}
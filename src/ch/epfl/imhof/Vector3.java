@@ -25,6 +25,33 @@ public final class Vector3 {
         this.z = z;
     }
 
+    /**
+     * Returns the x-component of the vector.
+     * 
+     * @return The x-component of the vector
+     */
+    public double x() {
+        return x;
+    }
+
+    /**
+     * Returns the y-component of the vector.
+     * 
+     * @return The y-component of the vector
+     */
+    public double y() {
+        return y;
+    }
+
+    /**
+     * Returns the z-component of the vector.
+     * 
+     * @return The z-component of the vector
+     */
+    public double z() {
+        return z;
+    }
+
     /**
      * Returns the norm of the vector.
      * 
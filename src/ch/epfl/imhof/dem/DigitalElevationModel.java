@@ -24,4 +24,164 @@ public interface DigitalElevationModel extends AutoCloseable {
      *             if p isn't contained in the current DEM map
      */
     public Vector3 normalAt(PointGeo p) throws IllegalArgumentException;
+
+    /**
+     * Returns the altitude of point p, interpolated bilinearly between the 4
+     * closest points of the DEM map.
+     * 
+     * @param p
+     *            point whose altitude we look for
+     * @return the altitude of point p, in metres
+     * @throws IllegalArgumentException
+     *             if p isn't contained in the current DEM map
+     */
+    public double elevationAt(PointGeo p) throws IllegalArgumentException;
+
+    /**
+     * Samples the altitude on a regular grid of width x height points whose
+     * corners are the corners of the given zone. The altitude of the point of
+     * column i and row j is written at index i + width * j of out; the first
+     * row is the northern border of the zone and the first column is its
+     * western border.
+     * 
+     * @param bl
+     *            the bottom left corner of the zone
+     * @param tr
+     *            the top right corner of the zone
+     * @param width
+     *            the number of columns of the grid (should be >= 1)
+     * @param height
+     *            the number of rows of the grid (should be >= 1)
+     * @param out
+     *            the array in which the altitudes, in metres, are written
+     * @throws IllegalArgumentException
+     *             if the width or height is smaller than 1, if out is too
+     *             small, or if the zone isn't contained in the DEM map
+     */
+    public default void sampleGrid(PointGeo bl, PointGeo tr, int width,
+            int height, float[] out) throws IllegalArgumentException {
+        checkGrid(width, height, out);
+        double stepLon = width > 1 ? (tr.longitude() - bl.longitude())
+                / (width - 1) : 0;
+        double stepLat = height > 1 ? (tr.latitude() - bl.latitude())
+                / (height - 1) : 0;
+        for (int j = 0; j < height; ++j) {
+            double latitude = tr.latitude() - j * stepLat;
+            for (int i = 0; i < width; ++i)
+                out[i + width * j] = (float) elevationAt(new PointGeo(
+                        bl.longitude() + i * stepLon, latitude));
+        }
+    }
+
+    /**
+     * Checks the size of a grid given to sampleGrid.
+     * 
+     * @throws IllegalArgumentException
+     *             if the width or height is smaller than 1, or if out is too
+     *             small
+     */
+    public static void checkGrid(int width, int height, float[] out) {
+        if (width < 1 || height < 1)
+            throw new IllegalArgumentException(
+                    "The grid must have at least one row and one column");
+        if (out.length < (long) width * height)
+            throw new IllegalArgumentException("The output array is too small");
+    }
+
+    /**
+     * Returns whether the DEM contains a certain point p.
+     * 
+     * @param p
+     *            The PointGeo object that will be checked.
+     * @return Whether the given PointGeo object's coordinates are within the
+     *         DEM.
+     */
+    public boolean contains(PointGeo p);
+
+    /**
+     * Writes the components of the normalized normal vector of the point of
+     * given longitude and latitude into the first three cells of normal. This
+     * is the primitive equivalent of normalAt(PointGeo), which implementations
+     * can override to avoid allocating objects.
+     * 
+     * @param longitude
+     *            the longitude of the point, in radians
+     * @param latitude
+     *            the latitude of the point, in radians
+     * @param normal
+     *            the array in which the x, y and z components of the normal
+     *            vector are written
+     * @throws IllegalArgumentException
+     *             if the point isn't contained in the current DEM map
+     */
+    public default void normalAt(double longitude, double latitude,
+            double[] normal) throws IllegalArgumentException {
+        Vector3 n = normalAt(new PointGeo(longitude, latitude));
+        normal[0] = n.x();
+        normal[1] = n.y();
+        normal[2] = n.z();
+    }
+
+    /**
+     * Computes the normal vectors of a row of points at once.
+     * 
+     * @param lonLat
+     *            the coordinates of the points, in radians, stored as
+     *            (longitude, latitude) pairs
+     * @param count
+     *            the number of points
+     * @param normals
+     *            the array in which the x, y and z components of the normal
+     *            vector of the k-th point are written at indices 3k, 3k + 1
+     *            and 3k + 2
+     * @throws IllegalArgumentException
+     *             if one of the points isn't contained in the current DEM map
+     */
+    public default void normalsAt(double[] lonLat, int count, double[] normals)
+            throws IllegalArgumentException {
+        double[] normal = new double[3];
+        for (int k = 0; k < count; ++k) {
+            normalAt(lonLat[2 * k], lonLat[2 * k + 1], normal);
+            System.arraycopy(normal, 0, normals, 3 * k, 3);
+        }
+    }
+
+    /**
+     * Computes, for a row of points, the cosine of the angle between their
+     * normal vector and the given light vector, which is what relief shading
+     * is based on.
+     * 
+     * @param lonLat
+     *            the coordinates of the points, in radians, stored as
+     *            (longitude, latitude) pairs
+     * @param count
+     *            the number of points
+     * @param lightSource
+     *            the normalized direction of the light source
+     * @param shades
+     *            the array in which the cosine of the k-th point is written at
+     *            index k
+     * @throws IllegalArgumentException
+     *             if one of the points isn't contained in the current DEM map
+     */
+    public default void shadesAt(double[] lonLat, int count,
+            Vector3 lightSource, double[] shades)
+            throws IllegalArgumentException {
+        double[] normals = new double[3 * count];
+        normalsAt(lonLat, count, normals);
+        for (int k = 0; k < count; ++k)
+            shades[k] = normals[3 * k] * lightSource.x() + normals[3 * k + 1]
+                    * lightSource.y() + normals[3 * k + 2] * lightSource.z();
+    }
+
+    /**
+     * Prepares the DEM to be shaded many times with the given light vector,
+     * by precomputing what shadesAt needs in exchange for memory. By default,
+     * it does nothing.
+     * 
+     * @param lightSource
+     *            the direction of the light source
+     */
+    public default void precomputeShades(Vector3 lightSource) {
+    }
 }
@@ -5,15 +5,12 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ShortBuffer;
 import java.nio.channels.FileChannel.MapMode;
-import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 
 import ch.epfl.imhof.PointGeo;
 import ch.epfl.imhof.Vector3;
-import ch.epfl.imhof.geometry.Point;
-import ch.epfl.imhof.projection.EquirectangularProjection;
-import ch.epfl.imhof.projection.Projection;
 
 /**
  * HGTDigitalElevationModel is a class that can read and interpret Digital
@@ -28,16 +25,20 @@ public final class HGTDigitalElevationModel implements DigitalElevationModel {
     private final PointGeo bl, tr;
     private final double delta; // [rad]
     private final double s; // the distance a dot and the next, in [m]
-    private final FileInputStream stream;
     private ShortBuffer buffer;
     private final int side; // The number of points on one axis in the
                             // altitude plot (usually 3601)
-    private final Function<Point, Point> geoToHGT;
+    // Coefficients of the change of frame from (longitude, latitude) to the
+    // (column, row) of the HGT grid: column = ax * lon + bx, row = ay * lat +
+    // by.
+    private final double ax, bx, ay, by;
+    // Optional precomputed grids, see precomputeNormals and precomputeShades
+    private volatile float[] normalGrid;
+    private volatile ShadeGrid shadeGrid;
 
     private final static Pattern hgtPattern = Pattern
             .compile("^(?<latOrien>[NS])(?<latCoor>\\d{2})(?<lonOrien>[EW])(?<lonCoor>\\d{3})\\.hgt$");
     private final static double oneDegToRad = Math.toRadians(1);
-    private final static Projection proj = new EquirectangularProjection();
 
     /**
      * Constructs a new HGTDigitalElevationModel from a given .hgt file.
@@ -83,8 +84,12 @@ public final class HGTDigitalElevationModel implements DigitalElevationModel {
         bl = new PointGeo(lon, lat);
         tr = new PointGeo(lon + oneDegToRad, lat + oneDegToRad);
 
-        geoToHGT = Point.alignedCoordinateChange(proj.project(bl), new Point(0,
-                side - 1), proj.project(tr), new Point(side - 1, 0));
+        // Same change of frame as Point.alignedCoordinateChange from (bl, (0,
+        // side - 1)) and (tr, (side - 1, 0)), without the Point objects.
+        ax = -(side - 1) / (bl.longitude() - tr.longitude());
+        bx = (side - 1) - ax * tr.longitude();
+        ay = (side - 1) / (bl.latitude() - tr.latitude());
+        by = -ay * tr.latitude();
         // The reason for the -1 is explained here: {@link
         // https://piazza.com/class/i39wbwd15v83mt?cid=388}
 
@@ -94,10 +99,12 @@ public final class HGTDigitalElevationModel implements DigitalElevationModel {
         s = Earth.RADIUS * delta;
         // 1 deg (in rad) contains side points (2 bytes/point)
 
-        // Creation of buffer for reading
-        stream = new FileInputStream(hgt);
-        buffer = stream.getChannel().map(MapMode.READ_ONLY, 0, length)
-                .asShortBuffer();
+        // Creation of buffer for reading. The mapping stays valid once the
+        // file is closed, so no file descriptor is held by the model.
+        try (FileInputStream stream = new FileInputStream(hgt)) {
+            buffer = stream.getChannel().map(MapMode.READ_ONLY, 0, length)
+                    .asShortBuffer();
+        }
     }
 
     /*
@@ -107,8 +114,9 @@ public final class HGTDigitalElevationModel implements DigitalElevationModel {
      */
     @Override
     public void close() throws Exception {
-        stream.close();
         buffer = null;
+        normalGrid = null;
+        shadeGrid = null;
     }
 
     /*
@@ -119,45 +127,311 @@ public final class HGTDigitalElevationModel implements DigitalElevationModel {
      */
     @Override
     public Vector3 normalAt(PointGeo p) throws IllegalArgumentException {
-        if (!contains(p))
+        double[] normal = new double[3];
+        normalAt(p.longitude(), p.latitude(), normal);
+        return new Vector3(normal[0], normal[1], normal[2]);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see ch.epfl.imhof.dem.DigitalElevationModel#normalAt(double, double,
+     * double[])
+     */
+    @Override
+    public void normalAt(double longitude, double latitude, double[] normal)
+            throws IllegalArgumentException {
+        if (!contains(longitude, latitude))
             throw new IllegalArgumentException("Your point is in another file");
         // Mario ref, AKA Your princess is in another castle
+        normalInto(longitude, latitude, normal, 0);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see ch.epfl.imhof.dem.DigitalElevationModel#normalsAt(double[], int,
+     * double[])
+     */
+    @Override
+    public void normalsAt(double[] lonLat, int count, double[] normals)
+            throws IllegalArgumentException {
+        for (int k = 0; k < count; ++k) {
+            double longitude = lonLat[2 * k], latitude = lonLat[2 * k + 1];
+            if (!contains(longitude, latitude))
+                throw new IllegalArgumentException(
+                        "Your point is in another file");
+            normalInto(longitude, latitude, normals, 3 * k);
+        }
+    }
 
-        // Calculating the grid number that we have to get data from.
-        Point point = geoToHGT.apply(proj.project(p));
-        int i = (int) Math.floor(point.x());
-        int j = (int) Math.floor(point.y());
+    /*
+     * (non-Javadoc)
+     * 
+     * @see ch.epfl.imhof.dem.DigitalElevationModel#shadesAt(double[], int,
+     * ch.epfl.imhof.Vector3, double[])
+     */
+    @Override
+    public void shadesAt(double[] lonLat, int count, Vector3 lightSource,
+            double[] shades) throws IllegalArgumentException {
+        ShadeGrid grid = shadeGrid;
+        if (grid == null || !grid.isLitBy(lightSource)) {
+            DigitalElevationModel.super.shadesAt(lonLat, count, lightSource,
+                    shades);
+            return;
+        }
+        for (int k = 0; k < count; ++k) {
+            double longitude = lonLat[2 * k], latitude = lonLat[2 * k + 1];
+            if (!contains(longitude, latitude))
+                throw new IllegalArgumentException(
+                        "Your point is in another file");
+            shades[k] = grid.shades[cellIndex(longitude, latitude)];
+        }
+    }
 
-        // z will be our table of heights for the 4 points around p.
-        short[][] z = new short[2][2];
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * ch.epfl.imhof.dem.DigitalElevationModel#elevationAt(ch.epfl.imhof.PointGeo
+     * )
+     */
+    @Override
+    public double elevationAt(PointGeo p) throws IllegalArgumentException {
+        if (!contains(p))
+            throw new IllegalArgumentException("Your point is in another file");
+        double x = ax * p.longitude() + bx;
+        double y = ay * p.latitude() + by;
+        int i = cellColumn(p.longitude());
+        int j = cellRow(p.latitude());
+        double fx = x - i, fy = y - j;
+
+        short z00 = buffer.get(i + side * j);
+        short z10 = buffer.get((i + 1) + side * j);
+        short z01 = buffer.get(i + side * (j + 1));
+        short z11 = buffer.get((i + 1) + side * (j + 1));
+        double top = z00 + fx * (z10 - z00);
+        double bottom = z01 + fx * (z11 - z01);
+        return top + fy * (bottom - top);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * ch.epfl.imhof.dem.DigitalElevationModel#sampleGrid(ch.epfl.imhof.PointGeo
+     * , ch.epfl.imhof.PointGeo, int, int, float[])
+     */
+    @Override
+    public void sampleGrid(PointGeo bl, PointGeo tr, int width, int height,
+            float[] out) throws IllegalArgumentException {
+        DigitalElevationModel.checkGrid(width, height, out);
+        if (!contains(bl) || !contains(tr))
+            throw new IllegalArgumentException("Your zone is in another file");
+
+        // The columns of the grid are the same for every row, so their cell
+        // and weight are computed once.
+        double stepLon = width > 1 ? (tr.longitude() - bl.longitude())
+                / (width - 1) : 0;
+        double stepLat = height > 1 ? (tr.latitude() - bl.latitude())
+                / (height - 1) : 0;
+        int[] columns = new int[width];
+        float[] weights = new float[width];
+        for (int k = 0; k < width; ++k) {
+            double longitude = bl.longitude() + k * stepLon;
+            columns[k] = cellColumn(longitude);
+            weights[k] = (float) (ax * longitude + bx - columns[k]);
+        }
+        int firstColumn = Math.min(columns[0], columns[width - 1]);
+        int span = Math.max(columns[0], columns[width - 1]) + 2 - firstColumn;
+        for (int k = 0; k < width; ++k)
+            columns[k] -= firstColumn;
+
+        // Both HGT rows around a grid row are copied into arrays, so that
+        // the inner loop only reads primitive arrays.
+        ShortBuffer rows = buffer.duplicate();
+        short[] top = new short[span], bottom = new short[span];
+        for (int j = 0; j < height; ++j) {
+            double latitude = tr.latitude() - j * stepLat;
+            int row = cellRow(latitude);
+            float fy = (float) (ay * latitude + by - row);
+            rows.position(firstColumn + side * row);
+            rows.get(top);
+            rows.position(firstColumn + side * (row + 1));
+            rows.get(bottom);
+
+            int offset = width * j;
+            for (int k = 0; k < width; ++k) {
+                int c = columns[k];
+                float fx = weights[k];
+                float t = top[c] + fx * (top[c + 1] - top[c]);
+                float b = bottom[c] + fx * (bottom[c + 1] - bottom[c]);
+                out[offset + k] = t + fy * (b - t);
+            }
+        }
+    }
+
+    /**
+     * Precomputes the normal vector of every cell of the HGT grid, so that
+     * normalAt and normalsAt only have to read them afterwards. The normals
+     * are stored as floats, which takes 12 bytes per cell (about 155 MB for a
+     * file of 3601 points by side).
+     */
+    public void precomputeNormals() {
+        int cells = side - 1;
+        float[] grid = new float[3 * cells * cells];
+        IntStream.range(0, cells).parallel().forEach(j -> {
+            double[] normal = new double[3];
+            for (int i = 0; i < cells; ++i) {
+                cellNormal(i, j, normal, 0);
+                int index = 3 * (i + cells * j);
+                grid[index] = (float) normal[0];
+                grid[index + 1] = (float) normal[1];
+                grid[index + 2] = (float) normal[2];
+            }
+        });
+        normalGrid = grid;
+    }
+
+    /**
+     * Precomputes, for every cell of the HGT grid, the cosine of the angle
+     * between its normal vector and the given light vector. Afterwards,
+     * shadesAt only has to read them when it is called with the same light
+     * vector. The cosines are stored as floats, which takes 4 bytes per cell.
+     * 
+     * @param lightSource
+     *            The direction of the light source, a 3D Vector.
+     */
+    @Override
+    public void precomputeShades(Vector3 lightSource) {
+        Vector3 light = lightSource.normalized();
+        int cells = side - 1;
+        float[] grid = new float[cells * cells];
+        IntStream.range(0, cells).parallel().forEach(j -> {
+            double[] normal = new double[3];
+            for (int i = 0; i < cells; ++i) {
+                cellNormal(i, j, normal, 0);
+                grid[i + cells * j] = (float) (normal[0] * light.x()
+                        + normal[1] * light.y() + normal[2] * light.z());
+            }
+        });
+        shadeGrid = new ShadeGrid(light, grid);
+    }
+
+    /**
+     * Computes the normal vector of a point that is contained in the DEM, and
+     * writes its components in normals, starting at index offset.
+     */
+    private void normalInto(double longitude, double latitude,
+            double[] normals, int offset) {
+        float[] grid = normalGrid;
+        if (grid != null) {
+            int index = 3 * cellIndex(longitude, latitude);
+            normals[offset] = grid[index];
+            normals[offset + 1] = grid[index + 1];
+            normals[offset + 2] = grid[index + 2];
+        } else {
+            // Calculating the grid number that we have to get data from.
+            cellNormal(cellColumn(longitude), cellRow(latitude), normals,
+                    offset);
+        }
+    }
+
+    /**
+     * Computes the normal vector of the cell whose top left corner is the
+     * point (i, j) of the HGT grid, and writes its components in normals,
+     * starting at index offset. Every point of a cell has the same normal.
+     */
+    private void cellNormal(int i, int j, double[] normals, int offset) {
         // Fetching heights of the 4 points around p
-        z[0][0] = buffer.get(i + side * (j + 1));
-        z[0][1] = buffer.get(i + side * j);
-        z[1][0] = buffer.get((i + 1) + side * (j + 1));
-        z[1][1] = buffer.get((i + 1) + side * j);
+        short z00 = buffer.get(i + side * (j + 1));
+        short z01 = buffer.get(i + side * j);
+        short z10 = buffer.get((i + 1) + side * (j + 1));
+        short z11 = buffer.get((i + 1) + side * j);
 
         double halfS = s / 2d; // Cache it this time around (whether this
                                // optimizes the performance is dubious at best,
                                // but points were taken off last time).
-        double n1 = halfS * (z[0][0] - z[1][0] + z[0][1] - z[1][1]);
-        double n2 = halfS * (z[0][0] + z[1][0] - z[0][1] - z[1][1]);
+        double n1 = halfS * (z00 - z10 + z01 - z11);
+        double n2 = halfS * (z00 + z10 - z01 - z11);
         double n3 = s * s;
 
-        return new Vector3(n1, n2, n3).normalized();
+        double norm = Math.sqrt(n1 * n1 + n2 * n2 + n3 * n3);
+        normals[offset] = n1 / norm;
+        normals[offset + 1] = n2 / norm;
+        normals[offset + 2] = n3 / norm;
+    }
+
+    /**
+     * Returns the column of the cell containing the given longitude. Points on
+     * the eastern border of the file belong to the last column of cells.
+     */
+    private int cellColumn(double longitude) {
+        return Math.max(0,
+                Math.min((int) Math.floor(ax * longitude + bx), side - 2));
+    }
+
+    /**
+     * Returns the row of the cell containing the given latitude. Points on the
+     * southern border of the file belong to the last row of cells, and
+     * rounding errors on the northern border are kept in the first row.
+     */
+    private int cellRow(double latitude) {
+        return Math.max(0,
+                Math.min((int) Math.floor(ay * latitude + by), side - 2));
     }
 
     /**
-     * Returns whether the DEM contains a certain point p.
+     * Returns the index of the cell containing the given point in the
+     * precomputed grids.
+     */
+    private int cellIndex(double longitude, double latitude) {
+        return cellColumn(longitude) + (side - 1) * cellRow(latitude);
+    }
+
+    /*
+     * (non-Javadoc)
      * 
-     * @param p
-     *            The PointGeo object that will be checked.
-     * @return Whether the given PointGeo object's coordinates are within the
-     *         DEM.
+     * @see
+     * ch.epfl.imhof.dem.DigitalElevationModel#contains(ch.epfl.imhof.PointGeo)
      */
+    @Override
     public boolean contains(PointGeo p) {
-        return p.latitude() >= bl.latitude() && p.longitude() >= bl.longitude()
-                && p.latitude() <= tr.latitude()
-                && p.longitude() <= tr.longitude();
+        return contains(p.longitude(), p.latitude());
     }
 
+    /**
+     * Returns whether the DEM contains the point of given longitude and
+     * latitude.
+     * 
+     * @param longitude
+     *            the longitude of the point, in radians
+     * @param latitude
+     *            the latitude of the point, in radians
+     * @return Whether the given coordinates are within the DEM.
+     */
+    public boolean contains(double longitude, double latitude) {
+        return latitude >= bl.latitude() && longitude >= bl.longitude()
+                && latitude <= tr.latitude() && longitude <= tr.longitude();
+    }
+
+    /**
+     * The cosines precomputed for a given light vector.
+     */
+    private static final class ShadeGrid {
+        private final Vector3 light;
+        private final float[] shades;
+        private final static double EPSILON = 1e-12;
+
+        private ShadeGrid(Vector3 light, float[] shades) {
+            this.light = light;
+            this.shades = shades;
+        }
+
+        private boolean isLitBy(Vector3 lightSource) {
+            return Math.abs(light.x() - lightSource.x()) < EPSILON
+                    && Math.abs(light.y() - lightSource.y()) < EPSILON
+                    && Math.abs(light.z() - lightSource.z()) < EPSILON;
+        }
+    }
 }
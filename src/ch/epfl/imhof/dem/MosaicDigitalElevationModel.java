@@ -0,0 +1,304 @@
+package ch.epfl.imhof.dem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ch.epfl.imhof.PointGeo;
+import ch.epfl.imhof.Vector3;
+
+/**
+ * MosaicDigitalElevationModel is a DEM made up of all the HGT files of a
+ * directory, each of which covers 1° of latitude by 1° of longitude. The files
+ * are indexed by the position of their bottom left corner when the mosaic is
+ * constructed, but they are only mapped into memory the first time a point
+ * they contain is requested. Only the most recently used files are kept
+ * mapped.
+ * <p>
+ * Since two neighboring HGT files share their common border, the normal of
+ * any point of the mosaic can be computed from the samples of a single file,
+ * and the normals are continuous across the borders of the files.
+ * <p>
+ * Like the HGT files, the mosaic may precompute the shades of its files for
+ * a light vector, which is worth it when the same zone is shaded many times.
+ *
+ * @author Maxime Kjaer (250694)
+ * @author Timote Vaucher (246532)
+ */
+public final class MosaicDigitalElevationModel implements
+        DigitalElevationModel {
+    private final Map<Long, File> files = new HashMap<>();
+    private final LinkedHashMap<Long, HGTDigitalElevationModel> mappedTiles;
+    // The light for which the shades of the files are precomputed, if any
+    private Vector3 precomputedLight = null;
+
+    private final static int DEFAULT_MAX_MAPPED_TILES = 16;
+    private final static Pattern hgtPattern = Pattern
+            .compile("^(?<latOrien>[NS])(?<latCoor>\\d{2})(?<lonOrien>[EW])(?<lonCoor>\\d{3})\\.hgt$");
+    private final static double oneDegToRad = Math.toRadians(1);
+
+    /**
+     * Constructs a new MosaicDigitalElevationModel from the HGT files of a
+     * directory, keeping at most 16 of them mapped at once.
+     *
+     * @param directory
+     *            A directory containing .hgt files
+     * @throws IllegalArgumentException
+     *             If the directory can't be listed.
+     */
+    public MosaicDigitalElevationModel(File directory) {
+        this(directory, DEFAULT_MAX_MAPPED_TILES);
+    }
+
+    /**
+     * Constructs a new MosaicDigitalElevationModel from the HGT files of a
+     * directory. Files whose name doesn't follow the HGT naming conditions are
+     * ignored.
+     *
+     * @param directory
+     *            A directory containing .hgt files
+     * @param maxMappedTiles
+     *            The maximum number of files that are kept mapped into memory
+     *            at once; the least recently used file is unmapped when this
+     *            number is exceeded.
+     * @throws IllegalArgumentException
+     *             If the directory can't be listed.
+     * @throws IllegalArgumentException
+     *             If maxMappedTiles is smaller than 1.
+     */
+    public MosaicDigitalElevationModel(File directory, int maxMappedTiles) {
+        if (maxMappedTiles < 1)
+            throw new IllegalArgumentException(
+                    "At least one tile must be kept mapped, was : "
+                            + maxMappedTiles);
+        File[] content = directory.listFiles();
+        if (content == null)
+            throw new IllegalArgumentException("Can't list the directory "
+                    + directory);
+
+        for (File file : content) {
+            Matcher m = hgtPattern.matcher(file.getName());
+            if (m.matches()) {
+                int lat = (m.group("latOrien").equals("N") ? 1 : -1)
+                        * Integer.parseInt(m.group("latCoor"));
+                int lon = (m.group("lonOrien").equals("E") ? 1 : -1)
+                        * Integer.parseInt(m.group("lonCoor"));
+                files.put(key(lon, lat), file);
+            }
+        }
+
+        // Access-ordered, so that the eldest entry is the least recently used
+        mappedTiles = new LinkedHashMap<Long, HGTDigitalElevationModel>(16,
+                0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Long, HGTDigitalElevationModel> eldest) {
+                // The tile isn't closed, as another thread might still be
+                // reading it; its mapping is released once it is collected.
+                return size() > maxMappedTiles;
+            }
+        };
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.AutoCloseable#close()
+     */
+    @Override
+    public synchronized void close() throws Exception {
+        for (HGTDigitalElevationModel tile : mappedTiles.values())
+            tile.close();
+        mappedTiles.clear();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * ch.epfl.imhof.dem.DigitalElevationModel#contains(ch.epfl.imhof.PointGeo)
+     */
+    @Override
+    public boolean contains(PointGeo p) {
+        return files.containsKey(keyFor(p.longitude(), p.latitude()));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * ch.epfl.imhof.dem.DigitalElevationModel#normalAt(ch.epfl.imhof.PointGeo)
+     */
+    @Override
+    public Vector3 normalAt(PointGeo p) throws IllegalArgumentException {
+        return tileFor(p.longitude(), p.latitude()).normalAt(p);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * ch.epfl.imhof.dem.DigitalElevationModel#elevationAt(ch.epfl.imhof.PointGeo
+     * )
+     */
+    @Override
+    public double elevationAt(PointGeo p) throws IllegalArgumentException {
+        return tileFor(p.longitude(), p.latitude()).elevationAt(p);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * ch.epfl.imhof.dem.DigitalElevationModel#sampleGrid(ch.epfl.imhof.PointGeo
+     * , ch.epfl.imhof.PointGeo, int, int, float[])
+     */
+    @Override
+    public void sampleGrid(PointGeo bl, PointGeo tr, int width, int height,
+            float[] out) throws IllegalArgumentException {
+        HGTDigitalElevationModel tile = tileFor(bl.longitude(), bl.latitude());
+        if (tile.contains(tr))
+            tile.sampleGrid(bl, tr, width, height, out);
+        else
+            DigitalElevationModel.super.sampleGrid(bl, tr, width, height, out);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see ch.epfl.imhof.dem.DigitalElevationModel#normalAt(double, double,
+     * double[])
+     */
+    @Override
+    public void normalAt(double longitude, double latitude, double[] normal)
+            throws IllegalArgumentException {
+        tileFor(longitude, latitude).normalAt(longitude, latitude, normal);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see ch.epfl.imhof.dem.DigitalElevationModel#normalsAt(double[], int,
+     * double[])
+     */
+    @Override
+    public void normalsAt(double[] lonLat, int count, double[] normals)
+            throws IllegalArgumentException {
+        double[] normal = new double[3];
+        HGTDigitalElevationModel tile = null;
+        for (int k = 0; k < count; ++k) {
+            double longitude = lonLat[2 * k], latitude = lonLat[2 * k + 1];
+            if (tile == null || !tile.contains(longitude, latitude))
+                tile = tileFor(longitude, latitude);
+            tile.normalAt(longitude, latitude, normal);
+            System.arraycopy(normal, 0, normals, 3 * k, 3);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see ch.epfl.imhof.dem.DigitalElevationModel#shadesAt(double[], int,
+     * ch.epfl.imhof.Vector3, double[])
+     */
+    @Override
+    public void shadesAt(double[] lonLat, int count, Vector3 lightSource,
+            double[] shades) throws IllegalArgumentException {
+        // Consecutive points of the same tile are handed over together, so
+        // that the tiles can use their precomputed shades, if any.
+        double[] runLonLat = new double[2 * count];
+        double[] runShades = new double[count];
+        int start = 0;
+        while (start < count) {
+            HGTDigitalElevationModel tile = tileFor(lonLat[2 * start],
+                    lonLat[2 * start + 1]);
+            int end = start + 1;
+            while (end < count
+                    && tile.contains(lonLat[2 * end], lonLat[2 * end + 1]))
+                ++end;
+            System.arraycopy(lonLat, 2 * start, runLonLat, 0, 2 * (end - start));
+            tile.shadesAt(runLonLat, end - start, lightSource, runShades);
+            System.arraycopy(runShades, 0, shades, start, end - start);
+            start = end;
+        }
+    }
+
+    /**
+     * Precomputes the shades of the files of the mosaic for the given light
+     * vector, like HGTDigitalElevationModel.precomputeShades, so that
+     * shadesAt only has to read them when it is called with the same light
+     * vector. The shades of a file are precomputed when it is mapped, and
+     * again when it is mapped back after having been unmapped. They take 4
+     * bytes per cell of every mapped file (about 52 MB for a file of 3601
+     * points by side).
+     * 
+     * @param lightSource
+     *            The direction of the light source, a 3D Vector.
+     */
+    @Override
+    public synchronized void precomputeShades(Vector3 lightSource) {
+        Vector3 light = lightSource.normalized();
+        for (HGTDigitalElevationModel tile : mappedTiles.values())
+            tile.precomputeShades(light);
+        precomputedLight = light;
+    }
+
+    /**
+     * Returns the tile containing the given point, mapping it if needed.
+     *
+     * @throws IllegalArgumentException
+     *             if no file of the directory contains the point
+     * @throws UncheckedIOException
+     *             if the file can't be read
+     */
+    private synchronized HGTDigitalElevationModel tileFor(double longitude,
+            double latitude) {
+        long key = keyFor(longitude, latitude);
+        HGTDigitalElevationModel tile = mappedTiles.get(key);
+        if (tile == null) {
+            File file = files.get(key);
+            if (file == null)
+                throw new IllegalArgumentException(
+                        "No HGT file contains the point " + latitude + " lat "
+                                + longitude + " lon");
+            try {
+                tile = new HGTDigitalElevationModel(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (precomputedLight != null)
+                tile.precomputeShades(precomputedLight);
+            mappedTiles.put(key, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Returns the key of the tile that contains the given point. The borders
+     * of the tiles are computed exactly as HGTDigitalElevationModel computes
+     * them, so that the tile's contains method agrees with this one.
+     */
+    private static long keyFor(double longitude, double latitude) {
+        return key(degreeFor(longitude), degreeFor(latitude));
+    }
+
+    private static int degreeFor(double angle) {
+        int degree = (int) Math.floor(Math.toDegrees(angle));
+        if (angle < Math.toRadians(degree))
+            --degree;
+        else if (angle > Math.toRadians(degree) + oneDegToRad)
+            ++degree;
+        return degree;
+    }
+
+    private static long key(int longitude, int latitude) {
+        return ((long) longitude << 32) | (latitude & 0xFFFFFFFFL);
+    }
+}
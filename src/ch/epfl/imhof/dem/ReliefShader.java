@@ -1,14 +1,16 @@
 package ch.epfl.imhof.dem;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.ConvolveOp;
-import java.awt.image.Kernel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.function.Function;
 
 import ch.epfl.imhof.PointGeo;
 import ch.epfl.imhof.Vector3;
 import ch.epfl.imhof.geometry.Point;
 import ch.epfl.imhof.painting.Color;
+import ch.epfl.imhof.painting.GaussianBlur;
+import ch.epfl.imhof.projection.InterpolatedInverse;
 import ch.epfl.imhof.projection.Projection;
 
 /**
@@ -20,29 +22,65 @@ import ch.epfl.imhof.projection.Projection;
  */
 public final class ReliefShader {
     private final Projection projection;
-    private final HGTDigitalElevationModel model;
+    private final DigitalElevationModel model;
     private final Vector3 lightSource;
+    private final int parallelism;
 
     private final double DELTA = 1e-5;
+    private final static int TILE_HEIGHT = 64; // in pixels
+    // The biggest error of the interpolated inverse projection of the
+    // pixels, in radians (a few millimetres on the ground, far below the
+    // spacing of the samples of the DEMs)
+    private final static double INVERSE_ERROR = 1e-9;
 
     /**
-     * Constructs a new ReliefShader object
+     * Constructs a new ReliefShader object, which shades the relief on a single
+     * thread.
      * 
      * @param projection
      *            The projection that we should use @see
      *            ch.epfl.imhof.projection
      * @param model
-     *            The HGTDigitalElevationModel that we'll use to create the
+     *            The DigitalElevationModel that we'll use to create the
      *            shading
      * @param lightSource
      *            The direction of the light source, a 3D Vector.
      */
-    public ReliefShader(Projection projection, HGTDigitalElevationModel model,
+    public ReliefShader(Projection projection, DigitalElevationModel model,
             Vector3 lightSource) {
+        this(projection, model, lightSource, 1);
+    }
+
+    /**
+     * Constructs a new ReliefShader object, which splits the image into tiles
+     * of rows that are shaded in parallel, and blurs its rows and columns in
+     * parallel. The result is exactly the same as the one of the sequential
+     * shader.
+     * 
+     * @param projection
+     *            The projection that we should use @see
+     *            ch.epfl.imhof.projection
+     * @param model
+     *            The DigitalElevationModel that we'll use to create the
+     *            shading
+     * @param lightSource
+     *            The direction of the light source, a 3D Vector.
+     * @param parallelism
+     *            The number of threads used to shade the relief (1 means that
+     *            the relief is shaded sequentially).
+     * @throws IllegalArgumentException
+     *             if the parallelism is smaller than 1
+     */
+    public ReliefShader(Projection projection, DigitalElevationModel model,
+            Vector3 lightSource, int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException(
+                    "Parallelism must be at least 1, was : " + parallelism);
         this.projection = projection;
         this.model = model;
         this.lightSource = lightSource.normalized();
         // so the scalar product of 2 unitary vectors => cos
+        this.parallelism = parallelism;
     }
 
     /**
@@ -62,91 +100,228 @@ public final class ReliefShader {
      * @throws IllegalArgumentException
      *             if the height or width are negative
      * @throws IllegalArgumentException
-     *             if the bottom left or top right points aren't contained in
-     *             the HGTDigitalElevationModel
+     *             if the DigitalElevationModel doesn't cover the image and
+     *             the margin blurred with it
      * @throws IllegalArgumentException
      *             if the blur radius is negative.
+     * @see #covers(Point, Point, int, int, double)
      */
     public BufferedImage shadedRelief(Point bl, Point tr, int width,
             int height, double blurRadius) {
+        return shadedRows(bl, tr, width, height, blurRadius, 0, height);
+    }
+
+    /**
+     * Creates an image of the rows [firstRow, firstRow + rows[ of the image of
+     * the shaded mountain sides. The rows are blurred with the rows around
+     * them, so that they are the same as the ones of the whole image.
+     * 
+     * @param bl
+     *            the bottom left point of the whole image
+     * @param tr
+     *            the top right point of the whole image
+     * @param width
+     *            the width of the image, in pixels
+     * @param height
+     *            the height of the whole image, in pixels
+     * @param blurRadius
+     *            the radius of the blur, in pixels
+     * @param firstRow
+     *            the first row to shade, from the top of the image
+     * @param rows
+     *            the number of rows to shade
+     * @return An image of the given rows of the shaded mountain sides.
+     * @throws IllegalArgumentException
+     *             if the height or width are negative, or if the rows aren't
+     *             within the image
+     * @throws IllegalArgumentException
+     *             if the DigitalElevationModel doesn't cover the image and
+     *             the margin blurred with it
+     * @throws IllegalArgumentException
+     *             if the blur radius is negative.
+     * @see #covers(Point, Point, int, int, double)
+     */
+    public BufferedImage shadedRows(Point bl, Point tr, int width,
+            int height, double blurRadius, int firstRow, int rows) {
         if (height < 0 || width < 0)
             throw new IllegalArgumentException(
                     "Width and height must be bigger than 0");
-        PointGeo blGeo = projection.inverse(bl);
-        PointGeo trGeo = projection.inverse(tr);
-        if (!model.contains(blGeo) || !model.contains(trGeo))
+        if (firstRow < 0 || rows < 0 || firstRow + rows > height)
+            throw new IllegalArgumentException("The rows " + firstRow + " to "
+                    + (firstRow + rows) + " aren't within the image");
+        if (!covers(bl, tr, width, height, blurRadius)) {
+            PointGeo blGeo = projection.inverse(bl);
+            PointGeo trGeo = projection.inverse(tr);
             throw new IllegalArgumentException(
                     "The model doesn't contain the whole zone you want to draw : "
                             + blGeo.latitude() + " lat " + blGeo.longitude()
                             + " lon " + trGeo.latitude() + " lat "
                             + trGeo.longitude() + " lon");
-        if (blurRadius < 0)
-            throw new IllegalArgumentException(
-                    "Variance (aka blur radius) cannot be negative, was : "
-                            + blurRadius);
-
-        if (blurRadius < DELTA)
-            return brutRelief(bl, tr, width, height, 0);
-
-        Kernel kernel = gaussianBlurKernel(blurRadius);
-        int overflowSize = kernel.getWidth() / 2;
-        return bluredRelief(kernel,
-                brutRelief(bl, tr, width, height, overflowSize), width, height,
-                overflowSize);
-    }
-
-    private BufferedImage brutRelief(Point bl, Point tr, int width, int height,
-            int overflowSize) {
+        }
 
+        GaussianBlur blur = blur(blurRadius);
+        int overflowSize = blur == null ? 0 : blur.support();
         Function<Point, Point> projectedToImage = Point
                 .alignedCoordinateChange(new Point(overflowSize, height
                         + overflowSize), bl, new Point(width + overflowSize,
                         overflowSize), tr);
 
-        int newWidth = width + 2 * overflowSize;
-        int newHeight = height + 2 * overflowSize;
+        // The step of the grid of the inverse projection is chosen for the
+        // whole image, so that every strip of rows gives the same pixels
+        int step = InterpolatedInverse.step(projection, projectedToImage,
+                width + 2 * overflowSize, height + 2 * overflowSize,
+                INVERSE_ERROR);
 
-        BufferedImage brut = new BufferedImage(newWidth, newHeight,
+        // The cosines of the rows and of their margin, which are blurred
+        // together, the first one being the row firstRow of the image with
+        // its margin
+        int shadesWidth = width + 2 * overflowSize;
+        int shadesRows = rows + 2 * overflowSize;
+        float[] shades = new float[shadesWidth * shadesRows];
+        BufferedImage relief = new BufferedImage(width, rows,
                 BufferedImage.TYPE_INT_RGB);
-        for (int i = 0; i < newWidth; ++i) {
-            for (int j = 0; j < newHeight; ++j) {
-                Point point = projectedToImage.apply(new Point(i, j));
-                Vector3 normal = model.normalAt(projection.inverse(point));
-                double cosAngle = normal.scalarProduct(lightSource);
-                double rg = (cosAngle + 1) / 2d;
-                brut.setRGB(i, j, Color.rgb(rg, rg, (0.7 * cosAngle + 1) / 2d)
-                        .packedRBG());
-            }
+        ForkJoinPool pool = parallelism == 1 ? null : new ForkJoinPool(
+                parallelism);
+        try {
+            run(pool, shadesRows, (first, count) -> shades(projectedToImage,
+                    step, shades, shadesWidth, firstRow, first, count));
+            if (blur != null)
+                blur.blur(shades, shadesWidth, shadesRows, parallelism);
+            run(pool, rows, (first, count) -> colors(shades, shadesWidth,
+                    overflowSize, relief, first, count));
+        } finally {
+            if (pool != null)
+                pool.shutdown();
         }
+        return relief;
+    }
+
+    /**
+     * Returns whether the DigitalElevationModel contains every point that is
+     * shaded to create the image of a zone: the zone itself and the margin
+     * around it, which is blurred with it.
+     * 
+     * @param bl
+     *            the bottom left point of the image
+     * @param tr
+     *            the top right point of the image
+     * @param width
+     *            the width of the image, in pixels
+     * @param height
+     *            the height of the image, in pixels
+     * @param blurRadius
+     *            the radius of the blur, in pixels
+     * @return true if the image can be shaded, false otherwise
+     * @throws IllegalArgumentException
+     *             if the blur radius is negative.
+     */
+    public boolean covers(Point bl, Point tr, int width, int height,
+            double blurRadius) {
+        GaussianBlur blur = blur(blurRadius);
+        int overflowSize = blur == null ? 0 : blur.support();
+        double marginX = overflowSize * (tr.x() - bl.x()) / Math.max(width, 1);
+        double marginY = overflowSize * (tr.y() - bl.y())
+                / Math.max(height, 1);
+        double left = bl.x() - marginX, right = tr.x() + marginX;
+        double bottom = bl.y() - marginY, top = tr.y() + marginY;
+        for (Point corner : new Point[] { new Point(left, bottom),
+                new Point(left, top), new Point(right, bottom),
+                new Point(right, top) })
+            if (!model.contains(projection.inverse(corner)))
+                return false;
+        return true;
+    }
 
-        return brut;
+    /**
+     * Returns the blur of the given radius, or null if it is too small to
+     * change the relief.
+     */
+    private GaussianBlur blur(double blurRadius) {
+        if (blurRadius < 0)
+            throw new IllegalArgumentException(
+                    "Variance (aka blur radius) cannot be negative, was : "
+                            + blurRadius);
+        return blurRadius < DELTA ? null : new GaussianBlur(blurRadius);
     }
 
-    private Kernel gaussianBlurKernel(double blurRadius) {
-        double sigma = blurRadius / 3;
-        int middle = (int) Math.ceil(blurRadius);
-        int n = 2 * middle + 1;
-        float[] data = new float[n];
-        float sum = 0;
-        for (int i = 0; i < n; ++i) {
-            int cord = i - middle;
-            data[i] = (float) Math.exp(-(cord * cord) / (2 * sigma * sigma));
-            sum += data[i];
+    /**
+     * Computes the cosines of the rows [first, first + count[ of the shades,
+     * the first row of which is the row firstRow of the image (the
+     * coordinates of which include the overflow), whose pixels are inverse
+     * projected on a grid of the given step.
+     */
+    private void shades(Function<Point, Point> projectedToImage, int step,
+            float[] shades, int width, int firstRow, int first, int count) {
+        InterpolatedInverse inverse = new InterpolatedInverse(projection,
+                projectedToImage, width, step);
+        double[] lonLat = new double[2 * width];
+        double[] cosines = new double[width];
+        for (int j = first; j < first + count; ++j) {
+            inverse.inverseRow(firstRow + j, lonLat);
+            model.shadesAt(lonLat, width, lightSource, cosines);
+            for (int i = 0; i < width; ++i)
+                shades[j * width + i] = (float) cosines[i];
         }
-        for (int i = 0; i < n; ++i)
-            data[i] = data[i] / sum;
-        return new Kernel(n, 1, data);
     }
 
-    private BufferedImage bluredRelief(Kernel kernel, BufferedImage brutRelief,
-            int width, int height, int overflowSize) {
-        ConvolveOp transformerX = new ConvolveOp(kernel, ConvolveOp.EDGE_NO_OP,
-                null);
-        ConvolveOp transformerY = new ConvolveOp(new Kernel(1,
-                kernel.getWidth(), kernel.getKernelData(null)),
-                ConvolveOp.EDGE_NO_OP, null);
-        return transformerY.filter(transformerX.filter(brutRelief, null), null)
-                .getSubimage(overflowSize, overflowSize, width, height);
+    /**
+     * Colors the rows [first, first + count[ of the relief with the cosines
+     * of the shades, without their margin.
+     */
+    private static void colors(float[] shades, int shadesWidth,
+            int overflowSize, BufferedImage relief, int first, int count) {
+        int width = relief.getWidth();
+        int[] rgb = new int[width];
+        for (int j = first; j < first + count; ++j) {
+            int row = (j + overflowSize) * shadesWidth + overflowSize;
+            for (int i = 0; i < width; ++i) {
+                double cosAngle = shades[row + i];
+                double rg = (cosAngle + 1) / 2d;
+                rgb[i] = Color.packedRGB(rg, rg, (0.7 * cosAngle + 1) / 2d);
+            }
+            relief.setRGB(0, j, width, 1, rgb, 0, width);
+        }
+    }
+
+    /**
+     * A computation of the rows [first, first + count[ of an image.
+     */
+    @FunctionalInterface
+    private interface Rows {
+        void compute(int first, int count);
     }
 
-}
\ No newline at end of file
+    private static void run(ForkJoinPool pool, int rows, Rows computation) {
+        if (pool == null || rows <= TILE_HEIGHT)
+            computation.compute(0, rows);
+        else
+            pool.invoke(new TileTask(computation, 0, rows));
+    }
+
+    /**
+     * A task that computes a range of rows, splitting it in halves until it
+     * isn't higher than a tile.
+     */
+    private static final class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Rows computation;
+        private final int first, count;
+
+        private TileTask(Rows computation, int first, int count) {
+            this.computation = computation;
+            this.first = first;
+            this.count = count;
+        }
+
+        @Override
+        protected void compute() {
+            if (count <= TILE_HEIGHT) {
+                computation.compute(first, count);
+            } else {
+                int half = count / 2;
+                invokeAll(new TileTask(computation, first, half),
+                        new TileTask(computation, first + half, count - half));
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package ch.epfl.imhof.geometry;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A static R-tree over a set of bounding boxes, packed with the
+ * Sort-Tile-Recursive method: the boxes are sorted into vertical slices by
+ * the x coordinate of their center, and each slice is sorted by the y
+ * coordinate of their center before being cut into leaves. The upper levels
+ * group consecutive nodes, which the packing keeps close to each other.
+ * <p>
+ * The tree is built once and kept in flat arrays, so that a search only
+ * visits the nodes intersecting the searched box.
+ *
+ * @author Maxime Kjaer (250694)
+ * @author Timote Vaucher (246532)
+ */
+public final class PackedRTree {
+    private static final int NODE_CAPACITY = 16;
+
+    private final int size;
+    // The indices of the boxes, in the order of the leaves
+    private final int[] order;
+    // The boxes, in the order of the leaves
+    private final double[] boxes;
+    // The boxes of the nodes, from the leaves to the root
+    private final double[][] levels;
+
+    /**
+     * Builds the tree of the given bounding boxes. The box of index i is
+     * given by the minimal x, the minimal y, the maximal x and the maximal y
+     * at the indices 4i to 4i+3.
+     *
+     * @param boxes
+     *            the bounding boxes to index
+     * @throws IllegalArgumentException
+     *             if the length of the array isn't a multiple of 4
+     */
+    public PackedRTree(double[] boxes) {
+        if (boxes.length % 4 != 0)
+            throw new IllegalArgumentException(
+                    "Each box must be given by four coordinates");
+        size = boxes.length / 4;
+        order = sortTileRecursive(boxes, size);
+        this.boxes = new double[boxes.length];
+        for (int i = 0; i < size; ++i)
+            System.arraycopy(boxes, 4 * order[i], this.boxes, 4 * i, 4);
+
+        int levelCount = 1;
+        for (int count = nodeCount(size); count > 1; count = nodeCount(count))
+            ++levelCount;
+        levels = new double[levelCount][];
+        double[] children = this.boxes;
+        for (int l = 0; l < levelCount; ++l) {
+            levels[l] = group(children);
+            children = levels[l];
+        }
+    }
+
+    /**
+     * Getter for the number of boxes in the tree.
+     *
+     * @return the number of boxes
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns true if all the boxes of the tree are within the given box.
+     *
+     * @param minX
+     *            the minimal x of the box
+     * @param minY
+     *            the minimal y of the box
+     * @param maxX
+     *            the maximal x of the box
+     * @param maxY
+     *            the maximal y of the box
+     * @return true if the box contains all the boxes of the tree
+     */
+    public boolean isWithin(double minX, double minY, double maxX,
+            double maxY) {
+        double[] root = levels[levels.length - 1];
+        return size == 0 || minX <= root[0] && minY <= root[1]
+                && root[2] <= maxX && root[3] <= maxY;
+    }
+
+    /**
+     * Gives the index of every box intersecting the given box to the action,
+     * in no particular order. The boxes are closed, so that touching boxes
+     * intersect.
+     *
+     * @param minX
+     *            the minimal x of the box
+     * @param minY
+     *            the minimal y of the box
+     * @param maxX
+     *            the maximal x of the box
+     * @param maxY
+     *            the maximal y of the box
+     * @param action
+     *            the action receiving the indices of the boxes
+     */
+    public void search(double minX, double minY, double maxX, double maxY,
+            IntConsumer action) {
+        if (size > 0)
+            search(levels.length - 1, 0, minX, minY, maxX, maxY, action);
+    }
+
+    private void search(int level, int node, double minX, double minY,
+            double maxX, double maxY, IntConsumer action) {
+        if (!intersects(levels[level], node, minX, minY, maxX, maxY))
+            return;
+        int first = node * NODE_CAPACITY;
+        if (level == 0) {
+            int last = Math.min(first + NODE_CAPACITY, size);
+            for (int i = first; i < last; ++i)
+                if (intersects(boxes, i, minX, minY, maxX, maxY))
+                    action.accept(order[i]);
+        } else {
+            int last = Math.min(first + NODE_CAPACITY,
+                    levels[level - 1].length / 4);
+            for (int child = first; child < last; ++child)
+                search(level - 1, child, minX, minY, maxX, maxY, action);
+        }
+    }
+
+    private static boolean intersects(double[] boxes, int i, double minX,
+            double minY, double maxX, double maxY) {
+        return boxes[4 * i] <= maxX && minX <= boxes[4 * i + 2]
+                && boxes[4 * i + 1] <= maxY && minY <= boxes[4 * i + 3];
+    }
+
+    private static int nodeCount(int children) {
+        return Math.max(1, (children + NODE_CAPACITY - 1) / NODE_CAPACITY);
+    }
+
+    /**
+     * Returns the boxes of the nodes grouping the given boxes by
+     * NODE_CAPACITY.
+     */
+    private static double[] group(double[] children) {
+        int childCount = children.length / 4;
+        double[] nodes = new double[4 * nodeCount(childCount)];
+        for (int n = 0; n < nodes.length / 4; ++n) {
+            double minX = Double.POSITIVE_INFINITY, minY = minX;
+            double maxX = Double.NEGATIVE_INFINITY, maxY = maxX;
+            int last = Math.min((n + 1) * NODE_CAPACITY, childCount);
+            for (int c = n * NODE_CAPACITY; c < last; ++c) {
+                minX = Math.min(minX, children[4 * c]);
+                minY = Math.min(minY, children[4 * c + 1]);
+                maxX = Math.max(maxX, children[4 * c + 2]);
+                maxY = Math.max(maxY, children[4 * c + 3]);
+            }
+            nodes[4 * n] = minX;
+            nodes[4 * n + 1] = minY;
+            nodes[4 * n + 2] = maxX;
+            nodes[4 * n + 3] = maxY;
+        }
+        return nodes;
+    }
+
+    /**
+     * Returns the indices of the boxes in the order of the leaves. Every
+     * slice holds a whole number of leaves, so that only the last leaf can be
+     * partly filled.
+     */
+    private static int[] sortTileRecursive(double[] boxes, int size) {
+        long[] keys = new long[size];
+        int leafCount = nodeCount(size);
+        int sliceCount = (int) Math.ceil(Math.sqrt(leafCount));
+        int sliceSize = NODE_CAPACITY
+                * ((leafCount + sliceCount - 1) / sliceCount);
+
+        int[] byX = sortedByCenter(boxes, size, 0, keys);
+        int[] order = new int[size];
+        for (int from = 0; from < size; from += sliceSize) {
+            int to = Math.min(from + sliceSize, size);
+            int[] slice = Arrays.copyOfRange(byX, from, to);
+            double[] sliceBoxes = new double[4 * slice.length];
+            for (int k = 0; k < slice.length; ++k)
+                System.arraycopy(boxes, 4 * slice[k], sliceBoxes, 4 * k, 4);
+            int[] byY = sortedByCenter(sliceBoxes, slice.length, 1, keys);
+            for (int k = 0; k < slice.length; ++k)
+                order[from + k] = slice[byY[k]];
+        }
+        return order;
+    }
+
+    /**
+     * Returns the indices of the first boxes sorted by the center of the
+     * given axis (0 for x, 1 for y).
+     */
+    private static int[] sortedByCenter(double[] boxes, int size, int axis,
+            long[] keys) {
+        double[] centers = new double[size];
+        for (int i = 0; i < size; ++i)
+            centers[i] = boxes[4 * i + axis] + boxes[4 * i + axis + 2];
+        // Sorts keys made of the rank of the center and of the index, which
+        // avoids boxing the indices
+        double[] sortedCenters = centers.clone();
+        Arrays.sort(sortedCenters);
+        for (int i = 0; i < size; ++i) {
+            long rank = Arrays.binarySearch(sortedCenters, centers[i]);
+            keys[i] = rank << 32 | i;
+        }
+        Arrays.sort(keys, 0, size);
+        int[] sorted = new int[size];
+        for (int i = 0; i < size; ++i)
+            sorted[i] = (int) keys[i];
+        return sorted;
+    }
+}
@@ -1,7 +1,9 @@
 package ch.epfl.imhof.geometry;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
 
 /**
@@ -13,6 +15,9 @@ import java.util.List;
  */
 public abstract class PolyLine {
     private final List<Point> points;
+    // The last simplification, which is the one asked again by every drawing
+    // of the polyline on a canvas
+    private volatile Simplification simplification;
 
     /**
      * Constructs a polyline from a list of points.
@@ -53,6 +58,126 @@ public abstract class PolyLine {
         return points.get(0);
     }
 
+    /**
+     * Returns the polyline simplified with the Douglas-Peucker algorithm: the
+     * points closer than the tolerance to the segment joining the points kept
+     * around them are removed. The first point of a closed polyline and the
+     * point the farthest from it are always kept. The last simplification is
+     * cached.
+     * 
+     * @param tolerance
+     *            the largest distance between the polyline and its
+     *            simplification
+     * @return the simplified polyline, of the same kind as this one (this one
+     *         if no point is removed)
+     * @throws IllegalArgumentException
+     *             if the tolerance is negative
+     */
+    public PolyLine simplified(double tolerance) {
+        if (!(tolerance >= 0))
+            throw new IllegalArgumentException(
+                    "The tolerance must be positive, was : " + tolerance);
+        Simplification last = simplification;
+        if (last != null && last.tolerance == tolerance)
+            return last.polyLine;
+
+        int size = points.size();
+        PolyLine simplified = this;
+        if (size > 2) {
+            boolean[] kept = new boolean[size];
+            kept[0] = true;
+            if (isClosed()) {
+                Point origin = points.get(0);
+                int farthest = 0;
+                double farthestDistance = 0;
+                for (int i = 1; i < size; ++i) {
+                    double distance = squaredDistanceToSegment(points.get(i),
+                            origin, origin);
+                    if (distance > farthestDistance) {
+                        farthest = i;
+                        farthestDistance = distance;
+                    }
+                }
+                kept[farthest] = true;
+                keepFarthest(points, 0, farthest, tolerance, kept);
+                keepFarthest(points, farthest, size, tolerance, kept);
+            } else {
+                kept[size - 1] = true;
+                keepFarthest(points, 0, size - 1, tolerance, kept);
+            }
+
+            List<Point> keptPoints = new ArrayList<>();
+            for (int i = 0; i < size; ++i)
+                if (kept[i])
+                    keptPoints.add(points.get(i));
+            if (keptPoints.size() < size)
+                simplified = isClosed() ? new ClosedPolyLine(keptPoints)
+                        : new OpenPolyLine(keptPoints);
+        }
+        simplification = new Simplification(tolerance, simplified);
+        return simplified;
+    }
+
+    /**
+     * Keeps the points between the points first and last (excluded) that are
+     * farther than the tolerance from the simplified polyline. The index size
+     * stands for the first point, which closes a closed polyline. The
+     * segments are split with an explicit stack, as the polylines of the
+     * coasts and of the rivers can be very long.
+     */
+    private static void keepFarthest(List<Point> points, int first, int last,
+            double tolerance, boolean[] kept) {
+        double squaredTolerance = tolerance * tolerance;
+        Deque<int[]> segments = new ArrayDeque<>();
+        segments.push(new int[] { first, last });
+        while (!segments.isEmpty()) {
+            int[] segment = segments.pop();
+            Point a = points.get(segment[0]);
+            Point b = points.get(segment[1] % points.size());
+            int farthest = -1;
+            double farthestDistance = squaredTolerance;
+            for (int i = segment[0] + 1; i < segment[1]; ++i) {
+                double distance = squaredDistanceToSegment(points.get(i), a, b);
+                if (distance > farthestDistance) {
+                    farthest = i;
+                    farthestDistance = distance;
+                }
+            }
+            if (farthest >= 0) {
+                kept[farthest] = true;
+                segments.push(new int[] { segment[0], farthest });
+                segments.push(new int[] { farthest, segment[1] });
+            }
+        }
+    }
+
+    /**
+     * Returns the square of the distance between a point and the segment
+     * [a, b], which can be reduced to a point.
+     */
+    private static double squaredDistanceToSegment(Point p, Point a, Point b) {
+        double dx = b.x() - a.x(), dy = b.y() - a.y();
+        double squaredLength = dx * dx + dy * dy;
+        double t = squaredLength == 0 ? 0 : ((p.x() - a.x()) * dx + (p.y() - a
+                .y()) * dy) / squaredLength;
+        t = Math.max(0, Math.min(1, t));
+        double ex = a.x() + t * dx - p.x(), ey = a.y() + t * dy - p.y();
+        return ex * ex + ey * ey;
+    }
+
+    /**
+     * A simplification of the polyline, with the tolerance it was made with.
+     */
+    private static final class Simplification {
+        private final double tolerance;
+        private final PolyLine polyLine;
+
+        private Simplification(double tolerance, PolyLine polyLine) {
+            this.tolerance = tolerance;
+            this.polyLine = polyLine;
+        }
+    }
+
     /**
      * The Builder class can receive data about a polyline before instantiating
      * it.
@@ -10,8 +10,11 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 
+import ch.epfl.imhof.PointGeo;
+
 /**
  * The OSMMap (OpenStreetMaps Map) represents the actual map, a collection of
  * ways and relations.
@@ -56,12 +59,110 @@ public final class OSMMap {
         return relations;
     }
 
+    /**
+     * Returns the part of the map that may appear in the given zone, following
+     * the rules of OSMMapReader: a way is only kept if the bounding box of its
+     * nodes intersects the zone, and a relation is only kept if the bounding
+     * box of all its members intersects the zone, so that an area enclosing
+     * the zone is kept even if none of its members is. The members of the
+     * relations that are kept are left untouched.
+     * 
+     * @param bl
+     *            the bottom left corner of the zone
+     * @param tr
+     *            the top right corner of the zone
+     * @return a new OSMMap containing the ways and relations of the zone
+     * @see ch.epfl.imhof.osm.OSMMapReader#readOSMFile(String, boolean,
+     *      PointGeo, PointGeo)
+     */
+    public OSMMap zone(PointGeo bl, PointGeo tr) {
+        List<OSMWay> zoneWays = new ArrayList<>();
+        for (OSMWay way : ways)
+            if (intersects(bl, tr, boundingBox(way)))
+                zoneWays.add(way);
+
+        Map<OSMRelation, double[]> boxes = new HashMap<>();
+        List<OSMRelation> zoneRelations = new ArrayList<>();
+        for (OSMRelation relation : relations)
+            if (intersects(bl, tr, boundingBox(relation, boxes)))
+                zoneRelations.add(relation);
+        return new OSMMap(zoneWays, zoneRelations);
+    }
+
+    /**
+     * Returns the bounding box of the nodes of a way, as { minimum longitude,
+     * maximum longitude, minimum latitude, maximum latitude }, in radians.
+     */
+    static double[] boundingBox(OSMWay way) {
+        double[] box = emptyBox();
+        for (OSMNode node : way.nodes())
+            extend(box, node.position());
+        return box;
+    }
+
+    /**
+     * Returns the bounding box of all the members of a relation, memoizing it
+     * for the relations that are members of several others.
+     */
+    static double[] boundingBox(OSMRelation relation,
+            Map<OSMRelation, double[]> boxes) {
+        double[] box = boxes.get(relation);
+        if (box != null)
+            return box;
+        box = emptyBox();
+        for (OSMRelation.Member member : relation.members()) {
+            OSMEntity entity = member.member();
+            switch (member.type()) {
+            case NODE:
+                extend(box, ((OSMNode) entity).position());
+                break;
+            case WAY:
+                union(box, boundingBox((OSMWay) entity));
+                break;
+            case RELATION:
+                union(box, boundingBox((OSMRelation) entity, boxes));
+                break;
+            }
+        }
+        boxes.put(relation, box);
+        return box;
+    }
+
+    private static double[] emptyBox() {
+        return new double[] { Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY };
+    }
+
+    private static void extend(double[] box, PointGeo p) {
+        box[0] = Math.min(box[0], p.longitude());
+        box[1] = Math.max(box[1], p.longitude());
+        box[2] = Math.min(box[2], p.latitude());
+        box[3] = Math.max(box[3], p.latitude());
+    }
+
+    private static void union(double[] box, double[] other) {
+        box[0] = Math.min(box[0], other[0]);
+        box[1] = Math.max(box[1], other[1]);
+        box[2] = Math.min(box[2], other[2]);
+        box[3] = Math.max(box[3], other[3]);
+    }
+
+    /**
+     * Returns whether a bounding box intersects the zone; an empty box never
+     * does.
+     */
+    static boolean intersects(PointGeo bl, PointGeo tr, double[] box) {
+        return box[0] <= tr.longitude() && box[1] >= bl.longitude()
+                && box[2] <= tr.latitude() && box[3] >= bl.latitude();
+    }
+
     /**
      * A Builder that allows you to gradually build the OSMMap object by adding
      * nodes and relations one at a time.
      */
     public static final class Builder {
-        private HashMap<Long, OSMNode> nodes = new HashMap<>();
+        private final OSMNodeStore nodes = new OSMNodeStore();
         private HashMap<Long, OSMWay> ways = new HashMap<>();
         private HashMap<Long, OSMRelation> relations = new HashMap<>();
 
@@ -73,7 +174,36 @@ public final class OSMMap {
          *            The node that will be added to the map.
          */
         public void addNode(OSMNode newNode) {
-            nodes.put(newNode.id(), newNode);
+            nodes.add(newNode);
+        }
+
+        /**
+         * Adds an untagged node to the nodes that can be referenced by the
+         * ways and relations of the map. Only its ID and position are kept
+         * until it is requested through nodeForId.
+         * 
+         * @param id
+         *            The unique ID of the node
+         * @param longitude
+         *            The longitude of the node, in radians
+         * @param latitude
+         *            The latitude of the node, in radians
+         * @throws IllegalStateException
+         *             If the untagged nodes have been dropped
+         */
+        public void addNode(long id, double longitude, double latitude) {
+            nodes.add(id, longitude, latitude);
+        }
+
+        /**
+         * Drops the untagged nodes that haven't been requested through
+         * nodeForId, to free their memory once every way and relation of
+         * the map has been added. No untagged node can be added afterwards.
+         * 
+         * @see ch.epfl.imhof.osm.OSMNodeStore#dropUntaggedNodes()
+         */
+        public void dropUntaggedNodes() {
+            nodes.dropUntaggedNodes();
         }
 
         /**
@@ -85,8 +215,7 @@ public final class OSMMap {
          *         with that ID in the map builder yet.
          */
         public OSMNode nodeForId(long id) {
-            return nodes.get(id);
-            // TODO test because long / Long shouldn't cause problem though
+            return nodes.nodeForId(id);
         }
 
         /**
@@ -0,0 +1,216 @@
+package ch.epfl.imhof.osm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ch.epfl.imhof.PointGeo;
+
+/**
+ * Builds an OSMMap from batches of raw entities, that is entities whose
+ * members are only given by their IDs. The batches can be decoded in parallel,
+ * but they must be added to the assembler in the order of the file, and the
+ * entities of a batch must be in the order of the file once grouped by kind
+ * (nodes, then ways, then relations).
+ * <p>
+ * The entities are added following the rules of OSMMapReader: ways
+ * referencing a missing node and relations referencing a missing member are
+ * left out, and the untagged nodes that no way or relation references are
+ * dropped once the map is built.
+ *
+ * @author Maxime Kjaer (250694)
+ * @author Timote Vaucher (246532)
+ */
+public final class OSMMapAssembler {
+    private final OSMMap.Builder mapBuilder = new OSMMap.Builder();
+
+    /**
+     * Adds the entities of a batch to the map.
+     *
+     * @param batch
+     *            the batch following the ones already added
+     */
+    public void add(Batch batch) {
+        for (int i = 0; i < batch.nodeCount; ++i) {
+            long id = batch.nodeIds[i];
+            double lon = batch.nodeCoordinates[2 * i];
+            double lat = batch.nodeCoordinates[2 * i + 1];
+            String[] tags = batch.nodeTags[i];
+            if (tags == null)
+                mapBuilder.addNode(id, lon, lat);
+            else {
+                OSMNode.Builder b = new OSMNode.Builder(id, new PointGeo(lon,
+                        lat));
+                setAttributes(b, tags);
+                mapBuilder.addNode(b.build());
+            }
+        }
+
+        for (RawWay way : batch.ways) {
+            OSMWay.Builder b = new OSMWay.Builder(way.id);
+            for (long ref : way.nodeIds) {
+                OSMNode node = mapBuilder.nodeForId(ref);
+                if (node != null)
+                    b.addNode(node);
+                else
+                    b.setIncomplete();
+            }
+            setAttributes(b, way.tags);
+            if (!b.isIncomplete())
+                mapBuilder.addWay(b.build());
+        }
+
+        for (RawRelation relation : batch.relations) {
+            OSMRelation.Builder b = new OSMRelation.Builder(relation.id);
+            for (int i = 0; i < relation.memberIds.length; ++i) {
+                long ref = relation.memberIds[i];
+                OSMEntity member;
+                switch (relation.types[i]) {
+                case NODE:
+                    member = mapBuilder.nodeForId(ref);
+                    break;
+                case WAY:
+                    member = mapBuilder.wayForId(ref);
+                    break;
+                default:
+                    member = mapBuilder.relationForId(ref);
+                    break;
+                }
+                if (member != null)
+                    b.addMember(relation.types[i], relation.roles[i], member);
+                else
+                    b.setIncomplete();
+            }
+            setAttributes(b, relation.tags);
+            if (!b.isIncomplete())
+                mapBuilder.addRelation(b.build());
+        }
+    }
+
+    /**
+     * Builds the OSMMap made of the batches that have been added.
+     *
+     * @return newly built OSMMap
+     */
+    public OSMMap build() {
+        // Every way and relation that references an untagged node has been
+        // built
+        mapBuilder.dropUntaggedNodes();
+        return mapBuilder.build();
+    }
+
+    private static void setAttributes(OSMEntity.Builder b, String[] tags) {
+        if (tags != null)
+            for (int i = 0; i < tags.length; i += 2)
+                b.setAttribute(tags[i], tags[i + 1]);
+    }
+
+    /**
+     * A batch of raw entities. The tags of an entity are given as a single
+     * array of alternate keys and values, or null if it has none. The nodes
+     * are kept in primitive arrays, as they are the bulk of the files.
+     */
+    public static final class Batch {
+        private int nodeCount = 0;
+        private long[] nodeIds = new long[256];
+        private double[] nodeCoordinates = new double[512];
+        private String[][] nodeTags = new String[256][];
+        private final List<RawWay> ways = new ArrayList<>();
+        private final List<RawRelation> relations = new ArrayList<>();
+
+        /**
+         * Adds a node to the batch.
+         *
+         * @param id
+         *            The unique ID of the node
+         * @param longitude
+         *            The longitude of the node, in radians
+         * @param latitude
+         *            The latitude of the node, in radians
+         * @param tags
+         *            The keys and values of the tags of the node, or null
+         */
+        public void addNode(long id, double longitude, double latitude,
+                String[] tags) {
+            if (nodeCount == nodeIds.length) {
+                nodeIds = Arrays.copyOf(nodeIds, 2 * nodeCount);
+                nodeCoordinates = Arrays.copyOf(nodeCoordinates,
+                        4 * nodeCount);
+                nodeTags = Arrays.copyOf(nodeTags, 2 * nodeCount);
+            }
+            nodeIds[nodeCount] = id;
+            nodeCoordinates[2 * nodeCount] = longitude;
+            nodeCoordinates[2 * nodeCount + 1] = latitude;
+            nodeTags[nodeCount] = tags;
+            ++nodeCount;
+        }
+
+        /**
+         * Adds a way to the batch.
+         *
+         * @param id
+         *            The unique ID of the way
+         * @param nodeIds
+         *            The IDs of the nodes of the way, in order
+         * @param tags
+         *            The keys and values of the tags of the way, or null
+         */
+        public void addWay(long id, long[] nodeIds, String[] tags) {
+            ways.add(new RawWay(id, nodeIds, tags));
+        }
+
+        /**
+         * Adds a relation to the batch.
+         *
+         * @param id
+         *            The unique ID of the relation
+         * @param types
+         *            The types of the members of the relation
+         * @param memberIds
+         *            The IDs of the members of the relation
+         * @param roles
+         *            The roles of the members of the relation
+         * @param tags
+         *            The keys and values of the tags of the relation, or null
+         * @throws IllegalArgumentException
+         *             if the types, IDs and roles don't have the same length
+         */
+        public void addRelation(long id, OSMRelation.Member.Type[] types,
+                long[] memberIds, String[] roles, String[] tags) {
+            if (types.length != memberIds.length
+                    || roles.length != memberIds.length)
+                throw new IllegalArgumentException(
+                        "Every member must have a type, an ID and a role");
+            relations.add(new RawRelation(id, types, memberIds, roles, tags));
+        }
+    }
+
+    private static final class RawWay {
+        final long id;
+        final long[] nodeIds;
+        final String[] tags;
+
+        RawWay(long id, long[] nodeIds, String[] tags) {
+            this.id = id;
+            this.nodeIds = nodeIds;
+            this.tags = tags;
+        }
+    }
+
+    private static final class RawRelation {
+        final long id;
+        final OSMRelation.Member.Type[] types;
+        final long[] memberIds;
+        final String[] roles;
+        final String[] tags;
+
+        RawRelation(long id, OSMRelation.Member.Type[] types,
+                long[] memberIds, String[] roles, String[] tags) {
+            this.id = id;
+            this.types = types;
+            this.memberIds = memberIds;
+            this.roles = roles;
+            this.tags = tags;
+        }
+    }
+}
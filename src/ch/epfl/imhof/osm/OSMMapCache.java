@@ -0,0 +1,528 @@
+package ch.epfl.imhof.osm;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.xml.sax.SAXException;
+
+import ch.epfl.imhof.Attributes;
+import ch.epfl.imhof.PointGeo;
+
+//@formatter:off
+/**
+ * Utility class that stores an OSMMap in a compact binary file, so that the
+ * next renders of the same OSM file don't have to parse its XML again. The
+ * cache file is memory-mapped when it is read.
+ *
+ * The file is made of:
+ *   - a header: magic number, version, length and modification time of the
+ *     OSM file it was made from
+ *   - a table of the strings used as attribute keys, values and roles
+ *   - the nodes, sorted by ID, whose IDs and coordinates (in 1e-7 degrees)
+ *     are delta encoded; coordinates that aren't exactly on this grid are
+ *     stored as raw doubles
+ *   - the ways, whose nodes are delta encoded indices in the nodes
+ *   - the relations, whose members are indices in the nodes, the ways or the
+ *     relations, each relation coming after its member relations
+ * Integers are written as variable length integers (7 bits per byte), and
+ * signed ones are zigzag encoded first.
+ *
+ * @author Maxime Kjaer (250694)
+ * @author Timote Vaucher (246532)
+ */
+//@formatter:on
+public final class OSMMapCache {
+    private static final int MAGIC = 0x494D4F43; // "IMOC"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".cache", PBF_SUFFIX = ".pbf";
+    private static final double FIXED_POINT = 1e7; // units per degree
+
+    private OSMMapCache() {
+    }; // Constructor is private in order to prevent instantiation
+
+    /**
+     * Reads the OSM file like OSMMapReader, going through its cache when it is
+     * up to date. The cache is the file named like the OSM file followed by
+     * ".cache"; if it is missing, stale, corrupted or can't be read, the OSM
+     * file is parsed and the cache is written over for the next time. Files
+     * whose name ends with ".pbf" are parsed by OSMPBFReader. The cache only
+     * saves time: if it can't be read or written, the map is read all the
+     * same.
+     *
+     * @param fileName
+     *            the path of the osm or pbf file containing the map to be read
+     * @param unGZip
+     *            true if file is in gzip, false otherwise (ignored for pbf
+     *            files)
+     * @param bl
+     *            the bottom left corner of the zone
+     * @param tr
+     *            the top right corner of the zone
+     * @return newly built OSMMap, containing the entities of the zone
+     * @see ch.epfl.imhof.osm.OSMMapReader#readOSMFile(String, boolean,
+     *      PointGeo, PointGeo)
+     */
+    public static OSMMap readOSMFile(String fileName, boolean unGZip,
+            PointGeo bl, PointGeo tr) throws SAXException, IOException {
+        return readOSMFile(fileName, unGZip, bl, tr, e -> {
+        });
+    }
+
+    /**
+     * Reads the OSM file like readOSMFile(String, boolean, PointGeo,
+     * PointGeo), handing the failures to read or write its cache over to the
+     * caller, who may report them.
+     *
+     * @param fileName
+     *            the path of the osm or pbf file containing the map to be read
+     * @param unGZip
+     *            true if file is in gzip, false otherwise (ignored for pbf
+     *            files)
+     * @param bl
+     *            the bottom left corner of the zone
+     * @param tr
+     *            the top right corner of the zone
+     * @param cacheFailures
+     *            receives the failures to read or write the cache, whose
+     *            messages name the cache file
+     * @return newly built OSMMap, containing the entities of the zone
+     */
+    public static OSMMap readOSMFile(String fileName, boolean unGZip,
+            PointGeo bl, PointGeo tr, Consumer<IOException> cacheFailures)
+            throws SAXException, IOException {
+        File source = new File(fileName);
+        File cache = new File(fileName + SUFFIX);
+        OSMMap map;
+        try {
+            map = read(cache, source);
+        } catch (IOException e) {
+            // The cache is derived from the OSM file, which is parsed again
+            cacheFailures.accept(new IOException("Unable to read the cache "
+                    + cache + ": " + e.getMessage(), e));
+            map = null;
+        }
+        if (map == null) {
+            map = fileName.endsWith(PBF_SUFFIX) ? OSMPBFReader
+                    .readPBFFile(fileName) : OSMMapReader.readOSMFile(
+                    fileName, unGZip);
+            try {
+                write(map, cache, source);
+            } catch (IOException e) {
+                // The cache only saves time, the map can be drawn without it
+                cacheFailures.accept(new IOException(
+                        "Unable to write the cache " + cache + ": "
+                                + e.getMessage(), e));
+            }
+        }
+        return map.zone(bl, tr);
+    }
+
+    /**
+     * Reads a cache file, if it was made from the current version of the
+     * source file.
+     *
+     * @param cache
+     *            the cache file
+     * @param source
+     *            the OSM file from which the cache was made
+     * @return the cached OSMMap, or null if the cache file doesn't exist, if
+     *         the length or modification time of the source file changed
+     *         since it was written, or if its content is corrupted or was
+     *         written by an incompatible version
+     * @throws IOException
+     *             if the cache file can't be read
+     */
+    public static OSMMap read(File cache, File source) throws IOException {
+        if (!cache.isFile())
+            return null;
+        try (FileChannel channel = FileChannel.open(cache.toPath(),
+                StandardOpenOption.READ)) {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            if (in.remaining() < 24 || in.getInt() != MAGIC
+                    || in.getInt() != VERSION || in.getLong() != source.length()
+                    || in.getLong() != source.lastModified())
+                return null;
+            return decode(in);
+        } catch (RuntimeException e) {
+            // A corrupted cache is stale: it will be written over
+            return null;
+        }
+    }
+
+    /**
+     * Writes an OSMMap in a cache file, along with the length and
+     * modification time of the OSM file it was read from. The file is first
+     * written under a temporary name of its own in the same directory, so that
+     * a cache is never half written, even by two renders at once.
+     *
+     * @param map
+     *            the map to be cached
+     * @param cache
+     *            the cache file
+     * @param source
+     *            the OSM file from which the map was read
+     * @throws IOException
+     *             if the cache file can't be written
+     */
+    public static void write(OSMMap map, File cache, File source)
+            throws IOException {
+        File temporary = File.createTempFile(cache.getName(), ".tmp", cache
+                .getAbsoluteFile().getParentFile());
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(
+                            new FileOutputStream(temporary)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(source.length());
+                out.writeLong(source.lastModified());
+                new Encoder(map, out).encode();
+            }
+            Files.move(temporary.toPath(), cache.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            // Once moved, the temporary file doesn't exist anymore
+            Files.deleteIfExists(temporary.toPath());
+        }
+    }
+
+    /**
+     * Decodes the content of a cache file, after its header.
+     */
+    private static OSMMap decode(ByteBuffer in) {
+        String[] strings = new String[readCount(in)];
+        for (int k = 0; k < strings.length; ++k) {
+            byte[] bytes = new byte[readCount(in)];
+            in.get(bytes);
+            strings[k] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        Attributes noAttributes = new Attributes.Builder().build();
+
+        OSMNode[] nodes = new OSMNode[readCount(in)];
+        long id = 0, longitude = 0, latitude = 0;
+        for (int k = 0; k < nodes.length; ++k) {
+            long header = readVarLong(in);
+            id += unZigZag(header >>> 1);
+            PointGeo position;
+            if ((header & 1) == 0) {
+                longitude += unZigZag(readVarLong(in));
+                latitude += unZigZag(readVarLong(in));
+                position = new PointGeo(toRadians(longitude),
+                        toRadians(latitude));
+            } else
+                position = new PointGeo(in.getDouble(), in.getDouble());
+            nodes[k] = new OSMNode(id, position, readAttributes(in, strings,
+                    noAttributes));
+        }
+
+        OSMWay[] ways = new OSMWay[readCount(in)];
+        int mapWays = readCount(in);
+        id = 0;
+        for (int k = 0; k < ways.length; ++k) {
+            id += unZigZag(readVarLong(in));
+            int count = readCount(in);
+            List<OSMNode> wayNodes = new ArrayList<>(count);
+            int index = 0;
+            for (int n = 0; n < count; ++n) {
+                index += (int) unZigZag(readVarLong(in));
+                wayNodes.add(nodes[index]);
+            }
+            ways[k] = new OSMWay(id, wayNodes, readAttributes(in, strings,
+                    noAttributes));
+        }
+
+        OSMRelation[] relations = new OSMRelation[readCount(in)];
+        int mapRelations = readCount(in);
+        id = 0;
+        for (int k = 0; k < relations.length; ++k) {
+            id += unZigZag(readVarLong(in));
+            int count = readCount(in);
+            List<OSMRelation.Member> members = new ArrayList<>(count);
+            for (int m = 0; m < count; ++m) {
+                OSMRelation.Member.Type type = OSMRelation.Member.Type
+                        .values()[readCount(in)];
+                // Roles are shifted by one, 0 standing for a missing role
+                int roleIndex = readCount(in);
+                String role = roleIndex == 0 ? null : strings[roleIndex - 1];
+                int index = readCount(in);
+                OSMEntity member;
+                switch (type) {
+                case NODE:
+                    member = nodes[index];
+                    break;
+                case WAY:
+                    member = ways[index];
+                    break;
+                default:
+                    member = relations[index];
+                    break;
+                }
+                members.add(new OSMRelation.Member(type, role, member));
+            }
+            relations[k] = new OSMRelation(id, members, readAttributes(in,
+                    strings, noAttributes));
+        }
+
+        List<OSMWay> waysList = new ArrayList<>(mapWays);
+        for (int k = 0; k < mapWays; ++k)
+            waysList.add(ways[k]);
+        List<OSMRelation> relationsList = new ArrayList<>();
+        for (int k = 0; k < relations.length; ++k)
+            if ((readCount(in) & 1) == 1)
+                relationsList.add(relations[k]);
+        if (relationsList.size() != mapRelations)
+            throw new IllegalStateException("Inconsistent relations");
+        return new OSMMap(waysList, relationsList);
+    }
+
+    private static Attributes readAttributes(ByteBuffer in, String[] strings,
+            Attributes noAttributes) {
+        int count = readCount(in);
+        if (count == 0)
+            return noAttributes;
+        Attributes.Builder b = new Attributes.Builder();
+        for (int k = 0; k < count; ++k)
+            b.put(strings[readCount(in)], strings[readCount(in)]);
+        return b.build();
+    }
+
+    /**
+     * Converts an angle in 1e-7 degrees to radians. Since the OSM files give
+     * the coordinates in degrees with 7 decimals, this gives back exactly the
+     * angle that OSMMapReader computes.
+     */
+    private static double toRadians(long fixedPoint) {
+        return Math.toRadians(fixedPoint / FIXED_POINT);
+    }
+
+    private static int readCount(ByteBuffer in) {
+        long count = readVarLong(in);
+        if (count > Integer.MAX_VALUE)
+            throw new IllegalStateException("Invalid count " + count);
+        return (int) count;
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Writes the content of a cache file, after its header.
+     */
+    private static final class Encoder {
+        private final DataOutputStream out;
+        private final OSMMap map;
+        private final Map<String, Integer> strings = new LinkedHashMap<>();
+        private final Map<OSMNode, Integer> nodeIndices = new HashMap<>();
+        private final Map<OSMWay, Integer> wayIndices = new HashMap<>();
+        private final Map<OSMRelation, Integer> relationIndices;
+        private final List<OSMNode> nodes = new ArrayList<>();
+        private final List<OSMWay> ways = new ArrayList<>();
+        private final List<OSMRelation> relations = new ArrayList<>();
+
+        Encoder(OSMMap map, DataOutputStream out) {
+            this.relationIndices = new HashMap<>();
+            this.map = map;
+            this.out = out;
+        }
+
+        void encode() throws IOException {
+            // The ways of the map come first, then the ones that are only
+            // members of relations.
+            for (OSMWay way : map.ways())
+                addWay(way);
+            for (OSMRelation relation : map.relations())
+                addRelation(relation);
+            nodes.sort((a, b) -> Long.compare(a.id(), b.id()));
+            for (int k = 0; k < nodes.size(); ++k)
+                nodeIndices.put(nodes.get(k), k);
+
+            writeVarLong(strings.size());
+            for (String string : strings.keySet()) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                writeVarLong(bytes.length);
+                out.write(bytes);
+            }
+
+            writeVarLong(nodes.size());
+            long id = 0, longitude = 0, latitude = 0;
+            for (OSMNode node : nodes) {
+                PointGeo p = node.position();
+                long fixedLongitude = toFixedPoint(p.longitude());
+                long fixedLatitude = toFixedPoint(p.latitude());
+                boolean exact = toRadians(fixedLongitude) == p.longitude()
+                        && toRadians(fixedLatitude) == p.latitude();
+                writeVarLong(zigZag(node.id() - id) << 1 | (exact ? 0 : 1));
+                id = node.id();
+                if (exact) {
+                    writeVarLong(zigZag(fixedLongitude - longitude));
+                    writeVarLong(zigZag(fixedLatitude - latitude));
+                    longitude = fixedLongitude;
+                    latitude = fixedLatitude;
+                } else {
+                    out.writeDouble(p.longitude());
+                    out.writeDouble(p.latitude());
+                }
+                writeAttributes(node);
+            }
+
+            writeVarLong(ways.size());
+            writeVarLong(map.ways().size());
+            id = 0;
+            for (OSMWay way : ways) {
+                writeVarLong(zigZag(way.id() - id));
+                id = way.id();
+                writeVarLong(way.nodesCount());
+                int index = 0;
+                for (OSMNode node : way.nodes()) {
+                    int nodeIndex = nodeIndices.get(node);
+                    writeVarLong(zigZag(nodeIndex - index));
+                    index = nodeIndex;
+                }
+                writeAttributes(way);
+            }
+
+            writeVarLong(relations.size());
+            writeVarLong(map.relations().size());
+            id = 0;
+            for (OSMRelation relation : relations) {
+                writeVarLong(zigZag(relation.id() - id));
+                id = relation.id();
+                writeVarLong(relation.members().size());
+                for (OSMRelation.Member member : relation.members()) {
+                    writeVarLong(member.type().ordinal());
+                    writeVarLong(member.role() == null ? 0 : strings
+                            .get(member.role()) + 1);
+                    switch (member.type()) {
+                    case NODE:
+                        writeVarLong(nodeIndices.get(member.member()));
+                        break;
+                    case WAY:
+                        writeVarLong(wayIndices.get(member.member()));
+                        break;
+                    case RELATION:
+                        writeVarLong(relationIndices.get(member.member()));
+                        break;
+                    }
+                }
+                writeAttributes(relation);
+            }
+
+            // Which relations belong to the map, and not only to others
+            Set<OSMRelation> mapRelations = new HashSet<>(map.relations());
+            for (OSMRelation relation : relations)
+                writeVarLong(mapRelations.contains(relation) ? 1 : 0);
+        }
+
+        private void addNode(OSMNode node) {
+            if (!nodeIndices.containsKey(node)) {
+                nodeIndices.put(node, -1);
+                nodes.add(node);
+                addStrings(node);
+            }
+        }
+
+        private void addWay(OSMWay way) {
+            if (!wayIndices.containsKey(way)) {
+                wayIndices.put(way, ways.size());
+                ways.add(way);
+                for (OSMNode node : way.nodes())
+                    addNode(node);
+                addStrings(way);
+            }
+        }
+
+        /**
+         * Adds a relation after its members, so that they can be decoded
+         * before it.
+         */
+        private void addRelation(OSMRelation relation) {
+            if (!relationIndices.containsKey(relation)) {
+                for (OSMRelation.Member member : relation.members()) {
+                    if (member.role() != null)
+                        addString(member.role());
+                    switch (member.type()) {
+                    case NODE:
+                        addNode((OSMNode) member.member());
+                        break;
+                    case WAY:
+                        addWay((OSMWay) member.member());
+                        break;
+                    case RELATION:
+                        addRelation((OSMRelation) member.member());
+                        break;
+                    }
+                }
+                relationIndices.put(relation, relations.size());
+                relations.add(relation);
+                addStrings(relation);
+            }
+        }
+
+        private void addStrings(OSMEntity entity) {
+            Attributes attributes = entity.attributes();
+            for (String key : attributes.keySet()) {
+                addString(key);
+                addString(attributes.get(key));
+            }
+        }
+
+        private void addString(String string) {
+            if (!strings.containsKey(string))
+                strings.put(string, strings.size());
+        }
+
+        private void writeAttributes(OSMEntity entity) throws IOException {
+            Attributes attributes = entity.attributes();
+            writeVarLong(attributes.keySet().size());
+            for (String key : attributes.keySet()) {
+                writeVarLong(strings.get(key));
+                writeVarLong(strings.get(attributes.get(key)));
+            }
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                out.writeByte((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte((int) value);
+        }
+
+        private static long zigZag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+
+        private static long toFixedPoint(double angle) {
+            return Math.round(Math.toDegrees(angle) * FIXED_POINT);
+        }
+    }
+}
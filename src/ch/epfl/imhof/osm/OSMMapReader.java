@@ -4,8 +4,24 @@ import java.io.BufferedInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
 
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
 import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
@@ -30,6 +46,10 @@ public final class OSMMapReader {
             RELATION = "relation", MEMBER = "member", TAG = "tag", ID = "id",
             REFERENCE = "ref", LONGITUDE = "lon", LATITUDE = "lat", KEY = "k",
             VALUE = "v", TYPE = "type", ROLE = "role";
+    private static final int BATCH_SIZE = 4096, PIPE_SIZE = 1 << 16;
+    // Put in the queue of batches after the last one
+    private static final Future<OSMMapAssembler.Batch> END_OF_FILE =
+            CompletableFuture.completedFuture(null);
 
     private OSMMapReader() {
     }; // Constructor is private in order to prevent instantiation
@@ -57,16 +77,376 @@ public final class OSMMapReader {
      *       - role of member, normally inner or outer (role="outer") 
      *     - attributes (tag k="key" v="value")
      * 
+     * The file is read by a pipeline whose stages run in parallel, using as
+     * many workers as there are available processors.
+     * 
      * @param fileName
      *            the path of the osm file containing the map to be read
      * @param unGZip
      *            true if file is in gzip, false otherwise
      * @return newly built OSMMap
+     * @see #readOSMFile(String, boolean, int)
      */
     //@formatter:on
     public static OSMMap readOSMFile(String fileName, boolean unGZip)
             throws SAXException, IOException {
+        return readOSMFile(fileName, unGZip, Runtime.getRuntime()
+                .availableProcessors());
+    }
+
+    //@formatter:off
+    /**
+     * Reads the OSM file like readOSMFile(fileName, unGZip), through a
+     * pipeline whose stages run in parallel:
+     *   - a thread inflates the gzip stream, if the file is compressed
+     *   - a thread tokenizes the XML, and cuts its entities into batches of
+     *     raw strings
+     *   - parallelism workers parse the numbers of the batches
+     *   - the calling thread builds the entities of the batches, in the order
+     *     of the file, so that the lookups of the members see every entity
+     *     that comes before them
+     * With a parallelism of 1, the file is read on the calling thread only.
+     * 
+     * @param fileName
+     *            the path of the osm file containing the map to be read
+     * @param unGZip
+     *            true if file is in gzip, false otherwise
+     * @param parallelism
+     *            the number of workers parsing the batches
+     * @return newly built OSMMap
+     * @throws IllegalArgumentException
+     *             if parallelism is smaller than 1
+     */
+    //@formatter:on
+    public static OSMMap readOSMFile(String fileName, boolean unGZip,
+            int parallelism) throws SAXException, IOException {
+        if (parallelism < 1)
+            throw new IllegalArgumentException(
+                    "The parallelism must be at least 1, was : " + parallelism);
+        if (parallelism == 1)
+            return readOSMFile(fileName, unGZip, new PointGeo(-Math.PI,
+                    -Math.PI / 2), new PointGeo(Math.PI, Math.PI / 2));
+
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism);
+        BlockingQueue<Future<OSMMapAssembler.Batch>> batches;
+        batches = new ArrayBlockingQueue<>(2 * parallelism);
+        List<Thread> stages = new ArrayList<>();
+        try (BufferedInputStream file = new BufferedInputStream(
+                new FileInputStream(fileName));
+                PipedInputStream pipe = unGZip ? new PipedInputStream(
+                        PIPE_SIZE) : null) {
+            InputStream xml = file;
+            CompletableFuture<Void> inflated = CompletableFuture
+                    .completedFuture(null);
+            if (unGZip) {
+                xml = pipe;
+                inflated = new CompletableFuture<>();
+                stages.add(inflatingStage(file, new PipedOutputStream(pipe),
+                        inflated));
+            }
+            stages.add(tokenizingStage(xml, workers, batches));
+            for (Thread stage : stages)
+                stage.start();
+
+            OSMMapAssembler assembler = new OSMMapAssembler();
+            Future<OSMMapAssembler.Batch> batch;
+            while ((batch = batches.take()) != END_OF_FILE)
+                assembler.add(batch.get());
+            inflated.get();
+            return assembler.build();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading " + fileName, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof SAXException)
+                throw (SAXException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException("Unable to read " + fileName, cause);
+        } finally {
+            // Stops the stages if the reading failed
+            for (Thread stage : stages)
+                stage.interrupt();
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the thread inflating the gzip file into the pipe. Its outcome
+     * is given to inflated, as a failure to inflate the file would otherwise
+     * only be seen as a premature end of the XML.
+     */
+    private static Thread inflatingStage(InputStream file,
+            PipedOutputStream pipe, CompletableFuture<Void> inflated) {
+        return stage(() -> {
+            try (InputStream in = new GZIPInputStream(file, PIPE_SIZE);
+                    PipedOutputStream out = pipe) {
+                byte[] buffer = new byte[PIPE_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1)
+                    out.write(buffer, 0, read);
+                inflated.complete(null);
+            } catch (IOException e) {
+                inflated.completeExceptionally(e);
+            }
+        }, "OSM inflater");
+    }
+
+    /**
+     * Returns a daemon thread, so that a stage that was stopped while blocked
+     * can never keep the JVM alive.
+     */
+    private static Thread stage(Runnable runnable, String name) {
+        Thread stage = new Thread(runnable, name);
+        stage.setDaemon(true);
+        return stage;
+    }
+
+    /**
+     * Returns the thread tokenizing the XML. It hands the batches of raw
+     * strings over to the workers, and puts their futures in the queue in the
+     * order of the file, followed by END_OF_FILE. If the tokenizing fails,
+     * its exception is put in the queue in place of the batches that are left,
+     * without waiting for the calling thread, which may have stopped reading.
+     */
+    private static Thread tokenizingStage(InputStream xml,
+            ExecutorService workers,
+            BlockingQueue<Future<OSMMapAssembler.Batch>> batches) {
+        return stage(() -> {
+            try {
+                XMLReader r = SAXParserFactory.newInstance().newSAXParser()
+                        .getXMLReader();
+                r.setContentHandler(new RecordHandler(workers, batches));
+                r.parse(new InputSource(xml));
+            } catch (SAXException | IOException
+                    | ParserConfigurationException | RuntimeException e) {
+                CompletableFuture<OSMMapAssembler.Batch> failed;
+                failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                // Nobody may take the batches anymore, so the queue is
+                // emptied for the failure to be handed over without blocking
+                batches.clear();
+                batches.offer(failed);
+                return;
+            }
+            try {
+                if (!Thread.interrupted())
+                    batches.put(END_OF_FILE);
+            } catch (InterruptedException e) {
+                // The reading was stopped by the calling thread
+            }
+        }, "OSM tokenizer");
+    }
+
+    /**
+     * SAX handler that records the entities as arrays of raw strings, and
+     * hands them over to the workers by batches. The records are:
+     *   - node:     NODE, id, lon, lat, tags
+     *   - way:      WAY, id, count, count node ids, tags
+     *   - relation: RELATION, id, count, count (type, ref, role), tags
+     * where tags are alternate keys and values. A new batch is started
+     * whenever an entity comes after one of a later kind, so that the batches
+     * keep the order of the file once grouped by kind.
+     */
+    private static final class RecordHandler extends DefaultHandler {
+        private final ExecutorService workers;
+        private final BlockingQueue<Future<OSMMapAssembler.Batch>> batches;
+        private List<String[]> records = new ArrayList<>();
+        private final List<String> record = new ArrayList<>();
+        private final List<String> tags = new ArrayList<>();
+        // Index of the kind of the latest entity of the batch
+        private int latestKind = 0;
+
+        RecordHandler(ExecutorService workers,
+                BlockingQueue<Future<OSMMapAssembler.Batch>> batches) {
+            this.workers = workers;
+            this.batches = batches;
+        }
+
+        @Override
+        public void startElement(String uri, String lName, String qName,
+                Attributes atts) throws SAXException {
+            switch (qName) {
+            case NODE:
+                startRecord(1, NODE, atts);
+                record.add(atts.getValue(LONGITUDE));
+                record.add(atts.getValue(LATITUDE));
+                break;
+            case WAY:
+                startRecord(2, WAY, atts);
+                break;
+            case RELATION:
+                startRecord(3, RELATION, atts);
+                break;
+            case ND:
+                record.add(atts.getValue(REFERENCE));
+                break;
+            case MEMBER:
+                record.add(atts.getValue(TYPE));
+                record.add(atts.getValue(REFERENCE));
+                record.add(atts.getValue(ROLE));
+                break;
+            case TAG:
+                tags.add(atts.getValue(KEY));
+                tags.add(atts.getValue(VALUE));
+                break;
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String lName, String qName)
+                throws SAXException {
+            switch (qName) {
+            case NODE:
+            case WAY:
+            case RELATION:
+                // The count of nodes or members goes before them
+                int members = record.size() - 2;
+                if (!qName.equals(NODE))
+                    record.add(2, Integer.toString(qName.equals(WAY) ? members
+                            : members / 3));
+                record.addAll(tags);
+                records.add(record.toArray(new String[record.size()]));
+                if (records.size() == BATCH_SIZE)
+                    handOver();
+                break;
+            }
+        }
+
+        @Override
+        public void endDocument() throws SAXException {
+            if (!records.isEmpty())
+                handOver();
+        }
+
+        private void startRecord(int kind, String qName, Attributes atts)
+                throws SAXException {
+            if (kind < latestKind && !records.isEmpty())
+                handOver();
+            latestKind = kind;
+            record.clear();
+            tags.clear();
+            record.add(qName);
+            record.add(atts.getValue(ID));
+        }
+
+        private void handOver() throws SAXException {
+            List<String[]> batch = records;
+            records = new ArrayList<>(BATCH_SIZE);
+            latestKind = 0;
+            try {
+                batches.put(workers.submit(() -> parseBatch(batch)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SAXException("The reading was stopped", e);
+            }
+        }
+    }
+
+    /**
+     * Parses the numbers of a batch of raw records, like the SAX handler of
+     * readOSMFile(String, boolean, PointGeo, PointGeo) does.
+     */
+    private static OSMMapAssembler.Batch parseBatch(List<String[]> records) {
+        OSMMapAssembler.Batch batch = new OSMMapAssembler.Batch();
+        for (String[] r : records) {
+            long id = Long.parseLong(r[1]);
+            switch (r[0]) {
+            case NODE:
+                batch.addNode(id, Math.toRadians(Double.parseDouble(r[2])),
+                        Math.toRadians(Double.parseDouble(r[3])), tags(r, 4));
+                break;
+            case WAY: {
+                long[] nodeIds = new long[Integer.parseInt(r[2])];
+                for (int i = 0; i < nodeIds.length; ++i)
+                    nodeIds[i] = Long.parseLong(r[3 + i]);
+                batch.addWay(id, nodeIds, tags(r, 3 + nodeIds.length));
+                break;
+            }
+            case RELATION: {
+                int count = Integer.parseInt(r[2]);
+                // Members of an unknown type are ignored, like the SAX
+                // handler does
+                List<OSMRelation.Member.Type> types = new ArrayList<>(count);
+                long[] memberIds = new long[count];
+                List<String> roles = new ArrayList<>(count);
+                for (int i = 0; i < count; ++i) {
+                    OSMRelation.Member.Type type = memberType(r[3 + 3 * i]);
+                    if (type != null) {
+                        memberIds[types.size()] = Long.parseLong(r[4 + 3 * i]);
+                        types.add(type);
+                        roles.add(r[5 + 3 * i]);
+                    }
+                }
+                batch.addRelation(id, types
+                        .toArray(new OSMRelation.Member.Type[types.size()]),
+                        Arrays.copyOf(memberIds, types.size()), roles
+                                .toArray(new String[roles.size()]), tags(r,
+                                3 + 3 * count));
+                break;
+            }
+            }
+        }
+        return batch;
+    }
+
+    private static OSMRelation.Member.Type memberType(String type) {
+        switch (type) {
+        case NODE:
+            return OSMRelation.Member.Type.NODE;
+        case WAY:
+            return OSMRelation.Member.Type.WAY;
+        case RELATION:
+            return OSMRelation.Member.Type.RELATION;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Returns the tags at the end of a record, or null if it has none.
+     */
+    private static String[] tags(String[] record, int from) {
+        return from == record.length ? null : Arrays.copyOfRange(record, from,
+                record.length);
+    }
+
+    /**
+     * Reads the OSM file like readOSMFile(fileName, unGZip), but only keeps
+     * the entities that may appear in the given zone: a way is only kept if
+     * the bounding box of its nodes intersects the zone, and a relation is
+     * only kept if the bounding box of all its members intersects the zone, so
+     * that an area enclosing the zone is kept even if none of its members is.
+     * The ways that are left out can still be members of the relations that
+     * are kept, so that multipolygons crossing the border of the zone stay
+     * whole.
+     * 
+     * The zone should include a margin for the width of the lines that are
+     * drawn along its borders.
+     * 
+     * @param fileName
+     *            the path of the osm file containing the map to be read
+     * @param unGZip
+     *            true if file is in gzip, false otherwise
+     * @param bl
+     *            the bottom left corner of the zone
+     * @param tr
+     *            the top right corner of the zone
+     * @return newly built OSMMap, containing the entities of the zone
+     */
+    public static OSMMap readOSMFile(String fileName, boolean unGZip,
+            PointGeo bl, PointGeo tr) throws SAXException, IOException {
+        double minLongitude = bl.longitude(), maxLongitude = tr.longitude();
+        double minLatitude = bl.latitude(), maxLatitude = tr.latitude();
         OSMMap.Builder mapBuilder = new OSMMap.Builder();
+        // Entities outside of the zone, that relations may still reference
+        HashMap<Long, OSMWay> outsideWays = new HashMap<>();
+        HashMap<Long, OSMRelation> outsideRelations = new HashMap<>();
+        // Bounding boxes of the relations, that are members of others
+        HashMap<OSMRelation, double[]> relationBoxes = new HashMap<>();
         try (BufferedInputStream inStream = new BufferedInputStream(
                 new FileInputStream(fileName));
                 InputStream i = unGZip ? new GZIPInputStream(inStream)
@@ -78,34 +458,53 @@ public final class OSMMapReader {
                 private OSMRelation.Builder relationBuilder;
                 private OSMWay.Builder wayBuilder;
                 private OSMNode.Builder nodeBuilder;
+                // The node being read is only built if it has attributes;
+                // untagged nodes are stored as their ID and position.
+                private long nodeId;
+                private double nodeLongitude, nodeLatitude;
+                // Bounding box of the nodes of the way being read
+                private double wayMinLongitude, wayMaxLongitude,
+                        wayMinLatitude, wayMaxLatitude;
 
                 @Override
                 public void startElement(String uri, String lName,
                         String qName, Attributes atts) throws SAXException {
                     switch (qName) {
                     case NODE: {
-                        long id = Long.parseLong(atts.getValue(ID));
-                        double lon = Double.parseDouble(atts
-                                .getValue(LONGITUDE));
-                        double lat = Double.parseDouble(atts.getValue(LATITUDE));
-                        PointGeo point = new PointGeo(Math.toRadians(lon), Math
-                                .toRadians(lat));
-                        nodeBuilder = new OSMNode.Builder(id, point);
-                        currentParentBuilder = nodeBuilder;
+                        nodeId = Long.parseLong(atts.getValue(ID));
+                        nodeLongitude = Math.toRadians(Double.parseDouble(atts
+                                .getValue(LONGITUDE)));
+                        nodeLatitude = Math.toRadians(Double.parseDouble(atts
+                                .getValue(LATITUDE)));
+                        nodeBuilder = null;
+                        currentParentBuilder = null;
                         break;
                     }
                     case WAY: {
                         long id = Long.parseLong(atts.getValue(ID));
                         wayBuilder = new OSMWay.Builder(id);
                         currentParentBuilder = wayBuilder;
+                        wayMinLongitude = Double.POSITIVE_INFINITY;
+                        wayMinLatitude = Double.POSITIVE_INFINITY;
+                        wayMaxLongitude = Double.NEGATIVE_INFINITY;
+                        wayMaxLatitude = Double.NEGATIVE_INFINITY;
                         break;
                     }
                     case ND: {
                         long ref = Long.parseLong(atts.getValue(REFERENCE));
                         OSMNode referencedNode = mapBuilder.nodeForId(ref);
-                        if (referencedNode != null)
+                        if (referencedNode != null) {
                             wayBuilder.addNode(referencedNode);
-                        else
+                            PointGeo p = referencedNode.position();
+                            wayMinLongitude = Math.min(wayMinLongitude,
+                                    p.longitude());
+                            wayMaxLongitude = Math.max(wayMaxLongitude,
+                                    p.longitude());
+                            wayMinLatitude = Math.min(wayMinLatitude,
+                                    p.latitude());
+                            wayMaxLatitude = Math.max(wayMaxLatitude,
+                                    p.latitude());
+                        } else
                             wayBuilder.setIncomplete();
                         break;
                     }
@@ -131,6 +530,8 @@ public final class OSMMapReader {
                             break;
                         case WAY:
                             OSMWay referencedWay = mapBuilder.wayForId(ref);
+                            if (referencedWay == null)
+                                referencedWay = outsideWays.get(ref);
                             if (referencedWay != null)
                                 relationBuilder.addMember(
                                         OSMRelation.Member.Type.WAY, role,
@@ -141,6 +542,8 @@ public final class OSMMapReader {
                         case RELATION:
                             OSMRelation referencedRelation = mapBuilder
                                     .relationForId(ref);
+                            if (referencedRelation == null)
+                                referencedRelation = outsideRelations.get(ref);
                             if (referencedRelation != null)
                                 relationBuilder.addMember(
                                         OSMRelation.Member.Type.RELATION, role,
@@ -154,6 +557,11 @@ public final class OSMMapReader {
                     case TAG:
                         String k = atts.getValue(KEY);
                         String v = atts.getValue(VALUE);
+                        if (currentParentBuilder == null) {
+                            nodeBuilder = new OSMNode.Builder(nodeId,
+                                    new PointGeo(nodeLongitude, nodeLatitude));
+                            currentParentBuilder = nodeBuilder;
+                        }
                         currentParentBuilder.setAttribute(k, v);
                         break;
                     }
@@ -164,21 +572,50 @@ public final class OSMMapReader {
                         throws SAXException {
                     switch (qName) {
                     case NODE:
-                        if (!nodeBuilder.isIncomplete())
+                        if (nodeBuilder == null)
+                            mapBuilder.addNode(nodeId, nodeLongitude,
+                                    nodeLatitude);
+                        else if (!nodeBuilder.isIncomplete())
                             mapBuilder.addNode(nodeBuilder.build());
                         break;
                     case WAY:
-                        if (!wayBuilder.isIncomplete())
-                            mapBuilder.addWay(wayBuilder.build());
+                        if (!wayBuilder.isIncomplete()) {
+                            OSMWay way = wayBuilder.build();
+                            if (intersects(wayMinLongitude, wayMaxLongitude,
+                                    wayMinLatitude, wayMaxLatitude))
+                                mapBuilder.addWay(way);
+                            else
+                                outsideWays.put(way.id(), way);
+                        }
                         break;
                     case RELATION:
-                        if (!relationBuilder.isIncomplete())
-                            mapBuilder.addRelation(relationBuilder.build());
+                        if (!relationBuilder.isIncomplete()) {
+                            OSMRelation relation = relationBuilder.build();
+                            // The members may all be outside of the zone
+                            // while the relation encloses it
+                            if (OSMMap.intersects(bl, tr, OSMMap.boundingBox(
+                                    relation, relationBoxes)))
+                                mapBuilder.addRelation(relation);
+                            else
+                                outsideRelations.put(relation.id(), relation);
+                        }
                         break;
                     }
                 }
+
+                /**
+                 * Returns whether the given bounding box intersects the zone.
+                 */
+                private boolean intersects(double minLon, double maxLon,
+                        double minLat, double maxLat) {
+                    return minLon <= maxLongitude && maxLon >= minLongitude
+                            && minLat <= maxLatitude && maxLat >= minLatitude;
+                }
             });
             r.parse(new InputSource(i));
+            // Every way and relation that references an untagged node has
+            // been built
+            mapBuilder.dropUntaggedNodes();
             return mapBuilder.build();
         }
     }
@@ -0,0 +1,184 @@
+package ch.epfl.imhof.osm;
+
+import java.util.Arrays;
+
+import ch.epfl.imhof.Attributes;
+import ch.epfl.imhof.PointGeo;
+
+/**
+ * A store for the nodes of an OSM file, which keeps the identifiers and the
+ * coordinates of the nodes in primitive arrays. The OSMNode object of an
+ * untagged node is only created the first time it is requested, and the same
+ * object is then returned for every later request, so that the nodes shared
+ * by several ways stay identical.
+ * <p>
+ * The lookups are binary searches in the identifiers. The nodes of OSM files
+ * are sorted by identifier, in which case adding a node is constant time;
+ * otherwise, the store is sorted before the next lookup.
+ *
+ * @author Maxime Kjaer (250694)
+ * @author Timote Vaucher (246532)
+ */
+public final class OSMNodeStore {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final Attributes NO_ATTRIBUTES = new Attributes.Builder()
+            .build();
+
+    private long[] ids = new long[INITIAL_CAPACITY];
+    private double[] coordinates = new double[2 * INITIAL_CAPACITY];
+    private OSMNode[] nodes = new OSMNode[INITIAL_CAPACITY];
+    private int size = 0;
+    private boolean sorted = true;
+
+    /**
+     * Adds an untagged node to the store. Only its identifier and coordinates
+     * are kept until the node is requested. If the store already contains a
+     * node with the same identifier, it is replaced.
+     *
+     * @param id
+     *            The unique ID of the node
+     * @param longitude
+     *            The longitude of the node, in radians
+     * @param latitude
+     *            The latitude of the node, in radians
+     * @throws IllegalStateException
+     *             If the untagged nodes have been dropped
+     */
+    public void add(long id, double longitude, double latitude) {
+        if (coordinates == null)
+            throw new IllegalStateException(
+                    "The untagged nodes have been dropped");
+        int index = append(id);
+        coordinates[2 * index] = longitude;
+        coordinates[2 * index + 1] = latitude;
+        nodes[index] = null;
+    }
+
+    /**
+     * Adds a node to the store. If the store already contains a node with the
+     * same identifier, it is replaced.
+     *
+     * @param node
+     *            The node that will be added to the store
+     */
+    public void add(OSMNode node) {
+        int index = append(node.id());
+        nodes[index] = node;
+    }
+
+    /**
+     * Returns the node with the given identifier, creating its OSMNode object
+     * if it had been added as an untagged node.
+     *
+     * @param id
+     *            The unique ID of the node
+     * @return The node corresponding to the ID; null if there is no such node
+     *         in the store.
+     */
+    public OSMNode nodeForId(long id) {
+        if (!sorted)
+            sort();
+        int index = Arrays.binarySearch(ids, 0, size, id);
+        if (index < 0)
+            return null;
+        OSMNode node = nodes[index];
+        if (node == null && coordinates != null) {
+            node = new OSMNode(id, new PointGeo(coordinates[2 * index],
+                    coordinates[2 * index + 1]), NO_ATTRIBUTES);
+            nodes[index] = node;
+        }
+        return node;
+    }
+
+    /**
+     * Drops the untagged nodes that haven't been requested yet, along with the
+     * coordinates of all the untagged nodes. The requested nodes and the
+     * tagged nodes can still be obtained through nodeForId, but no untagged
+     * node can be added anymore.
+     * <p>
+     * Relations can reference untagged nodes that no way uses, so this must
+     * only be called once the ways and the relations are all built.
+     */
+    public void dropUntaggedNodes() {
+        if (!sorted)
+            sort();
+        int kept = 0;
+        for (int k = 0; k < size; ++k) {
+            if (nodes[k] != null) {
+                ids[kept] = ids[k];
+                nodes[kept] = nodes[k];
+                ++kept;
+            }
+        }
+        size = kept;
+        ids = Arrays.copyOf(ids, Math.max(kept, 1));
+        nodes = Arrays.copyOf(nodes, Math.max(kept, 1));
+        coordinates = null;
+    }
+
+    /**
+     * Getter for the number of nodes in the store.
+     *
+     * @return The number of nodes in the store
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Reserves the place of a new node and returns its index. A node whose
+     * identifier is the one of the last node replaces it.
+     */
+    private int append(long id) {
+        if (size > 0 && ids[size - 1] >= id) {
+            if (ids[size - 1] == id)
+                return size - 1;
+            sorted = false;
+        }
+        if (size == ids.length) {
+            int capacity = 2 * ids.length;
+            ids = Arrays.copyOf(ids, capacity);
+            nodes = Arrays.copyOf(nodes, capacity);
+            if (coordinates != null)
+                coordinates = Arrays.copyOf(coordinates, 2 * capacity);
+        }
+        ids[size] = id;
+        return size++;
+    }
+
+    /**
+     * Sorts the nodes by identifier. Of several nodes with the same
+     * identifier, the last one added is kept.
+     */
+    private void sort() {
+        // Unsorted files are rare, so the boxed indices don't matter much
+        Integer[] order = new Integer[size];
+        for (int k = 0; k < size; ++k)
+            order[k] = k;
+        Arrays.sort(order, (a, b) -> Long.compare(ids[a], ids[b]));
+
+        long[] sortedIds = new long[ids.length];
+        OSMNode[] sortedNodes = new OSMNode[nodes.length];
+        double[] sortedCoordinates = coordinates == null ? null
+                : new double[coordinates.length];
+        int count = 0;
+        for (int k = 0; k < size; ++k) {
+            int from = order[k];
+            // The sort is stable, so the last duplicate overwrites the others
+            if (count > 0 && sortedIds[count - 1] == ids[from])
+                --count;
+            sortedIds[count] = ids[from];
+            sortedNodes[count] = nodes[from];
+            if (sortedCoordinates != null) {
+                sortedCoordinates[2 * count] = coordinates[2 * from];
+                sortedCoordinates[2 * count + 1] = coordinates[2 * from + 1];
+            }
+            ++count;
+        }
+        ids = sortedIds;
+        nodes = sortedNodes;
+        coordinates = sortedCoordinates;
+        size = count;
+        sorted = true;
+    }
+}
@@ -0,0 +1,609 @@
+package ch.epfl.imhof.osm;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+//@formatter:off
+/**
+ * Utility class that reads an OSM file in the PBF format (.osm.pbf), and
+ * builds the same OSMMap as OSMMapReader does with the XML version of the
+ * file: ways referencing a missing node and relations referencing a missing
+ * member are left out, and the untagged nodes are dropped once the ways are
+ * read.
+ *
+ * A PBF file is a sequence of blobs, each of them holding a zlib compressed
+ * protocol buffers message. The blobs are decompressed and decoded in
+ * parallel, and their entities are then added to the map in the order of the
+ * file. The protocol buffers messages are decoded by hand, only the fields
+ * that OSMMapReader reads being kept:
+ *   - BlobHeader:     type (1), datasize (3)
+ *   - Blob:           raw (1), raw_size (2), zlib_data (3)
+ *   - HeaderBlock:    required_features (4)
+ *   - PrimitiveBlock: stringtable (1), primitivegroup (2), granularity (17),
+ *                     lat_offset (19), lon_offset (20)
+ *   - PrimitiveGroup: nodes (1), dense (2), ways (3), relations (4)
+ *
+ * @author Maxime Kjaer (250694)
+ * @author Timote Vaucher (246532)
+ */
+//@formatter:on
+public final class OSMPBFReader {
+    private static final String HEADER = "OSMHeader", DATA = "OSMData";
+    private static final List<String> SUPPORTED_FEATURES = Arrays.asList(
+            "OsmSchema-V0.6", "DenseNodes");
+    // Limits set by the PBF specification
+    private static final int MAX_HEADER_SIZE = 64 * 1024,
+            MAX_BLOB_SIZE = 32 * 1024 * 1024;
+    private static final OSMRelation.Member.Type[] MEMBER_TYPES = {
+            OSMRelation.Member.Type.NODE, OSMRelation.Member.Type.WAY,
+            OSMRelation.Member.Type.RELATION };
+
+    private OSMPBFReader() {
+    }; // Constructor is private in order to prevent instantiation
+
+    /**
+     * Reads the PBF file, decoding its blobs on as many threads as there are
+     * available processors.
+     *
+     * @param fileName
+     *            the path of the pbf file containing the map to be read
+     * @return newly built OSMMap
+     * @throws IOException
+     *             if the file can't be read, is corrupted or requires a
+     *             feature that isn't supported
+     */
+    public static OSMMap readPBFFile(String fileName) throws IOException {
+        return readPBFFile(fileName, Runtime.getRuntime()
+                .availableProcessors());
+    }
+
+    /**
+     * Reads the PBF file, decoding its blobs on the given number of threads.
+     *
+     * @param fileName
+     *            the path of the pbf file containing the map to be read
+     * @param parallelism
+     *            the number of threads decoding the blobs
+     * @return newly built OSMMap
+     * @throws IOException
+     *             if the file can't be read, is corrupted or requires a
+     *             feature that isn't supported
+     * @throws IllegalArgumentException
+     *             if parallelism is smaller than 1
+     */
+    public static OSMMap readPBFFile(String fileName, int parallelism)
+            throws IOException {
+        if (parallelism < 1)
+            throw new IllegalArgumentException(
+                    "The parallelism must be at least 1, was : " + parallelism);
+        OSMMapAssembler assembler = new OSMMapAssembler();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        // Blobs being decoded, in the order of the file. Their number is
+        // bounded so that the file isn't decompressed faster than it is
+        // assembled.
+        Queue<Future<OSMMapAssembler.Batch>> pending = new ArrayDeque<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(fileName)))) {
+            byte[] blob;
+            while ((blob = nextBlob(in)) != null) {
+                final byte[] data = blob;
+                pending.add(executor.submit(() -> decodeBlock(inflate(data))));
+                if (pending.size() >= 2 * parallelism)
+                    assembler.add(pending.remove().get());
+            }
+            while (!pending.isEmpty())
+                assembler.add(pending.remove().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading " + fileName, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("Corrupted file " + fileName, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return assembler.build();
+    }
+
+    /**
+     * Reads the next OSMData blob of the file, checking the features required
+     * by the OSMHeader blobs on the way. Blobs of other types are skipped.
+     *
+     * @return the content of the Blob message, or null at the end of the file
+     */
+    private static byte[] nextBlob(DataInputStream in) throws IOException {
+        while (true) {
+            int first = in.read();
+            if (first == -1)
+                return null;
+            int headerSize = first << 24 | in.readUnsignedByte() << 16
+                    | in.readUnsignedByte() << 8 | in.readUnsignedByte();
+            if (headerSize < 0 || headerSize > MAX_HEADER_SIZE)
+                throw new IOException("Invalid blob header size " + headerSize);
+            byte[] header = new byte[headerSize];
+            in.readFully(header);
+
+            String type = null;
+            int dataSize = -1;
+            Message m = new Message(ByteBuffer.wrap(header));
+            while (m.next()) {
+                if (m.field() == 1)
+                    type = m.string();
+                else if (m.field() == 3)
+                    dataSize = (int) m.varint();
+                else
+                    m.skip();
+            }
+            if (type == null || dataSize < 0 || dataSize > MAX_BLOB_SIZE)
+                throw new IOException("Invalid blob header");
+            byte[] blob = new byte[dataSize];
+            try {
+                in.readFully(blob);
+            } catch (EOFException e) {
+                throw new IOException("Truncated blob", e);
+            }
+
+            if (type.equals(DATA))
+                return blob;
+            if (type.equals(HEADER))
+                checkFeatures(inflate(blob));
+        }
+    }
+
+    /**
+     * Throws an IOException if the HeaderBlock requires a feature that isn't
+     * supported.
+     */
+    private static void checkFeatures(ByteBuffer headerBlock)
+            throws IOException {
+        Message m = new Message(headerBlock);
+        while (m.next()) {
+            if (m.field() == 4) {
+                String feature = m.string();
+                if (!SUPPORTED_FEATURES.contains(feature))
+                    throw new IOException("Unsupported feature " + feature);
+            } else
+                m.skip();
+        }
+    }
+
+    /**
+     * Returns the uncompressed content of a Blob message.
+     */
+    private static ByteBuffer inflate(byte[] blob) throws IOException {
+        ByteBuffer raw = null, zlib = null;
+        int rawSize = -1;
+        Message m = new Message(ByteBuffer.wrap(blob));
+        while (m.next()) {
+            switch (m.field()) {
+            case 1:
+                raw = m.bytes();
+                break;
+            case 2:
+                rawSize = (int) m.varint();
+                break;
+            case 3:
+                zlib = m.bytes();
+                break;
+            default:
+                m.skip();
+            }
+        }
+        if (raw != null)
+            return raw;
+        if (zlib == null || rawSize < 0 || rawSize > MAX_BLOB_SIZE)
+            throw new IOException("Unsupported blob compression");
+
+        byte[] compressed = new byte[zlib.remaining()];
+        zlib.get(compressed);
+        byte[] content = new byte[rawSize];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            if (inflater.inflate(content) != rawSize || !inflater.finished())
+                throw new IOException("Invalid blob size");
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted blob", e);
+        } finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(content);
+    }
+
+    /**
+     * Decodes a PrimitiveBlock message.
+     */
+    private static OSMMapAssembler.Batch decodeBlock(
+            ByteBuffer primitiveBlock)
+            throws IOException {
+        List<String> strings = new ArrayList<>();
+        List<ByteBuffer> groups = new ArrayList<>();
+        long granularity = 100, latOffset = 0, lonOffset = 0;
+        Message m = new Message(primitiveBlock);
+        while (m.next()) {
+            switch (m.field()) {
+            case 1:
+                Message table = m.message();
+                while (table.next()) {
+                    if (table.field() == 1)
+                        strings.add(table.string());
+                    else
+                        table.skip();
+                }
+                break;
+            case 2:
+                groups.add(m.bytes());
+                break;
+            case 17:
+                granularity = m.varint();
+                break;
+            case 19:
+                latOffset = m.varint();
+                break;
+            case 20:
+                lonOffset = m.varint();
+                break;
+            default:
+                m.skip();
+            }
+        }
+
+        // The groups are decoded once the string table and the granularity
+        // are known, as they may come in any order.
+        Block block = new Block(strings.toArray(new String[strings.size()]),
+                granularity, latOffset, lonOffset);
+        for (ByteBuffer group : groups) {
+            Message g = new Message(group);
+            while (g.next()) {
+                switch (g.field()) {
+                case 1:
+                    block.decodeNode(g.message());
+                    break;
+                case 2:
+                    block.decodeDenseNodes(g.message());
+                    break;
+                case 3:
+                    block.decodeWay(g.message());
+                    break;
+                case 4:
+                    block.decodeRelation(g.message());
+                    break;
+                default:
+                    g.skip();
+                }
+            }
+        }
+        return block.batch;
+    }
+
+    /**
+     * Decodes the groups of a PrimitiveBlock into a batch of raw entities.
+     */
+    private static final class Block {
+        private final String[] strings;
+        private final long granularity, latOffset, lonOffset;
+        private final OSMMapAssembler.Batch batch = new OSMMapAssembler.Batch();
+
+        Block(String[] strings, long granularity, long latOffset,
+                long lonOffset) {
+            this.strings = strings;
+            this.granularity = granularity;
+            this.latOffset = latOffset;
+            this.lonOffset = lonOffset;
+        }
+
+        void decodeNode(Message m) throws IOException {
+            long id = 0, lat = 0, lon = 0;
+            long[] keys = new long[0], values = new long[0];
+            while (m.next()) {
+                switch (m.field()) {
+                case 1:
+                    id = m.sint();
+                    break;
+                case 2:
+                    keys = m.packedVarints(false);
+                    break;
+                case 3:
+                    values = m.packedVarints(false);
+                    break;
+                case 8:
+                    lat = m.sint();
+                    break;
+                case 9:
+                    lon = m.sint();
+                    break;
+                default:
+                    m.skip();
+                }
+            }
+            addNode(id, lon, lat, tags(keys, values));
+        }
+
+        void decodeDenseNodes(Message m) throws IOException {
+            long[] ids = new long[0], lats = ids, lons = ids, keysVals = ids;
+            while (m.next()) {
+                switch (m.field()) {
+                case 1:
+                    ids = m.packedVarints(true);
+                    break;
+                case 8:
+                    lats = m.packedVarints(true);
+                    break;
+                case 9:
+                    lons = m.packedVarints(true);
+                    break;
+                case 10:
+                    keysVals = m.packedVarints(false);
+                    break;
+                default:
+                    m.skip();
+                }
+            }
+            if (lats.length != ids.length || lons.length != ids.length)
+                throw new IOException("Invalid dense nodes");
+
+            long id = 0, lat = 0, lon = 0;
+            int k = 0;
+            for (int i = 0; i < ids.length; ++i) {
+                id += ids[i];
+                lat += lats[i];
+                lon += lons[i];
+                // The tags of each node are a list of (key, value) string
+                // indices, ended by a 0
+                String[] tags = null;
+                if (k < keysVals.length && keysVals[k] != 0) {
+                    int end = k;
+                    while (end < keysVals.length && keysVals[end] != 0)
+                        end += 2;
+                    tags = new String[end - k];
+                    for (int t = 0; t < tags.length; ++t)
+                        tags[t] = string(keysVals[k + t]);
+                    k = end;
+                }
+                ++k;
+                addNode(id, lon, lat, tags);
+            }
+        }
+
+        void decodeWay(Message m) throws IOException {
+            long id = 0;
+            long[] keys = new long[0], values = new long[0], refs = keys;
+            while (m.next()) {
+                switch (m.field()) {
+                case 1:
+                    id = m.varint();
+                    break;
+                case 2:
+                    keys = m.packedVarints(false);
+                    break;
+                case 3:
+                    values = m.packedVarints(false);
+                    break;
+                case 8:
+                    refs = m.packedVarints(true);
+                    break;
+                default:
+                    m.skip();
+                }
+            }
+            for (int i = 1; i < refs.length; ++i)
+                refs[i] += refs[i - 1];
+            batch.addWay(id, refs, tags(keys, values));
+        }
+
+        void decodeRelation(Message m) throws IOException {
+            long id = 0;
+            long[] keys = new long[0], values = new long[0];
+            long[] roles = new long[0], types = new long[0], memberIds = keys;
+            while (m.next()) {
+                switch (m.field()) {
+                case 1:
+                    id = m.varint();
+                    break;
+                case 2:
+                    keys = m.packedVarints(false);
+                    break;
+                case 3:
+                    values = m.packedVarints(false);
+                    break;
+                case 8:
+                    roles = m.packedVarints(false);
+                    break;
+                case 9:
+                    memberIds = m.packedVarints(true);
+                    break;
+                case 10:
+                    types = m.packedVarints(false);
+                    break;
+                default:
+                    m.skip();
+                }
+            }
+            int count = memberIds.length;
+            if (roles.length != count || types.length != count)
+                throw new IOException("Invalid relation " + id);
+            String[] memberRoles = new String[count];
+            OSMRelation.Member.Type[] memberTypes;
+            memberTypes = new OSMRelation.Member.Type[count];
+            for (int i = 0; i < count; ++i) {
+                if (i > 0)
+                    memberIds[i] += memberIds[i - 1];
+                memberRoles[i] = string(roles[i]);
+                if (types[i] < 0 || types[i] >= MEMBER_TYPES.length)
+                    throw new IOException("Invalid member type " + types[i]);
+                memberTypes[i] = MEMBER_TYPES[(int) types[i]];
+            }
+            batch.addRelation(id, memberTypes, memberIds, memberRoles, tags(
+                    keys, values));
+        }
+
+        /**
+         * Adds a node, whose coordinates are in units of granularity
+         * nanodegrees. Dividing the nanodegrees by 1e9 gives back exactly the
+         * degrees of the XML files, which have at most 7 decimals.
+         */
+        private void addNode(long id, long lon, long lat, String[] tags) {
+            batch.addNode(id, Math.toRadians((lonOffset + granularity * lon)
+                    / 1e9), Math.toRadians((latOffset + granularity * lat)
+                    / 1e9), tags);
+        }
+
+        /**
+         * Returns the keys and values of tags as a single array, or null if
+         * there are no tags.
+         */
+        private String[] tags(long[] keys, long[] values) throws IOException {
+            if (keys.length != values.length)
+                throw new IOException("Keys and values don't match");
+            if (keys.length == 0)
+                return null;
+            String[] tags = new String[2 * keys.length];
+            for (int i = 0; i < keys.length; ++i) {
+                tags[2 * i] = string(keys[i]);
+                tags[2 * i + 1] = string(values[i]);
+            }
+            return tags;
+        }
+
+        private String string(long index) throws IOException {
+            if (index < 0 || index >= strings.length)
+                throw new IOException("Invalid string index " + index);
+            return strings[(int) index];
+        }
+    }
+
+    /**
+     * Reads the fields of a protocol buffers message one after the other.
+     * After next returns true, exactly one of the value methods must be called
+     * to read or skip the value of the field.
+     */
+    private static final class Message {
+        private static final int VARINT = 0, FIXED64 = 1, LENGTH_DELIMITED = 2,
+                FIXED32 = 5;
+
+        private final ByteBuffer buffer;
+        private int field, wireType;
+
+        Message(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * Moves to the next field, and returns false if there is none.
+         */
+        boolean next() throws IOException {
+            if (!buffer.hasRemaining())
+                return false;
+            long key = varint();
+            field = (int) (key >>> 3);
+            wireType = (int) (key & 7);
+            return true;
+        }
+
+        int field() {
+            return field;
+        }
+
+        long varint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (!buffer.hasRemaining())
+                    throw new IOException("Truncated varint");
+                byte b = buffer.get();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0)
+                    return value;
+            }
+            throw new IOException("Invalid varint");
+        }
+
+        long sint() throws IOException {
+            long value = varint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        ByteBuffer bytes() throws IOException {
+            if (wireType != LENGTH_DELIMITED)
+                throw new IOException("Field " + field + " isn't delimited");
+            long length = varint();
+            if (length < 0 || length > buffer.remaining())
+                throw new IOException("Truncated field " + field);
+            ByteBuffer bytes = buffer.slice();
+            bytes.limit((int) length);
+            buffer.position(buffer.position() + (int) length);
+            return bytes;
+        }
+
+        String string() throws IOException {
+            ByteBuffer bytes = bytes();
+            byte[] content = new byte[bytes.remaining()];
+            bytes.get(content);
+            return new String(content, StandardCharsets.UTF_8);
+        }
+
+        Message message() throws IOException {
+            return new Message(bytes());
+        }
+
+        /**
+         * Reads a packed repeated field of varints, decoding them as sint
+         * (zigzag) if signed is true. A non packed field is read as a single
+         * value.
+         */
+        long[] packedVarints(boolean signed) throws IOException {
+            if (wireType == VARINT)
+                return new long[] { signed ? sint() : varint() };
+            Message packed = message();
+            long[] values = new long[16];
+            int count = 0;
+            while (packed.buffer.hasRemaining()) {
+                if (count == values.length)
+                    values = Arrays.copyOf(values, 2 * count);
+                values[count++] = signed ? packed.sint() : packed.varint();
+            }
+            return Arrays.copyOf(values, count);
+        }
+
+        void skip() throws IOException {
+            switch (wireType) {
+            case VARINT:
+                varint();
+                break;
+            case FIXED64:
+                skipBytes(8);
+                break;
+            case LENGTH_DELIMITED:
+                bytes();
+                break;
+            case FIXED32:
+                skipBytes(4);
+                break;
+            default:
+                throw new IOException("Unsupported wire type " + wireType);
+            }
+        }
+
+        private void skipBytes(int count) throws IOException {
+            if (buffer.remaining() < count)
+                throw new IOException("Truncated field " + field);
+            buffer.position(buffer.position() + count);
+        }
+    }
+}
@@ -12,6 +12,7 @@ import ch.epfl.imhof.Attributed;
 import ch.epfl.imhof.Attributes;
 import ch.epfl.imhof.Graph;
 import ch.epfl.imhof.Map;
+import ch.epfl.imhof.PointGeo;
 import ch.epfl.imhof.geometry.ClosedPolyLine;
 import ch.epfl.imhof.geometry.OpenPolyLine;
 import ch.epfl.imhof.geometry.Point;
@@ -296,9 +297,18 @@ public final class OSMToGeoTransformer {
      *         albeit in another system.
      */
     private List<Point> nodesToPoints(List<OSMNode> nodes) {
+        // The nodes are projected at once, which spares the projection the
+        // creation of a point per node
+        double[] coordinates = new double[2 * nodes.size()];
+        for (int i = 0; i < nodes.size(); ++i) {
+            PointGeo position = nodes.get(i).position();
+            coordinates[2 * i] = position.longitude();
+            coordinates[2 * i + 1] = position.latitude();
+        }
+        projection.projectAll(coordinates, coordinates);
         ArrayList<Point> points = new ArrayList<>(nodes.size());
-        for (OSMNode node : nodes) {
-            points.add(nodeToPoint(node));
+        for (int i = 0; i < nodes.size(); ++i) {
+            points.add(new Point(coordinates[2 * i], coordinates[2 * i + 1]));
         }
         return points;
     }
@@ -1,5 +1,6 @@
 package ch.epfl.imhof.painting;
 
+import ch.epfl.imhof.geometry.Point;
 import ch.epfl.imhof.geometry.PolyLine;
 import ch.epfl.imhof.geometry.Polygon;
 
@@ -32,4 +33,25 @@ public interface Canvas {
      *            The Color that will be used to fill said Polygon.
      */
     public void drawPolygon(Polygon polygon, Color color);
+
+    /**
+     * Returns the bottom left corner of the zone of the plane that can be
+     * visible on the canvas. The painters leave out the elements that are
+     * entirely outside of this zone. By default, the whole plane is visible.
+     * 
+     * @return the bottom left corner of the visible zone
+     */
+    public default Point bottomLeft() {
+        return new Point(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Returns the top right corner of the zone of the plane that can be
+     * visible on the canvas. By default, the whole plane is visible.
+     * 
+     * @return the top right corner of the visible zone
+     */
+    public default Point topRight() {
+        return new Point(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+    }
 }
@@ -149,6 +149,22 @@ public final class Color {
      * @return packed rgb color
      */
     public int packedRBG() {
+        return packedRGB(r, g, b);
+    }
+
+    /**
+     * Packs the given components into an integer the same way packedRBG does,
+     * without constructing a Color object nor checking the components.
+     * 
+     * @param r
+     *            The Red value, on a scale from 0 to 1.
+     * @param g
+     *            The Green value, on a scale from 0 to 1.
+     * @param b
+     *            The Blue value, on a scale from 0 to 1.
+     * @return packed rgb color
+     */
+    public static int packedRGB(double r, double g, double b) {
         int red = (int) (r * BASE);
         int green = (int) (g * BASE);
         int blue = (int) (b * BASE);
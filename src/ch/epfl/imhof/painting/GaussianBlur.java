@@ -0,0 +1,313 @@
+package ch.epfl.imhof.painting;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+//@formatter:off
+/**
+ * Blurs a single channel image, stored row after row in an array of floats,
+ * with a Gaussian blur whose cost per pixel doesn't grow with its radius.
+ * The standard deviation of the Gaussian is a third of its radius, and it
+ * is truncated at the radius, like the kernel the relief was blurred with:
+ * - up to a radius of MAX_KERNEL_RADIUS, that kernel is applied to the
+ *   rows, then to the columns;
+ * - beyond, the Gaussian is approximated by three successive box blurs,
+ *   whose widths are chosen so that their variances add up to the one of
+ *   the Gaussian. Every box blur slides a running sum along the rows, then
+ *   along the columns, which costs two additions per pixel and per box.
+ *   Compared to the kernel, the blur of a sharp edge between 0 and 1
+ *   differs by at most 0.02, and the blur of the relief by at most 2 levels
+ *   out of 255;
+ * - the values are blurred as fixed point integers, so that the value of a
+ *   pixel doesn't depend on where the running sums started, which makes the
+ *   blur of a part of an image give exactly the pixels of the blur of the
+ *   whole image, as long as the part has a margin of support() pixels;
+ * - the rows, then the columns, are split into bands blurred in parallel.
+ * The values must be between -2^15 and 2^15, and are blurred with a
+ * precision of 2^-16.
+ *
+ * @author Maxime Kjaer (250694)
+ * @author Timote Vaucher (246532)
+ */
+//@formatter:on
+public final class GaussianBlur {
+    /**
+     * The biggest radius up to which the kernel is applied, in pixels
+     */
+    public static final int MAX_KERNEL_RADIUS = 8;
+    private static final int BOXES = 3;
+    private static final float SCALE = 1 << 16;
+    private static final int BAND_SIZE = 64; // in rows or columns
+
+    // The kernel, from -support to support, or null if the boxes are used
+    private final double[] kernel;
+    private final int[] radii = new int[BOXES];
+    private final int support;
+
+    /**
+     * Constructs a blur of a given radius.
+     *
+     * @param radius
+     *            the radius of the blur, three times the standard deviation
+     *            of its Gaussian, in pixels
+     * @throws IllegalArgumentException
+     *             if the radius is negative
+     */
+    public GaussianBlur(double radius) {
+        if (radius < 0)
+            throw new IllegalArgumentException(
+                    "The blur radius cannot be negative, was : " + radius);
+        if (Math.ceil(radius) <= MAX_KERNEL_RADIUS) {
+            this.kernel = kernel(radius);
+            this.support = kernel.length / 2;
+            return;
+        }
+
+        // The widths of the boxes are the odd integers around the ideal
+        // width, the narrower ones first, so that the sum of the variances
+        // of the boxes, (width^2 - 1) / 12, is the closest to the one of the
+        // Gaussian
+        double variance = radius * radius / 9;
+        int lower = (int) Math.floor(Math.sqrt(12 * variance / BOXES + 1));
+        if (lower % 2 == 0)
+            --lower;
+        int narrower = (int) Math.round((12 * variance - BOXES * lower
+                * lower - 4 * BOXES * lower - 3 * BOXES)
+                / (-4d * lower - 4));
+        int support = 0;
+        for (int i = 0; i < BOXES; ++i) {
+            radii[i] = i < narrower ? (lower - 1) / 2 : (lower + 1) / 2;
+            support += radii[i];
+        }
+        this.kernel = null;
+        this.support = support;
+    }
+
+    private static double[] kernel(double radius) {
+        int middle = (int) Math.ceil(radius);
+        if (middle == 0)
+            return new double[] { 1 };
+        double sigma = radius / 3;
+        double[] kernel = new double[2 * middle + 1];
+        double sum = 0;
+        for (int i = 0; i < kernel.length; ++i) {
+            int distance = i - middle;
+            kernel[i] = Math.exp(-(distance * distance)
+                    / (2 * sigma * sigma));
+            sum += kernel[i];
+        }
+        for (int i = 0; i < kernel.length; ++i)
+            kernel[i] /= sum;
+        return kernel;
+    }
+
+    /**
+     * Returns the support of the blur: the distance up to which a pixel
+     * changes the blurred values of the others.
+     *
+     * @return the support, in pixels
+     */
+    public int support() {
+        return support;
+    }
+
+    /**
+     * Blurs an image in place. Beyond its borders, the image is extended with
+     * the values of its border pixels.
+     *
+     * @param values
+     *            the values of the pixels, the pixel (x, y) being at the
+     *            index y * width + x
+     * @param width
+     *            the width of the image, in pixels
+     * @param height
+     *            the height of the image, in pixels
+     * @param parallelism
+     *            the number of threads blurring the image (1 means that the
+     *            image is blurred on the calling thread only)
+     * @throws IllegalArgumentException
+     *             if the array doesn't hold width * height values, or if the
+     *             parallelism is smaller than 1
+     */
+    public void blur(float[] values, int width, int height, int parallelism) {
+        if (width < 0 || height < 0 || values.length != width * height)
+            throw new IllegalArgumentException("The array must hold " + width
+                    + " x " + height + " values");
+        if (parallelism < 1)
+            throw new IllegalArgumentException(
+                    "Parallelism must be at least 1, was : " + parallelism);
+        if (values.length == 0)
+            return;
+
+        int[] pixels = new int[values.length], buffer = new int[values.length];
+        for (int i = 0; i < values.length; ++i)
+            pixels[i] = Math.round(values[i] * SCALE);
+
+        ForkJoinPool pool = parallelism == 1 ? null : new ForkJoinPool(
+                parallelism);
+        try {
+            if (kernel != null) {
+                int[] source = pixels, target = buffer;
+                run(pool, height, (first, count) -> convolveRows(source,
+                        target, width, first, count));
+                // The columns are convolved back into pixels
+                run(pool, width, (first, count) -> convolveColumns(target,
+                        source, width, height, first, count));
+            } else {
+                for (int radius : radii) {
+                    int[] source = pixels, target = buffer;
+                    run(pool, height, (first, count) -> blurRows(source,
+                            target, width, first, count, radius));
+                    pixels = target;
+                    buffer = source;
+                }
+                for (int radius : radii) {
+                    int[] source = pixels, target = buffer;
+                    run(pool, width, (first, count) -> blurColumns(source,
+                            target, width, height, first, count, radius));
+                    pixels = target;
+                    buffer = source;
+                }
+            }
+        } finally {
+            if (pool != null)
+                pool.shutdown();
+        }
+
+        for (int i = 0; i < values.length; ++i)
+            values[i] = pixels[i] / SCALE;
+    }
+
+    /**
+     * Convolves the rows [firstRow, firstRow + rows[ with the kernel.
+     */
+    private void convolveRows(int[] source, int[] target, int width,
+            int firstRow, int rows) {
+        for (int y = firstRow; y < firstRow + rows; ++y) {
+            int row = y * width;
+            for (int x = 0; x < width; ++x) {
+                double sum = 0;
+                for (int i = -support; i <= support; ++i)
+                    sum += kernel[i + support]
+                            * source[row + Math.max(0, Math.min(x + i,
+                                    width - 1))];
+                target[row + x] = (int) Math.round(sum);
+            }
+        }
+    }
+
+    /**
+     * Convolves the columns [firstColumn, firstColumn + columns[ with the
+     * kernel, going through them row by row.
+     */
+    private void convolveColumns(int[] source, int[] target, int width,
+            int height, int firstColumn, int columns) {
+        double[] sums = new double[columns];
+        for (int y = 0; y < height; ++y) {
+            Arrays.fill(sums, 0);
+            for (int i = -support; i <= support; ++i) {
+                int row = Math.max(0, Math.min(y + i, height - 1)) * width
+                        + firstColumn;
+                for (int c = 0; c < columns; ++c)
+                    sums[c] += kernel[i + support] * source[row + c];
+            }
+            int row = y * width + firstColumn;
+            for (int c = 0; c < columns; ++c)
+                target[row + c] = (int) Math.round(sums[c]);
+        }
+    }
+
+    /**
+     * Blurs the rows [firstRow, firstRow + rows[ with a box.
+     */
+    private static void blurRows(int[] source, int[] target, int width,
+            int firstRow, int rows, int radius) {
+        int boxWidth = 2 * radius + 1;
+        for (int y = firstRow; y < firstRow + rows; ++y) {
+            int row = y * width;
+            long sum = (long) (radius + 1) * source[row];
+            for (int i = 1; i <= radius; ++i)
+                sum += source[row + Math.min(i, width - 1)];
+            for (int x = 0; x < width; ++x) {
+                target[row + x] = average(sum, boxWidth);
+                sum += source[row + Math.min(x + radius + 1, width - 1)]
+                        - source[row + Math.max(x - radius, 0)];
+            }
+        }
+    }
+
+    /**
+     * Blurs the columns [firstColumn, firstColumn + columns[ with a box,
+     * going through them row by row.
+     */
+    private static void blurColumns(int[] source, int[] target, int width,
+            int height, int firstColumn, int columns, int radius) {
+        int boxWidth = 2 * radius + 1;
+        long[] sums = new long[columns];
+        for (int c = 0; c < columns; ++c) {
+            int x = firstColumn + c;
+            sums[c] = (long) (radius + 1) * source[x];
+            for (int i = 1; i <= radius; ++i)
+                sums[c] += source[Math.min(i, height - 1) * width + x];
+        }
+        for (int y = 0; y < height; ++y) {
+            int row = y * width + firstColumn;
+            int entering = Math.min(y + radius + 1, height - 1) * width
+                    + firstColumn;
+            int leaving = Math.max(y - radius, 0) * width + firstColumn;
+            for (int c = 0; c < columns; ++c) {
+                target[row + c] = average(sums[c], boxWidth);
+                sums[c] += source[entering + c] - source[leaving + c];
+            }
+        }
+    }
+
+    // The rounded average of the values of a box, whose width is odd
+    private static int average(long sum, int boxWidth) {
+        return (int) Math.floorDiv(2 * sum + boxWidth, 2L * boxWidth);
+    }
+
+    /**
+     * A pass of the blur on the bands of rows or columns [first, first +
+     * count[.
+     */
+    @FunctionalInterface
+    private interface Pass {
+        void run(int first, int count);
+    }
+
+    private static void run(ForkJoinPool pool, int size, Pass pass) {
+        if (pool == null || size <= BAND_SIZE)
+            pass.run(0, size);
+        else
+            pool.invoke(new BandTask(pass, 0, size));
+    }
+
+    /**
+     * A task that runs a pass on a range of rows or columns, splitting it in
+     * halves until it isn't bigger than a band.
+     */
+    private static final class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Pass pass;
+        private final int first, count;
+
+        private BandTask(Pass pass, int first, int count) {
+            this.pass = pass;
+            this.first = first;
+            this.count = count;
+        }
+
+        @Override
+        protected void compute() {
+            if (count <= BAND_SIZE) {
+                pass.run(first, count);
+            } else {
+                int half = count / 2;
+                invokeAll(new BandTask(pass, first, half), new BandTask(pass,
+                        first + half, count - half));
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package ch.epfl.imhof.painting;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+//@formatter:off
+/**
+ * Blends images by multiplying their colors, pixel by pixel, which is how the
+ * map is shaded by its relief. The colors are multiplied like
+ * Color.multiplyWith does, followed by Color.packedRBG, but without any
+ * intermediate object:
+ * - the images of type TYPE_INT_RGB are read and written directly in the
+ *   arrays of their rasters, row by row;
+ * - the components are multiplied with integers only;
+ * - the result is written in place, in the first image.
+ * The rows are split into bands blended in parallel.
+ *
+ * @author Maxime Kjaer (250694)
+ * @author Timote Vaucher (246532)
+ */
+//@formatter:on
+public final class ImageBlender {
+    private static final int BAND_HEIGHT = 64; // in pixels
+    // floor(a / 255 * b / 255 * 255.9999) is floor(a * b * NUMERATOR /
+    // DENOMINATOR), computed exactly on longs
+    private static final long NUMERATOR = 2_559_999L;
+    private static final long DENOMINATOR = 255L * 255L * 10_000L;
+
+    // Constructor is private in order to prevent instantiation
+    private ImageBlender() {
+    }
+
+    /**
+     * Multiplies the colors of an image by the ones of another image of the
+     * same size, in place.
+     *
+     * @param target
+     *            the image whose colors are multiplied, which receives the
+     *            result
+     * @param factor
+     *            the image whose colors multiply the ones of the target
+     * @param parallelism
+     *            the number of threads blending the image (1 means that the
+     *            image is blended on the calling thread only)
+     * @throws IllegalArgumentException
+     *             if the images don't have the same size, or if the
+     *             parallelism is smaller than 1
+     */
+    public static void multiply(BufferedImage target, BufferedImage factor,
+            int parallelism) {
+        if (target.getWidth() != factor.getWidth()
+                || target.getHeight() != factor.getHeight())
+            throw new IllegalArgumentException(
+                    "The images must have the same size");
+        if (parallelism < 1)
+            throw new IllegalArgumentException(
+                    "Parallelism must be at least 1, was : " + parallelism);
+
+        int height = target.getHeight();
+        if (parallelism == 1 || height <= BAND_HEIGHT) {
+            multiplyRows(target, factor, 0, height);
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new BandTask(target, factor, 0, height));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Multiplies the rows [firstRow, firstRow + rows[ of the target.
+     */
+    private static void multiplyRows(BufferedImage target,
+            BufferedImage factor, int firstRow, int rows) {
+        int width = target.getWidth();
+        int[] targetData = data(target), factorData = data(factor);
+        if (targetData != null && factorData != null) {
+            for (int y = firstRow; y < firstRow + rows; ++y)
+                multiplyRow(targetData, offset(target, y), factorData,
+                        offset(factor, y), width);
+        } else {
+            // Other image types go through their color model, a row at once
+            int[] targetRow = new int[width], factorRow = new int[width];
+            for (int y = firstRow; y < firstRow + rows; ++y) {
+                target.getRGB(0, y, width, 1, targetRow, 0, width);
+                factor.getRGB(0, y, width, 1, factorRow, 0, width);
+                multiplyRow(targetRow, 0, factorRow, 0, width);
+                target.setRGB(0, y, width, 1, targetRow, 0, width);
+            }
+        }
+    }
+
+    private static void multiplyRow(int[] target, int targetOffset,
+            int[] factor, int factorOffset, int width) {
+        for (int x = 0; x < width; ++x) {
+            int t = target[targetOffset + x], f = factor[factorOffset + x];
+            target[targetOffset + x] = (t & 0xFF000000)
+                    | multiply(t >>> 16 & 0xFF, f >>> 16 & 0xFF) << 16
+                    | multiply(t >>> 8 & 0xFF, f >>> 8 & 0xFF) << 8
+                    | multiply(t & 0xFF, f & 0xFF);
+        }
+    }
+
+    private static int multiply(int a, int b) {
+        return (int) (a * b * NUMERATOR / DENOMINATOR);
+    }
+
+    /**
+     * Returns the array of the pixels of an image of type TYPE_INT_RGB, or
+     * null for the other types.
+     */
+    private static int[] data(BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_INT_RGB)
+            return null;
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Returns the index of the first pixel of a row in the array of an image
+     * of type TYPE_INT_RGB, which can be a subimage of a bigger one.
+     */
+    private static int offset(BufferedImage image, int y) {
+        Raster raster = image.getRaster();
+        SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) raster
+                .getSampleModel();
+        return raster.getDataBuffer().getOffset()
+                + model.getOffset(-raster.getSampleModelTranslateX(), y
+                        - raster.getSampleModelTranslateY());
+    }
+
+    /**
+     * A task that blends a range of rows, splitting it in halves until it
+     * isn't higher than a band.
+     */
+    private static final class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final BufferedImage target, factor;
+        private final int firstRow, rows;
+
+        private BandTask(BufferedImage target, BufferedImage factor,
+                int firstRow, int rows) {
+            this.target = target;
+            this.factor = factor;
+            this.firstRow = firstRow;
+            this.rows = rows;
+        }
+
+        @Override
+        protected void compute() {
+            if (rows <= BAND_HEIGHT) {
+                multiplyRows(target, factor, firstRow, rows);
+            } else {
+                int half = rows / 2;
+                invokeAll(new BandTask(target, factor, firstRow, half),
+                        new BandTask(target, factor, firstRow + half, rows
+                                - half));
+            }
+        }
+    }
+}
@@ -6,11 +6,13 @@ import static java.awt.RenderingHints.VALUE_ANTIALIAS_ON;
 import java.awt.BasicStroke;
 import java.awt.Graphics2D;
 import java.awt.Shape;
-import java.awt.geom.Area;
 import java.awt.geom.Path2D;
 import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.function.Function;
 
+import ch.epfl.imhof.Map;
 import ch.epfl.imhof.geometry.Point;
 import ch.epfl.imhof.geometry.PolyLine;
 import ch.epfl.imhof.geometry.Polygon;
@@ -27,7 +29,20 @@ public final class Java2DCanvas implements Canvas {
     private final Graphics2D ctx;
 
     private final Function<Point, Point> projectedToCanvas;
+    private final Point bl, tr;
+    // The row of the whole canvas at the top of the image, and the height
+    // of a row in the projected coordinates
+    private final int firstRow;
+    private final double scalingFactor, margin, tolerance, rowHeight;
+    private final Point visibleBottomLeft, visibleTopRight;
     private final static double CANVAS_DPI = 72d;
+    // Margin of the visible zone, in points, so that the strokes of the
+    // elements just outside of the canvas are still drawn
+    private final static double VISIBLE_MARGIN = 36d;
+    // Largest distance between a drawn polyline and the polyline, in pixels
+    private final static double SIMPLIFICATION_TOLERANCE = 0.25d;
+    private final static int MIN_BAND_HEIGHT = 32; // in pixels
+    private final static int BANDS_PER_THREAD = 4;
 
     /**
      * Constructs a new Java2D object.
@@ -54,6 +69,41 @@ public final class Java2DCanvas implements Canvas {
      */
     public Java2DCanvas(Point bl, Point tr, int width, int height, int dpi,
             Color bg) {
+        this(bl, tr, width, height, dpi, bg, 0, height);
+    }
+
+    /**
+     * Constructs a new Java2D object whose image only holds a horizontal
+     * strip of the Canvas: the rows [firstRow, firstRow + rows[. The pixels of
+     * the strip are the ones of the same rows of the whole Canvas, so that a
+     * big map can be drawn strip after strip.
+     * 
+     * @param bl
+     *            The bottom-left Point of the whole Canvas.
+     * @param tr
+     *            The top-right Point of the whole Canvas (should be above and
+     *            to the right of bl)
+     * @param width
+     *            The width of the Canvas, in pixels (should be >=0).
+     * @param height
+     *            The height of the whole Canvas, in pixels (should be >=0).
+     * @param dpi
+     *            The resolution of the Canvas image, in dots per inch (should
+     *            be >=0).
+     * @param bg
+     *            The background Color of the Canvas.
+     * @param firstRow
+     *            The first row of the strip, from the top of the Canvas.
+     * @param rows
+     *            The number of rows of the strip.
+     * 
+     * @throws IllegalArgumentException
+     *             If any of the parameters are outside of their allowed ranges,
+     *             or are nonsensical (e.g. a bottom-left point that is above
+     *             the top-right, or a strip that isn't within the Canvas)
+     */
+    public Java2DCanvas(Point bl, Point tr, int width, int height, int dpi,
+            Color bg, int firstRow, int rows) {
         if (height < 0 || width < 0)
             throw new IllegalArgumentException(
                     "Width and height must be bigger than 0");
@@ -63,33 +113,132 @@ public final class Java2DCanvas implements Canvas {
         if (bl.x() > tr.x() || bl.y() > tr.y())
             throw new IllegalArgumentException(
                     "The bottom left point must be below and to the left of the top right point");
-        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        if (firstRow < 0 || rows < 0 || firstRow + rows > height)
+            throw new IllegalArgumentException("The rows " + firstRow + " to "
+                    + (firstRow + rows) + " aren't within the canvas");
+        image = new BufferedImage(width, rows, BufferedImage.TYPE_INT_RGB);
         ctx = image.createGraphics();
 
         ctx.setColor(bg.toAWTColor());
-        ctx.fillRect(0, 0, width, height);
-        // Change the scale
-        double scalingFactor = dpi / CANVAS_DPI;
+        ctx.fillRect(0, 0, width, rows);
+        // Move the strip to its rows, and change the scale
+        this.bl = bl;
+        this.tr = tr;
+        this.firstRow = firstRow;
+        scalingFactor = dpi / CANVAS_DPI;
+        ctx.translate(0, -firstRow);
         ctx.scale(scalingFactor, scalingFactor);
         projectedToCanvas = Point.alignedCoordinateChange(bl, new Point(0,
                 height / scalingFactor), tr,
                 new Point(width / scalingFactor, 0));
+        margin = VISIBLE_MARGIN * (tr.x() - bl.x()) / (width / scalingFactor);
+        tolerance = SIMPLIFICATION_TOLERANCE * (tr.x() - bl.x()) / width;
+        rowHeight = (tr.y() - bl.y()) / height;
+        visibleBottomLeft = new Point(bl.x() - margin, tr.y()
+                - (firstRow + rows) * rowHeight - margin);
+        visibleTopRight = new Point(tr.x() + margin, tr.y() - firstRow
+                * rowHeight + margin);
 
         // Set antialiasing
         ctx.setRenderingHint(KEY_ANTIALIASING, VALUE_ANTIALIAS_ON);
 
     }
 
+    /**
+     * Constructs the canvas of a horizontal band of the image of a canvas.
+     * Its Graphics2D only covers the rows of the band, and its visible zone
+     * is the one of the band.
+     */
+    private Java2DCanvas(Java2DCanvas whole, int firstRow, int rows) {
+        image = whole.image;
+        ctx = image.getSubimage(0, firstRow, image.getWidth(), rows)
+                .createGraphics();
+        this.firstRow = whole.firstRow + firstRow;
+        ctx.translate(0, -this.firstRow);
+        ctx.scale(whole.scalingFactor, whole.scalingFactor);
+        ctx.setRenderingHint(KEY_ANTIALIASING, VALUE_ANTIALIAS_ON);
+
+        bl = whole.bl;
+        tr = whole.tr;
+        scalingFactor = whole.scalingFactor;
+        margin = whole.margin;
+        tolerance = whole.tolerance;
+        rowHeight = whole.rowHeight;
+        projectedToCanvas = whole.projectedToCanvas;
+        visibleBottomLeft = new Point(bl.x() - margin, tr.y()
+                - (this.firstRow + rows) * rowHeight - margin);
+        visibleTopRight = new Point(tr.x() + margin, tr.y() - this.firstRow
+                * rowHeight + margin);
+    }
+
+    /**
+     * Draws a map with a painter, on several threads. The image is split into
+     * horizontal bands, each with its own Graphics2D, and the painter draws
+     * the whole map on every band, in parallel. The elements crossing the
+     * border of two bands are drawn on both of them, each band only keeping
+     * its rows, so the image is the one drawn by painter.drawMap(map, this).
+     * 
+     * @param painter
+     *            the painter drawing the map
+     * @param map
+     *            the map to draw
+     * @param parallelism
+     *            the number of threads drawing the bands (1 means that the
+     *            map is drawn on the calling thread only)
+     * @throws IllegalArgumentException
+     *             if the parallelism is smaller than 1
+     */
+    public void drawMap(Painter painter, Map map, int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException(
+                    "Parallelism must be at least 1, was : " + parallelism);
+        int height = image.getHeight();
+        int bandHeight = Math.max(MIN_BAND_HEIGHT, (height
+                + BANDS_PER_THREAD * parallelism - 1)
+                / (BANDS_PER_THREAD * parallelism));
+        if (parallelism == 1 || height <= bandHeight) {
+            painter.drawMap(map, this);
+            return;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new BandTask(painter, map, bandHeight, 0, height));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
     /**
      * A getter for the image on the canvas.
      * 
      * @return A BufferedImage object representing what has been drawn onto the
-     *         canvas.
+     *         canvas (only the rows of the strip, for a strip of a canvas).
      */
     public BufferedImage image() {
         return image;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see ch.epfl.imhof.painting.Canvas#bottomLeft()
+     */
+    @Override
+    public Point bottomLeft() {
+        return visibleBottomLeft;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see ch.epfl.imhof.painting.Canvas#topRight()
+     */
+    @Override
+    public Point topRight() {
+        return visibleTopRight;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -119,18 +268,30 @@ public final class Java2DCanvas implements Canvas {
     @Override
     public void drawPolygon(Polygon polygon, Color color) {
         ctx.setColor(color.toAWTColor());
-        // creating the shell
-        Area shell = new Area(pathPolyLine(polygon.shell()));
-        for (PolyLine p : polygon.holes()) {
-            shell.subtract(new Area(pathPolyLine(p)));
-        }
-        ctx.fill(shell);
+        // The holes are inside the shell and don't overlap, so filling the
+        // shell and the holes with the even-odd rule leaves the holes empty,
+        // without the cost of subtracting areas.
+        Path2D.Double path = new Path2D.Double(Path2D.WIND_EVEN_ODD);
+        appendPolyLine(path, polygon.shell());
+        for (PolyLine p : polygon.holes())
+            appendPolyLine(path, p);
+        ctx.fill(path);
     }
 
     private Shape pathPolyLine(PolyLine polyLine) {
-        boolean first = true;
         Path2D.Double path = new Path2D.Double();
-        for (Point point : polyLine.points()) {
+        appendPolyLine(path, polyLine);
+        return path;
+    }
+
+    /**
+     * Appends a polyline to a path, as a new subpath. The polyline is
+     * simplified first, as its points closer than a fraction of a pixel to
+     * each other wouldn't be seen.
+     */
+    private void appendPolyLine(Path2D.Double path, PolyLine polyLine) {
+        boolean first = true;
+        for (Point point : polyLine.simplified(tolerance).points()) {
             Point p = projectedToCanvas.apply(point);
             if (first) {
                 path.moveTo(p.x(), p.y());
@@ -140,6 +301,40 @@ public final class Java2DCanvas implements Canvas {
         }
         if (polyLine.isClosed())
             path.closePath();
-        return path;
+    }
+
+    /**
+     * A task that draws a range of rows of the canvas, splitting it in halves
+     * until it isn't higher than a band.
+     */
+    private final class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Painter painter;
+        private final Map map;
+        private final int bandHeight, firstRow, rows;
+
+        private BandTask(Painter painter, Map map, int bandHeight,
+                int firstRow, int rows) {
+            this.painter = painter;
+            this.map = map;
+            this.bandHeight = bandHeight;
+            this.firstRow = firstRow;
+            this.rows = rows;
+        }
+
+        @Override
+        protected void compute() {
+            if (rows <= bandHeight) {
+                Java2DCanvas band = new Java2DCanvas(Java2DCanvas.this,
+                        firstRow, rows);
+                painter.drawMap(map, band);
+                band.ctx.dispose();
+            } else {
+                int half = rows / 2;
+                invokeAll(new BandTask(painter, map, bandHeight, firstRow,
+                        half), new BandTask(painter, map, bandHeight, firstRow
+                        + half, rows - half));
+            }
+        }
     }
 }
@@ -13,6 +13,10 @@ import ch.epfl.imhof.painting.LineStyle.LineJoin;
  * Painter is a functional interface defining painters that describe which
  * elements from a map have to be painted on a canvas. It also proposes default
  * utility operators that filter/stack existing painters.
+ * <p>
+ * The basic painters and the operators build a table of rules rather than
+ * nested painters, so that a composed painter classifies each element of the
+ * map once instead of filtering the whole map at every level.
  * 
  * @author Maxime Kjaer (250694)
  * @author Timote Vaucher (246532)
@@ -39,11 +43,11 @@ public interface Painter {
      * @return a new painter with given parameters that draws polygons.
      */
     public static Painter polygon(Color color) {
-        return (map, canvas) -> {
+        return RulePainter.basic((map, canvas) -> {
             for (Attributed<Polygon> polygon : map.polygons()) {
                 canvas.drawPolygon(polygon.value(), color);
             }
-        };
+        }, false, true);
     }
 
     /**
@@ -55,11 +59,11 @@ public interface Painter {
      * @return a new painter with given parameters that draws polylines.
      */
     public static Painter line(LineStyle style) {
-        return (map, canvas) -> {
+        return RulePainter.basic((map, canvas) -> {
             for (Attributed<PolyLine> polyLine : map.polyLines()) {
                 canvas.drawPolyLine(polyLine.value(), style);
             }
-        };
+        }, true, false);
     }
 
     /**
@@ -105,13 +109,13 @@ public interface Painter {
      *         polygons.
      */
     public static Painter outline(LineStyle style) {
-        return (map, canvas) -> {
+        return RulePainter.basic((map, canvas) -> {
             for (Attributed<Polygon> polygon : map.polygons()) {
                 for (PolyLine polyline : polygon.value().holes())
                     canvas.drawPolyLine(polyline, style);
                 canvas.drawPolyLine(polygon.value().shell(), style);
             }
-        };
+        }, false, true);
     }
 
     /**
@@ -156,8 +160,7 @@ public interface Painter {
      * @return a painter that does nothing
      */
     public static Painter empty() {
-        return (map, canvas) -> {
-        };
+        return RulePainter.empty();
     }
 
     /**
@@ -169,16 +172,7 @@ public interface Painter {
      * @return the derived painter
      */
     public default Painter when(Predicate<Attributed<?>> predicate) {
-        return (map, canvas) -> {
-            Map.Builder builder = new Map.Builder();
-            for (Attributed<PolyLine> p : map.polyLines())
-                if (predicate.test(p))
-                    builder.addPolyLine(p);
-            for (Attributed<Polygon> p : map.polygons())
-                if (predicate.test(p))
-                    builder.addPolygon(p);
-            drawMap(builder.build(), canvas);
-        };
+        return RulePainter.of(this).when(predicate);
     }
 
     /**
@@ -190,23 +184,20 @@ public interface Painter {
      * @return new painter that paints current painter above given painter
      */
     public default Painter above(Painter that) {
-        return (map, canvas) -> {
-            that.drawMap(map, canvas);
-            this.drawMap(map, canvas);
-        };
+        return RulePainter.of(this).above(that);
     }
 
     /**
-     * Derives a painter that draws the map layer by layer from -5 to 5.
+     * Derives a painter that draws the map layer by layer from -5 to 5. Each
+     * layer only goes through the elements of the layer index of the map.
      * 
      * @return new painter that draws the map layer by layer
      */
     public default Painter layered() {
-        return (map, canvas) -> {
-            Painter out = empty();
-            for (int i = -5; i <= 5; ++i)
-                out = when(Filters.onLayer(i)).above(out);
-            out.drawMap(map, canvas);
-        };
+        RulePainter rules = RulePainter.of(this);
+        Painter out = empty();
+        for (int i = Map.MIN_LAYER; i <= Map.MAX_LAYER; ++i)
+            out = rules.onLayer(i).above(out);
+        return out;
     }
 }
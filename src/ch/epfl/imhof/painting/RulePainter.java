@@ -0,0 +1,292 @@
+package ch.epfl.imhof.painting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+
+import ch.epfl.imhof.Attributed;
+import ch.epfl.imhof.Map;
+import ch.epfl.imhof.geometry.PolyLine;
+import ch.epfl.imhof.geometry.Polygon;
+
+/**
+ * A painter compiled into a table of rules. A rule is a basic painter along
+ * with the layer and the predicates that the elements it draws must satisfy.
+ * The operators of Painter build such tables instead of nesting painters, so
+ * that a map can be drawn by classifying each of its elements once, and then
+ * by drawing the elements of each rule, in the order of the table.
+ * <p>
+ * The result is the one of the nested painters: the rules are stacked like
+ * the painters they come from, and the elements given to a rule keep the
+ * order of the map. Any painter can be a rule; it then receives the map of
+ * the elements satisfying its layer and predicates, as it would have through
+ * Painter.when.
+ *
+ * @author Maxime Kjaer (250694)
+ * @author Timote Vaucher (246532)
+ */
+final class RulePainter implements Painter {
+    private static final int MIN_LAYER = Map.MIN_LAYER;
+    private static final int MAX_LAYER = Map.MAX_LAYER;
+    private static final int ANY_LAYER = Integer.MIN_VALUE;
+
+    private final List<Rule> rules;
+
+    private RulePainter(List<Rule> rules) {
+        this.rules = Collections.unmodifiableList(rules);
+    }
+
+    /**
+     * Returns the table without any rule, which draws nothing.
+     *
+     * @return the empty table
+     */
+    static RulePainter empty() {
+        return new RulePainter(Collections.emptyList());
+    }
+
+    /**
+     * Returns the table of rules of a painter. A painter that isn't a table
+     * becomes a table made of a single rule, which draws every element.
+     *
+     * @param painter
+     *            the painter
+     * @return the table of rules of the painter
+     */
+    static RulePainter of(Painter painter) {
+        if (painter instanceof RulePainter)
+            return (RulePainter) painter;
+        return basic(painter, true, true);
+    }
+
+    /**
+     * Returns the table made of a single basic painter. The elements that the
+     * painter ignores aren't classified for it.
+     *
+     * @param painter
+     *            the basic painter
+     * @param drawsPolyLines
+     *            whether the painter draws the polylines of the map
+     * @param drawsPolygons
+     *            whether the painter draws the polygons of the map
+     * @return the table of the painter
+     */
+    static RulePainter basic(Painter painter, boolean drawsPolyLines,
+            boolean drawsPolygons) {
+        return new RulePainter(Collections.singletonList(new Rule(painter,
+                drawsPolyLines, drawsPolygons, ANY_LAYER, Collections
+                        .emptyList())));
+    }
+
+    /**
+     * Returns the table that only draws the elements of the given layer.
+     * Within the layers drawn by Painter.layered, the rules are indexed by
+     * layer instead of testing a predicate.
+     *
+     * @param layer
+     *            the layer of the elements to draw
+     * @return the table restricted to the layer
+     */
+    RulePainter onLayer(int layer) {
+        List<Rule> restricted = new ArrayList<>(rules.size());
+        for (Rule rule : rules) {
+            if (rule.layer == ANY_LAYER && MIN_LAYER <= layer
+                    && layer <= MAX_LAYER)
+                restricted.add(new Rule(rule.painter, rule.drawsPolyLines,
+                        rule.drawsPolygons, layer, rule.predicates));
+            else
+                // Rare enough to be tested like any other predicate
+                restricted.add(rule.and(Filters.onLayer(layer)));
+        }
+        return new RulePainter(restricted);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see ch.epfl.imhof.painting.Painter#when(java.util.function.Predicate)
+     */
+    @Override
+    public Painter when(Predicate<Attributed<?>> predicate) {
+        List<Rule> filtered = new ArrayList<>(rules.size());
+        for (Rule rule : rules)
+            filtered.add(rule.and(predicate));
+        return new RulePainter(filtered);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see ch.epfl.imhof.painting.Painter#above(ch.epfl.imhof.painting.Painter)
+     */
+    @Override
+    public Painter above(Painter that) {
+        List<Rule> stacked = new ArrayList<>(of(that).rules);
+        stacked.addAll(rules);
+        return new RulePainter(stacked);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see ch.epfl.imhof.painting.Painter#drawMap(ch.epfl.imhof.Map,
+     * ch.epfl.imhof.painting.Canvas)
+     */
+    @Override
+    public void drawMap(Map map, Canvas canvas) {
+        // The elements outside of the canvas are left out before classifying
+        Map visible = map.subset(canvas.bottomLeft(), canvas.topRight());
+        Classifier classifier = new Classifier();
+        List<List<Attributed<PolyLine>>> polyLines = classifier.classify(
+                visible.polyLines(), visible::polyLinesOnLayer, true);
+        List<List<Attributed<Polygon>>> polygons = classifier.classify(
+                visible.polygons(), visible::polygonsOnLayer, false);
+        for (int r = 0; r < rules.size(); ++r)
+            rules.get(r).painter.drawMap(
+                    new Map(polyLines.get(r), polygons.get(r)), canvas);
+    }
+
+    /**
+     * Sorts the elements of a map into the rules they satisfy. Each distinct
+     * predicate is tested at most once per element, and the rules of a layer
+     * only go through the elements of the layer index of the map.
+     */
+    private final class Classifier {
+        private final int[][] predicateIndices = new int[rules.size()][];
+        private final int[] stamps;
+        private final boolean[] results;
+        private int stamp = 0;
+        private final List<Predicate<Attributed<?>>> predicates;
+
+        private Classifier() {
+            predicates = new ArrayList<>();
+            IdentityHashMap<Predicate<Attributed<?>>, Integer> indices;
+            indices = new IdentityHashMap<>();
+            for (int r = 0; r < rules.size(); ++r) {
+                List<Predicate<Attributed<?>>> rulePredicates;
+                rulePredicates = rules.get(r).predicates;
+                predicateIndices[r] = new int[rulePredicates.size()];
+                for (int p = 0; p < rulePredicates.size(); ++p) {
+                    Predicate<Attributed<?>> predicate;
+                    predicate = rulePredicates.get(p);
+                    Integer index = indices.get(predicate);
+                    if (index == null) {
+                        index = predicates.size();
+                        indices.put(predicate, index);
+                        predicates.add(predicate);
+                    }
+                    predicateIndices[r][p] = index;
+                }
+            }
+            stamps = new int[predicates.size()];
+            results = new boolean[predicates.size()];
+        }
+
+        /**
+         * Returns, for every rule, the list of the given elements it draws.
+         */
+        private <T> List<List<Attributed<T>>> classify(
+                List<Attributed<T>> elements,
+                IntFunction<List<Attributed<T>>> onLayer, boolean arePolyLines) {
+            // The first list holds the rules of any layer, the others the
+            // rules of the layers from MIN_LAYER to MAX_LAYER
+            int[][] rulesByLayer = rulesByLayer(arePolyLines);
+
+            List<List<Attributed<T>>> buckets = new ArrayList<>(
+                    Collections.nCopies(rules.size(),
+                            Collections.<Attributed<T>> emptyList()));
+            if (rulesByLayer[0].length > 0)
+                for (Attributed<T> element : elements)
+                    dispatch(element, rulesByLayer[0], buckets);
+            for (int l = MIN_LAYER; l <= MAX_LAYER; ++l) {
+                int[] layerRules = rulesByLayer[slot(l)];
+                if (layerRules.length > 0)
+                    for (Attributed<T> element : onLayer.apply(l))
+                        dispatch(element, layerRules, buckets);
+            }
+            return buckets;
+        }
+
+        private int[][] rulesByLayer(boolean polyLines) {
+            int[][] byLayer = new int[MAX_LAYER - MIN_LAYER + 2][];
+            int[] sizes = new int[byLayer.length];
+            for (Rule rule : rules)
+                if (rule.draws(polyLines))
+                    ++sizes[slot(rule.layer)];
+            for (int l = 0; l < byLayer.length; ++l)
+                byLayer[l] = new int[sizes[l]];
+            Arrays.fill(sizes, 0);
+            for (int r = 0; r < rules.size(); ++r) {
+                Rule rule = rules.get(r);
+                if (rule.draws(polyLines)) {
+                    int slot = slot(rule.layer);
+                    byLayer[slot][sizes[slot]++] = r;
+                }
+            }
+            return byLayer;
+        }
+
+        private int slot(int layer) {
+            return layer == ANY_LAYER ? 0 : layer - MIN_LAYER + 1;
+        }
+
+        private <T> void dispatch(Attributed<T> element, int[] ruleIndices,
+                List<List<Attributed<T>>> buckets) {
+            ++stamp;
+            for (int r : ruleIndices) {
+                if (satisfies(element, predicateIndices[r])) {
+                    if (buckets.get(r).isEmpty())
+                        buckets.set(r, new ArrayList<>());
+                    buckets.get(r).add(element);
+                }
+            }
+        }
+
+        private boolean satisfies(Attributed<?> element, int[] indices) {
+            for (int p : indices) {
+                if (stamps[p] != stamp) {
+                    results[p] = predicates.get(p).test(element);
+                    stamps[p] = stamp;
+                }
+                if (!results[p])
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    private static final class Rule {
+        private final Painter painter;
+        private final boolean drawsPolyLines, drawsPolygons;
+        private final int layer;
+        private final List<Predicate<Attributed<?>>> predicates;
+
+        private Rule(Painter painter, boolean drawsPolyLines,
+                boolean drawsPolygons, int layer,
+                List<Predicate<Attributed<?>>> predicates) {
+            this.painter = painter;
+            this.drawsPolyLines = drawsPolyLines;
+            this.drawsPolygons = drawsPolygons;
+            this.layer = layer;
+            this.predicates = predicates;
+        }
+
+        private Rule and(Predicate<Attributed<?>> predicate) {
+            // The outer predicate comes first, as in the nested painters
+            List<Predicate<Attributed<?>>> all = new ArrayList<>(
+                    predicates.size() + 1);
+            all.add(predicate);
+            all.addAll(predicates);
+            return new Rule(painter, drawsPolyLines, drawsPolygons, layer,
+                    Collections.unmodifiableList(all));
+        }
+
+        private boolean draws(boolean polyLines) {
+            return polyLines ? drawsPolyLines : drawsPolygons;
+        }
+    }
+}
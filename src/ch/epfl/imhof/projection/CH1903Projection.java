@@ -7,12 +7,24 @@ import ch.epfl.imhof.geometry.Point;
  * Implementation of the CH1903 projection based on the Projection interface
  * Source : {@link http://tinyurl.com/k3zxbbn}
  * 
+ * The polynomials of the source are evaluated in Horner form, directly on
+ * radians, so that the points can be projected one after the other in an
+ * array without any intermediate object.
+ * 
  * {@inheritDoc}
  * 
  * @author Maxime Kjaer (250694)
  * @author Timote Vaucher (246532)
  */
 public final class CH1903Projection implements Projection {
+    // The auxiliary coordinates are in units of 10000 sexagesimal seconds,
+    // relative to the observatory of Bern
+    private static final double AUXILIARY_PER_RADIAN = Math.toDegrees(1)
+            * 3600 / 10000;
+    private static final double LONGITUDE_OF_BERN = 26782.5 / 10000;
+    private static final double LATITUDE_OF_BERN = 169028.66 / 10000;
+    private static final double RADIANS_PER_AUXILIARY = 1d
+            / AUXILIARY_PER_RADIAN;
 
     /*
      * (non-Javadoc)
@@ -20,27 +32,12 @@ public final class CH1903Projection implements Projection {
      * @see ch.epfl.imhof.projection.Projection#project(ch.epfl.imhof.PointGeo)
      */
     @Override
-    // @formatter:off
     public Point project(PointGeo point) {
-        double longitudeDegrees = Math.toDegrees(point.longitude());
-        double latitudeDegrees = Math.toDegrees(point.latitude());
-        double oneTenthousands = (1. / 10000);
-        double longitude1 = oneTenthousands * (longitudeDegrees * 3600 - 26782.5);
-        double latitude1 = oneTenthousands * (latitudeDegrees * 3600 - 169028.66);
-        double long1TimesLat1 = longitude1 * latitude1;
-        double long1Squared = longitude1 * longitude1;
-        double x = 600072.37
-                + 211455.93 * longitude1 
-                - 10938.51 * long1TimesLat1
-                - .36 * long1TimesLat1 * latitude1 
-                - 44.54 * Math.pow(longitude1, 3);
-        double y = 200147.07 
-                + 308807.95 * latitude1 
-                + 3745.25 * long1Squared 
-                + 76.63 * latitude1 * latitude1 
-                - 194.56 * long1Squared * latitude1 
-                + 119.79 * Math.pow(latitude1, 3);
-        return new Point(x, y);
+        double longitude1 = point.longitude() * AUXILIARY_PER_RADIAN
+                - LONGITUDE_OF_BERN;
+        double latitude1 = point.latitude() * AUXILIARY_PER_RADIAN
+                - LATITUDE_OF_BERN;
+        return new Point(x(longitude1, latitude1), y(longitude1, latitude1));
     }
 
     /*
@@ -53,24 +50,71 @@ public final class CH1903Projection implements Projection {
     public PointGeo inverse(Point point) {
         double x1 = (point.x() - 6e5) / 1e6;
         double y1 = (point.y() - 2e5) / 1e6;
-        double x1TimesY1 = x1 * y1;
-        double x1Squared = x1 * x1;
-        double longitude0 = 2.6779094 
-                + 4.728982 * x1
-                + 0.791484 * x1TimesY1
-                + 0.1306 * x1TimesY1 * y1 
-                - 0.0436 * Math.pow(x1, 3);
-        double latitude0 = 16.9023892 
-                + 3.238272 * y1 
-                - 0.270978 * x1Squared
-                - 0.002528 * y1 * y1 
-                - 0.0447 * x1Squared * y1 
-                - 0.014 * Math.pow(y1, 3);
-        double conversionFraction = 100d / 36d;
-        double longitudeRadians = Math.toRadians(longitude0 * conversionFraction);
-        double latitudeRadians = Math.toRadians(latitude0 * conversionFraction);
+        return new PointGeo(longitude(x1, y1), latitude(x1, y1));
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see ch.epfl.imhof.projection.Projection#projectAll(double[], double[])
+     */
+    @Override
+    public void projectAll(double[] lonLat, double[] outXY) {
+        if (lonLat.length != outXY.length || lonLat.length % 2 != 0)
+            throw new IllegalArgumentException(
+                    "The arrays must have the same even length");
+        for (int i = 0; i < lonLat.length; i += 2) {
+            double longitude1 = lonLat[i] * AUXILIARY_PER_RADIAN
+                    - LONGITUDE_OF_BERN;
+            double latitude1 = lonLat[i + 1] * AUXILIARY_PER_RADIAN
+                    - LATITUDE_OF_BERN;
+            outXY[i] = x(longitude1, latitude1);
+            outXY[i + 1] = y(longitude1, latitude1);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see ch.epfl.imhof.projection.Projection#inverseAll(double[], double[])
+     */
+    @Override
+    public void inverseAll(double[] xy, double[] outLonLat) {
+        if (xy.length != outLonLat.length || xy.length % 2 != 0)
+            throw new IllegalArgumentException(
+                    "The arrays must have the same even length");
+        for (int i = 0; i < xy.length; i += 2) {
+            double x1 = (xy[i] - 6e5) / 1e6;
+            double y1 = (xy[i + 1] - 2e5) / 1e6;
+            outLonLat[i] = longitude(x1, y1);
+            outLonLat[i + 1] = latitude(x1, y1);
+        }
+    }
+
+    // @formatter:off
+    private static double x(double longitude1, double latitude1) {
+        return 600072.37 + longitude1 * (211455.93
+                - latitude1 * (10938.51 + .36 * latitude1)
+                - 44.54 * longitude1 * longitude1);
+    }
+
+    private static double y(double longitude1, double latitude1) {
+        return 200147.07
+                + latitude1 * (308807.95
+                        + latitude1 * (76.63 + 119.79 * latitude1))
+                + longitude1 * longitude1 * (3745.25 - 194.56 * latitude1);
+    }
+
+    private static double longitude(double x1, double y1) {
+        return RADIANS_PER_AUXILIARY * (2.6779094 + x1 * (4.728982
+                + y1 * (0.791484 + 0.1306 * y1)
+                - 0.0436 * x1 * x1));
+    }
 
-        return new PointGeo(longitudeRadians, latitudeRadians);
+    private static double latitude(double x1, double y1) {
+        return RADIANS_PER_AUXILIARY * (16.9023892
+                + y1 * (3.238272 - y1 * (0.002528 + 0.014 * y1))
+                - x1 * x1 * (0.270978 + 0.0447 * y1));
     }
     // @formatter:on
-}
\ No newline at end of file
+}
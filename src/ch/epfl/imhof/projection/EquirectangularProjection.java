@@ -34,4 +34,33 @@ public final class EquirectangularProjection implements Projection {
     public PointGeo inverse(Point point) {
         return new PointGeo(point.x(), point.y());
     }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see ch.epfl.imhof.projection.Projection#projectAll(double[], double[])
+     */
+    @Override
+    public void projectAll(double[] lonLat, double[] outXY) {
+        copy(lonLat, outXY);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see ch.epfl.imhof.projection.Projection#inverseAll(double[], double[])
+     */
+    @Override
+    public void inverseAll(double[] xy, double[] outLonLat) {
+        copy(xy, outLonLat);
+    }
+
+    // The coordinates are the same in both systems
+    private static void copy(double[] from, double[] to) {
+        if (from.length != to.length || from.length % 2 != 0)
+            throw new IllegalArgumentException(
+                    "The arrays must have the same even length");
+        if (from != to)
+            System.arraycopy(from, 0, to, 0, from.length);
+    }
 }
@@ -0,0 +1,213 @@
+package ch.epfl.imhof.projection;
+
+import java.util.function.Function;
+
+import ch.epfl.imhof.geometry.Point;
+
+//@formatter:off
+/**
+ * Inverse projects the pixels of a raster, row by row, much faster than
+ * pixel by pixel. Projections are smooth at the scale of a map, so the
+ * exact inverse only needs to be computed on a grid of control points, every
+ * step pixels, the pixels in between being bilinearly interpolated:
+ * - the grid is anchored on the pixel (0, 0), so that the coordinates of a
+ *   pixel don't depend on the rows that are inverse projected with it, and
+ *   the pixels of the grid are exact;
+ * - the step is the biggest power of two, up to MAX_STEP, for which the
+ *   interpolation error measured on cells spread over the raster is within
+ *   the bound, 1 meaning that every pixel is exact.
+ * An InterpolatedInverse keeps the two rows of the grid around the last row
+ * it computed, so it must not be shared between threads, unlike its step,
+ * which is chosen once for the whole raster.
+ *
+ * @author Maxime Kjaer (250694)
+ * @author Timote Vaucher (246532)
+ */
+//@formatter:on
+public final class InterpolatedInverse {
+    /**
+     * The biggest step of the grid, in pixels
+     */
+    public static final int MAX_STEP = 16;
+    // The number of cells measured along each side of the raster
+    private static final int SAMPLES = 8;
+
+    private final Projection projection;
+    private final Function<Point, Point> pixelToProjected;
+    private final int width, step, columns;
+    // The grid rows above and below the last row, as longitude and latitude
+    private double[] top, bottom;
+    private int topRow = Integer.MIN_VALUE;
+
+    /**
+     * Constructs the inverse of the rows of a raster.
+     *
+     * @param projection
+     *            the projection of the raster
+     * @param pixelToProjected
+     *            the function giving the projected coordinates of a pixel,
+     *            which must be smooth
+     * @param width
+     *            the width of the raster, in pixels
+     * @param step
+     *            the step of the grid, in pixels
+     * @throws IllegalArgumentException
+     *             if the width or the step isn't positive
+     * @see #step(Projection, Function, int, int, double)
+     */
+    public InterpolatedInverse(Projection projection,
+            Function<Point, Point> pixelToProjected, int width, int step) {
+        if (width <= 0 || step <= 0)
+            throw new IllegalArgumentException(
+                    "The width and the step must be bigger than 0");
+        this.projection = projection;
+        this.pixelToProjected = pixelToProjected;
+        this.width = width;
+        this.step = step;
+        // The last column of the grid is at or after the last pixel
+        this.columns = (width - 1) / step + 2;
+        this.top = new double[2 * columns];
+        this.bottom = new double[2 * columns];
+    }
+
+    /**
+     * Chooses the step of the grid of a raster, the biggest one for which the
+     * interpolation error stays within a bound.
+     *
+     * @param projection
+     *            the projection of the raster
+     * @param pixelToProjected
+     *            the function giving the projected coordinates of a pixel,
+     *            which must be smooth
+     * @param width
+     *            the width of the raster, in pixels
+     * @param height
+     *            the height of the raster, in pixels
+     * @param maxError
+     *            the biggest error of the longitudes and latitudes, in radians
+     * @return the step of the grid, between 1 and MAX_STEP
+     * @throws IllegalArgumentException
+     *             if the width or the height isn't positive, or if the error
+     *             is negative
+     */
+    public static int step(Projection projection,
+            Function<Point, Point> pixelToProjected, int width, int height,
+            double maxError) {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException(
+                    "The width and the height must be bigger than 0");
+        if (maxError < 0)
+            throw new IllegalArgumentException(
+                    "The error cannot be negative, was : " + maxError);
+
+        int step = MAX_STEP;
+        while (step > 1
+                && error(projection, pixelToProjected, width, height,
+                        step) > maxError)
+            step /= 2;
+        return step;
+    }
+
+    /**
+     * Returns the biggest error at the centres of cells of the grid spread
+     * over the raster, where the bilinear interpolation is the furthest from
+     * the exact values.
+     */
+    private static double error(Projection projection,
+            Function<Point, Point> pixelToProjected, int width, int height,
+            int step) {
+        // Every cell is given by its corners, then its centre
+        double[] points = new double[SAMPLES * SAMPLES * 10];
+        int k = 0;
+        for (int i = 0; i < SAMPLES; ++i) {
+            int x = (width - 1) * i / (SAMPLES - 1) / step * step;
+            for (int j = 0; j < SAMPLES; ++j) {
+                int y = (height - 1) * j / (SAMPLES - 1) / step * step;
+                k = put(pixelToProjected, x, y, points, k);
+                k = put(pixelToProjected, x + step, y, points, k);
+                k = put(pixelToProjected, x, y + step, points, k);
+                k = put(pixelToProjected, x + step, y + step, points, k);
+                k = put(pixelToProjected, x + step / 2d, y + step / 2d,
+                        points, k);
+            }
+        }
+        projection.inverseAll(points, points);
+
+        double error = 0;
+        for (k = 0; k < points.length; k += 10) {
+            for (int c = 0; c < 2; ++c) {
+                double interpolated = (points[k + c] + points[k + 2 + c]
+                        + points[k + 4 + c] + points[k + 6 + c]) / 4;
+                error = Math.max(error,
+                        Math.abs(interpolated - points[k + 8 + c]));
+            }
+        }
+        return error;
+    }
+
+    private static int put(Function<Point, Point> pixelToProjected, double x,
+            double y, double[] points, int k) {
+        Point p = pixelToProjected.apply(new Point(x, y));
+        points[k] = p.x();
+        points[k + 1] = p.y();
+        return k + 2;
+    }
+
+    /**
+     * Inverse projects a row of the raster.
+     *
+     * @param y
+     *            the index of the row
+     * @param outLonLat
+     *            the array in which the longitude and latitude of the i-th
+     *            pixel of the row are written, at the indices 2i and 2i + 1,
+     *            in radians
+     * @throws IllegalArgumentException
+     *             if the array is smaller than twice the width
+     */
+    public void inverseRow(int y, double[] outLonLat) {
+        if (outLonLat.length < 2 * width)
+            throw new IllegalArgumentException(
+                    "The array must hold at least " + 2 * width + " values");
+
+        int row = Math.floorDiv(y, step) * step;
+        if (row != topRow) {
+            if (row == topRow + step) {
+                double[] t = top;
+                top = bottom;
+                bottom = t;
+            } else {
+                gridRow(row, top);
+            }
+            gridRow(row + step, bottom);
+            topRow = row;
+        }
+
+        double t = (y - row) / (double) step;
+        for (int c = 0; c < columns - 1; ++c) {
+            double longitude0 = top[2 * c] + (bottom[2 * c] - top[2 * c]) * t;
+            double latitude0 = top[2 * c + 1]
+                    + (bottom[2 * c + 1] - top[2 * c + 1]) * t;
+            double longitude1 = top[2 * c + 2]
+                    + (bottom[2 * c + 2] - top[2 * c + 2]) * t;
+            double latitude1 = top[2 * c + 3]
+                    + (bottom[2 * c + 3] - top[2 * c + 3]) * t;
+            double dLongitude = (longitude1 - longitude0) / step;
+            double dLatitude = (latitude1 - latitude0) / step;
+            int first = c * step, last = Math.min(first + step, width);
+            for (int x = first; x < last; ++x) {
+                outLonLat[2 * x] = longitude0 + dLongitude * (x - first);
+                outLonLat[2 * x + 1] = latitude0 + dLatitude * (x - first);
+            }
+        }
+    }
+
+    /**
+     * Computes the exact inverse of the points of a row of the grid.
+     */
+    private void gridRow(int y, double[] lonLat) {
+        for (int c = 0; c < columns; ++c)
+            put(pixelToProjected, c * step, y, lonLat, 2 * c);
+        projection.inverseAll(lonLat, lonLat);
+    }
+}
@@ -30,4 +30,61 @@ public interface Projection {
      * @return point that has been "un-projected".
      */
     public PointGeo inverse(Point point);
+
+    /**
+     * Projects many points at once. The points are stored one after the
+     * other in an array, longitude then latitude, in radians; their
+     * projections are written the same way, x then y. The arrays may be the
+     * same one, in which case the points are projected in place.
+     * <p>
+     * The default implementation projects the points one by one, through
+     * project; the implementations that can do it without any intermediate
+     * object override it.
+     * 
+     * @param lonLat
+     *            the coordinates of the points, longitude at index 2k and
+     *            latitude at index 2k + 1 for the k-th point
+     * @param outXY
+     *            the array in which the projection of the k-th point is
+     *            written, x at index 2k and y at index 2k + 1
+     * @throws IllegalArgumentException
+     *             if the arrays don't have the same length, or if their
+     *             length is odd
+     */
+    public default void projectAll(double[] lonLat, double[] outXY) {
+        if (lonLat.length != outXY.length || lonLat.length % 2 != 0)
+            throw new IllegalArgumentException(
+                    "The arrays must have the same even length");
+        for (int i = 0; i < lonLat.length; i += 2) {
+            Point p = project(new PointGeo(lonLat[i], lonLat[i + 1]));
+            outXY[i] = p.x();
+            outXY[i + 1] = p.y();
+        }
+    }
+
+    /**
+     * "Un-Projects" many points at once, like projectAll does the other way
+     * round. The arrays may be the same one.
+     * 
+     * @param xy
+     *            the coordinates of the points, x at index 2k and y at index
+     *            2k + 1 for the k-th point
+     * @param outLonLat
+     *            the array in which the "un-projection" of the k-th point is
+     *            written, longitude at index 2k and latitude at index 2k + 1,
+     *            in radians
+     * @throws IllegalArgumentException
+     *             if the arrays don't have the same length, or if their
+     *             length is odd
+     */
+    public default void inverseAll(double[] xy, double[] outLonLat) {
+        if (xy.length != outLonLat.length || xy.length % 2 != 0)
+            throw new IllegalArgumentException(
+                    "The arrays must have the same even length");
+        for (int i = 0; i < xy.length; i += 2) {
+            PointGeo p = inverse(new Point(xy[i], xy[i + 1]));
+            outLonLat[i] = p.longitude();
+            outLonLat[i + 1] = p.latitude();
+        }
+    }
 }
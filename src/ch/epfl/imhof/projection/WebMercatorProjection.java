@@ -0,0 +1,56 @@
+package ch.epfl.imhof.projection;
+
+import ch.epfl.imhof.PointGeo;
+import ch.epfl.imhof.dem.Earth;
+import ch.epfl.imhof.geometry.Point;
+
+/**
+ * Implementation of the spherical Mercator projection used by web maps
+ * (EPSG:3857), based on the Projection interface. The coordinates are in
+ * metres, the origin being the intersection of the equator and of the prime
+ * meridian.
+ * 
+ * {@inheritDoc}
+ * 
+ * @author Maxime Kjaer (250694)
+ * @author Timote Vaucher (246532)
+ */
+public final class WebMercatorProjection implements Projection {
+    /**
+     * The half width of the projected world, in metres. The tiles of the web
+     * maps cover the square of this half side, centred on the origin.
+     */
+    public static final double HALF_WORLD = Math.PI * Earth.RADIUS;
+    private static final double ANTIMERIDIAN_TOLERANCE = 1e-9; // in radians
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see ch.epfl.imhof.projection.Projection#project(ch.epfl.imhof.PointGeo)
+     */
+    @Override
+    public Point project(PointGeo point) {
+        return new Point(Earth.RADIUS * point.longitude(), Earth.RADIUS
+                * Math.log(Math.tan(Math.PI / 4 + point.latitude() / 2)));
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * ch.epfl.imhof.projection.Projection#inverse(ch.epfl.imhof.geometry.Point)
+     */
+    @Override
+    public PointGeo inverse(Point point) {
+        // The projection repeats itself every 2 pi of longitude, so the
+        // points beyond the antimeridian are brought back into the world. The
+        // rounding errors of the points on the antimeridian are left alone.
+        double longitude = point.x() / Earth.RADIUS;
+        if (Math.abs(longitude) > Math.PI + ANTIMERIDIAN_TOLERANCE)
+            longitude = Math.IEEEremainder(longitude, 2 * Math.PI);
+        else
+            longitude = Math.max(-Math.PI, Math.min(longitude, Math.PI));
+        return new PointGeo(longitude, 2 * Math.atan(Math.exp(point.y()
+                / Earth.RADIUS)) - Math.PI / 2);
+    }
+}
@@ -128,4 +128,66 @@ public class MapTest {
         assertEquals(mapWithoutBuilder.polyLines(), mapWithBuilder.polyLines());
     }
 
+
+    @Test
+    public void layersAreIndexedInMapOrder() {
+        List<Point> points = new ArrayList<>();
+        points.add(new Point(0, 0));
+        points.add(new Point(1, 0));
+        points.add(new Point(1, 1));
+        String[] layers = { null, "-5", "2", "x", "6", "2", "0" };
+        List<Attributed<PolyLine>> polyLines = new ArrayList<>();
+        List<Attributed<Polygon>> polygons = new ArrayList<>();
+        for (String layer : layers) {
+            Attributes.Builder b = new Attributes.Builder();
+            if (layer != null)
+                b.put("layer", layer);
+            Attributes attributes = b.build();
+            polyLines.add(new Attributed<>(new ClosedPolyLine(points), attributes));
+            polygons.add(new Attributed<>(new Polygon(new ClosedPolyLine(points)), attributes));
+        }
+        Map map = new Map(polyLines, polygons);
+        assertEquals(Arrays.asList(polyLines.get(0), polyLines.get(3), polyLines.get(6)), map.polyLinesOnLayer(0));
+        assertEquals(Arrays.asList(polyLines.get(2), polyLines.get(5)), map.polyLinesOnLayer(2));
+        assertEquals(Arrays.asList(polygons.get(1)), map.polygonsOnLayer(-5));
+        assertEquals(0, map.polygonsOnLayer(5).size());
+        int total = 0;
+        for (int layer = Map.MIN_LAYER; layer <= Map.MAX_LAYER; ++layer)
+            total += map.polygonsOnLayer(layer).size();
+        // The element of layer 6 is out of the index
+        assertEquals(layers.length - 1, total);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void layerOutOfTheIndexFails() {
+        new Map(new ArrayList<>(), new ArrayList<>()).polyLinesOnLayer(6);
+    }
+
+    @Test
+    public void subsetKeepsTheIntersectingElementsInMapOrder() {
+        List<Attributed<PolyLine>> polyLines = new ArrayList<>();
+        List<Attributed<Polygon>> polygons = new ArrayList<>();
+        Attributes attributes = new Attributes(sampleAttributesValues());
+        for (int i = 0; i < 100; ++i) {
+            List<Point> points = new ArrayList<>();
+            points.add(new Point(i, i));
+            points.add(new Point(i + 1, i));
+            points.add(new Point(i + 1, i + 1));
+            polyLines.add(new Attributed<>(new ClosedPolyLine(points), attributes));
+            polygons.add(new Attributed<>(new Polygon(new ClosedPolyLine(points)), attributes));
+        }
+        Map map = new Map(polyLines, polygons);
+        assertTrue(map == map.subset(new Point(-1, -1), new Point(101, 101)));
+
+        Map subset = map.subset(new Point(10.5, 0), new Point(20, 12));
+        // The elements 10, 11 and 12 reach the rectangle
+        assertEquals(polyLines.subList(10, 13), subset.polyLines());
+        assertEquals(polygons.subList(10, 13), subset.polygons());
+        assertEquals(0, map.subset(new Point(50, 0), new Point(60, 10)).polyLines().size());
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void invalidSubsetFails() {
+        new Map(new ArrayList<>(), new ArrayList<>()).subset(new Point(1, 0), new Point(0, 1));
+    }
 }
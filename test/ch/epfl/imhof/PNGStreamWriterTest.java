@@ -0,0 +1,129 @@
+package ch.epfl.imhof;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import ch.epfl.imhof.PNGStreamWriter.Filter;
+
+public class PNGStreamWriterTest {
+    // An image with noise, flat zones and gradients, so that every filter
+    // is used
+    private static BufferedImage image(int width, int height) {
+        Random random = new Random(width * 31 + height);
+        BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                int rgb;
+                if (y % 3 == 0)
+                    rgb = random.nextInt();
+                else if (x < width / 2)
+                    rgb = (x * 255 / width) << 16 | (y * 255 / height) << 8;
+                else
+                    rgb = 0x336699;
+                image.setRGB(x, y, rgb);
+            }
+        }
+        return image;
+    }
+
+    private static byte[] bytes(BufferedImage image, int stripHeight,
+            int level, Filter filter, int parallelism) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PNGStreamWriter writer = new PNGStreamWriter(out,
+                image.getWidth(), image.getHeight(), level, filter,
+                parallelism)) {
+            for (int y = 0; y < image.getHeight(); y += stripHeight)
+                writer.writeRows(image.getSubimage(0, y, image.getWidth(),
+                        Math.min(stripHeight, image.getHeight() - y)));
+        }
+        return out.toByteArray();
+    }
+
+    private static BufferedImage written(BufferedImage image, int stripHeight)
+            throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(bytes(image,
+                stripHeight, Deflater.DEFAULT_COMPRESSION, Filter.ADAPTIVE, 1)));
+    }
+
+    private static void assertSameImage(BufferedImage expected,
+            BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); ++y)
+            for (int x = 0; x < expected.getWidth(); ++x)
+                assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+    }
+
+    @Test
+    public void writtenImageIsReadBack() throws IOException {
+        int[][] sizes = { { 1, 1 }, { 300, 200 }, { 57, 413 } };
+        for (int[] size : sizes) {
+            BufferedImage image = image(size[0], size[1]);
+            for (int stripHeight : new int[] { 1, 13, 1000 })
+                assertSameImage(image, written(image, stripHeight));
+        }
+    }
+
+    @Test
+    public void everyLevelAndFilterIsReadBack() throws IOException {
+        // Big enough to be deflated in several blocks
+        BufferedImage image = image(700, 300);
+        for (int level : new int[] { Deflater.DEFAULT_COMPRESSION, 0, 1, 9 }) {
+            for (Filter filter : Filter.values()) {
+                byte[] bytes = bytes(image, 37, level, filter, 3);
+                assertSameImage(image, ImageIO.read(new ByteArrayInputStream(
+                        bytes)));
+            }
+        }
+    }
+
+    @Test
+    public void parallelCompressionGivesTheSequentialBytes()
+            throws IOException {
+        BufferedImage image = image(900, 500);
+        byte[] sequential = bytes(image, 64, 6, Filter.ADAPTIVE, 1);
+        for (int parallelism : new int[] { 2, 5 })
+            assertArrayEquals(sequential, bytes(image, 64, 6,
+                    Filter.ADAPTIVE, parallelism));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownLevelFails() throws IOException {
+        new PNGStreamWriter(new ByteArrayOutputStream(), 10, 10, 10,
+                Filter.NONE, 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void closeFailsOnMissingRows() throws IOException {
+        try (PNGStreamWriter writer = new PNGStreamWriter(
+                new ByteArrayOutputStream(), 10, 10)) {
+            writer.writeRows(image(10, 9));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void writeRowsFailsOnTooManyRows() throws IOException {
+        PNGStreamWriter writer = new PNGStreamWriter(
+                new ByteArrayOutputStream(), 10, 10);
+        writer.writeRows(image(10, 6));
+        writer.writeRows(image(10, 6));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void writeRowsFailsOnOtherWidth() throws IOException {
+        new PNGStreamWriter(new ByteArrayOutputStream(), 10, 10)
+                .writeRows(image(11, 1));
+    }
+}
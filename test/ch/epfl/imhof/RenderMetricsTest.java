@@ -0,0 +1,125 @@
+package ch.epfl.imhof;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Test;
+
+public class RenderMetricsTest {
+    private static String[] lines(RenderMetrics metrics) throws IOException {
+        StringBuilder out = new StringBuilder();
+        metrics.writeJSONLines(out);
+        return out.toString().split("\n");
+    }
+
+    // The value of a field of a JSON line, as it is written
+    private static String field(String line, String name) {
+        int start = line.indexOf("\"" + name + "\":") + name.length() + 3;
+        int end = start;
+        while (end < line.length() && line.charAt(end) != ','
+                && line.charAt(end) != '}')
+            ++end;
+        return line.substring(start, end);
+    }
+
+    @Test
+    public void stagesAreWrittenInTheOrderTheyWereFirstRun()
+            throws IOException {
+        RenderMetrics metrics = new RenderMetrics();
+        metrics.start("read").close();
+        metrics.start("draw").close();
+        metrics.start("read").close();
+
+        String[] lines = lines(metrics);
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].startsWith("{\"stage\":\"read\","));
+        assertTrue(lines[1].startsWith("{\"stage\":\"draw\","));
+        assertEquals("2", field(lines[0], "runs"));
+        assertEquals("1", field(lines[1], "runs"));
+    }
+
+    @Test
+    public void countsAreSummedOverTheRuns() throws IOException {
+        RenderMetrics metrics = new RenderMetrics();
+        try (RenderMetrics.Stage stage = metrics.start("draw")) {
+            stage.count("pixels", 100).count("polygons", 3);
+        }
+        try (RenderMetrics.Stage stage = metrics.start("draw")) {
+            stage.count("pixels", 50).count("pixels", 7);
+        }
+
+        String line = lines(metrics)[0];
+        assertTrue(line, line.endsWith(
+                ",\"counts\":{\"pixels\":157,\"polygons\":3}}"));
+    }
+
+    @Test
+    public void closingTwiceCountsTheRunOnce() throws IOException {
+        RenderMetrics metrics = new RenderMetrics();
+        RenderMetrics.Stage stage = metrics.start("png");
+        stage.close();
+        stage.close();
+        assertEquals("1", field(lines(metrics)[0], "runs"));
+    }
+
+    @Test
+    public void timesAndAllocationsAreMeasured() throws IOException {
+        RenderMetrics metrics = new RenderMetrics();
+        long[][] garbage = new long[64][];
+        try (RenderMetrics.Stage stage = metrics.start("blend")) {
+            long start = System.nanoTime();
+            for (int i = 0; System.nanoTime() - start < 20_000_000; ++i)
+                garbage[i % garbage.length] = new long[1024];
+        }
+
+        String line = lines(metrics)[0];
+        assertTrue(line, Long.parseLong(field(line, "wall_ns")) >= 20_000_000);
+        assertTrue(line, Long.parseLong(field(line, "thread_cpu_ns")) > 0);
+        assertTrue(line, Long.parseLong(field(line, "process_cpu_ns")) > 0);
+        assertTrue(line,
+                Long.parseLong(field(line, "allocated_bytes")) >= 64 * 8192);
+    }
+
+    @Test
+    public void namesAreEscaped() throws IOException {
+        RenderMetrics metrics = new RenderMetrics();
+        metrics.start("a \"b\"\\\n").close();
+        assertTrue(lines(metrics)[0]
+                .startsWith("{\"stage\":\"a \\\"b\\\"\\\\\\u000a\","));
+    }
+
+    @Test
+    public void runsAreRecordedAsJFREvents() throws IOException {
+        Path file = Files.createTempFile("metrics", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("ch.epfl.imhof.Stage");
+            recording.start();
+            RenderMetrics metrics = new RenderMetrics();
+            try (RenderMetrics.Stage stage = metrics.start("relief")) {
+                stage.count("pixels", 42);
+            }
+            recording.stop();
+            recording.dump(file);
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            assertEquals(1, events.size());
+            RecordedEvent event = events.get(0);
+            assertEquals("ch.epfl.imhof.Stage", event.getEventType()
+                    .getName());
+            assertEquals("relief", event.getString("stage"));
+            assertEquals("{pixels=42}", event.getString("counts"));
+            assertTrue(event.getLong("allocated") >= 0);
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package ch.epfl.imhof;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import ch.epfl.imhof.dem.DigitalElevationModel;
+import ch.epfl.imhof.dem.ReliefShader;
+import ch.epfl.imhof.geometry.ClosedPolyLine;
+import ch.epfl.imhof.geometry.OpenPolyLine;
+import ch.epfl.imhof.geometry.Point;
+import ch.epfl.imhof.geometry.PolyLine;
+import ch.epfl.imhof.geometry.Polygon;
+import ch.epfl.imhof.painting.Color;
+import ch.epfl.imhof.painting.ImageBlender;
+import ch.epfl.imhof.painting.Java2DCanvas;
+import ch.epfl.imhof.painting.LineStyle;
+import ch.epfl.imhof.painting.Painter;
+import ch.epfl.imhof.projection.EquirectangularProjection;
+
+public class StripRendererTest {
+    private static final Point BL = new Point(0.1, 0.8);
+    private static final Point TR = new Point(0.1003, 0.8002);
+    private static final int WIDTH = 150, HEIGHT = 100, DPI = 150;
+    private static final double BLUR = 4;
+
+    // A DEM of waves, whose normal changes from a pixel to the next
+    private static final class WavyModel implements DigitalElevationModel {
+        @Override
+        public Vector3 normalAt(PointGeo p) {
+            return new Vector3(Math.sin(p.longitude() * 1e5), Math.cos(p
+                    .latitude() * 7e4), 1);
+        }
+
+        @Override
+        public double elevationAt(PointGeo p) {
+            return 0;
+        }
+
+        @Override
+        public boolean contains(PointGeo p) {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static Map map() {
+        Random random = new Random(0x57219);
+        List<Attributed<PolyLine>> polyLines = new ArrayList<>();
+        List<Attributed<Polygon>> polygons = new ArrayList<>();
+        Attributes none = new Attributes.Builder().build();
+        for (int i = 0; i < 30; ++i) {
+            List<Point> points = new ArrayList<>();
+            for (int j = 0; j < 4; ++j)
+                points.add(new Point(BL.x() + random.nextDouble()
+                        * (TR.x() - BL.x()), BL.y() + random.nextDouble()
+                        * (TR.y() - BL.y())));
+            polyLines.add(new Attributed<>(new OpenPolyLine(points), none));
+            polygons.add(new Attributed<>(new Polygon(new ClosedPolyLine(
+                    points.subList(0, 3))), none));
+        }
+        return new Map(polyLines, polygons);
+    }
+
+    private static Painter painter() {
+        return Painter.line(new LineStyle(2, Color.BLUE)).above(
+                Painter.polygon(Color.gray(0.7)));
+    }
+
+    private static ReliefShader shader(int parallelism) {
+        return new ReliefShader(new EquirectangularProjection(),
+                new WavyModel(), new Vector3(-1, 1, 1), parallelism);
+    }
+
+    @Test
+    public void stripsGiveTheImageRenderedAtOnce() throws IOException {
+        Map map = map();
+        Java2DCanvas canvas = new Java2DCanvas(BL, TR, WIDTH, HEIGHT, DPI,
+                Color.WHITE);
+        painter().drawMap(map, canvas);
+        ImageBlender.multiply(canvas.image(), shader(1).shadedRelief(BL, TR,
+                WIDTH, HEIGHT, BLUR), 1);
+        BufferedImage expected = canvas.image();
+
+        for (int stripHeight : new int[] { 7, 64, 100 }) {
+            for (int parallelism : new int[] { 1, 3 }) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                new StripRenderer(map, painter(), shader(parallelism), DPI,
+                        BLUR, stripHeight, parallelism).render(BL, TR, WIDTH,
+                        HEIGHT, out);
+                BufferedImage actual = ImageIO.read(new ByteArrayInputStream(
+                        out.toByteArray()));
+                for (int y = 0; y < HEIGHT; ++y)
+                    for (int x = 0; x < WIDTH; ++x)
+                        assertEquals(expected.getRGB(x, y),
+                                actual.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void elementsAreCountedOncePerRender() throws IOException {
+        RenderMetrics metrics = new RenderMetrics();
+        new StripRenderer(map(), painter(), shader(1), DPI, BLUR, 7, 1)
+                .render(BL, TR, WIDTH, HEIGHT, new ByteArrayOutputStream(),
+                        metrics);
+        StringBuilder json = new StringBuilder();
+        metrics.writeJSONLines(json);
+        for (String line : json.toString().split("\n"))
+            if (line.startsWith("{\"stage\":\"draw\","))
+                assertTrue(line, line.endsWith(",\"counts\":{\"polylines\":30,"
+                        + "\"polygons\":30,\"pixels\":15000}}"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroStripHeightFails() {
+        new StripRenderer(map(), painter(), shader(1), DPI, BLUR, 0, 1);
+    }
+}
@@ -0,0 +1,152 @@
+package ch.epfl.imhof;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import ch.epfl.imhof.dem.DigitalElevationModel;
+import ch.epfl.imhof.geometry.ClosedPolyLine;
+import ch.epfl.imhof.geometry.Point;
+import ch.epfl.imhof.geometry.PolyLine;
+import ch.epfl.imhof.geometry.Polygon;
+import ch.epfl.imhof.painting.Color;
+import ch.epfl.imhof.painting.Painter;
+import ch.epfl.imhof.projection.WebMercatorProjection;
+
+public class TileRendererTest {
+    private static final int WHITE = 0xFFFFFF;
+    private static final double HALF = WebMercatorProjection.HALF_WORLD;
+
+    // A flat DEM, which contains the points of positive longitude only
+    private static final class FlatModel implements DigitalElevationModel {
+        private Vector3 precomputedLight = null;
+
+        @Override
+        public Vector3 normalAt(PointGeo p) {
+            if (!contains(p))
+                throw new IllegalArgumentException("Your point is in another file");
+            return new Vector3(0, 0, 1);
+        }
+
+        @Override
+        public double elevationAt(PointGeo p) {
+            return 0;
+        }
+
+        @Override
+        public boolean contains(PointGeo p) {
+            return p.longitude() >= 0;
+        }
+
+        @Override
+        public void precomputeShades(Vector3 lightSource) {
+            precomputedLight = lightSource;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // A black square on the north east quarter of the world
+    private static Map map() {
+        List<Point> points = Arrays.asList(new Point(1, 1), new Point(HALF - 1, 1),
+                new Point(HALF - 1, HALF - 1), new Point(1, HALF - 1));
+        List<Attributed<Polygon>> polygons = new ArrayList<>();
+        polygons.add(new Attributed<>(new Polygon(new ClosedPolyLine(points)),
+                new Attributes.Builder().build()));
+        return new Map(new ArrayList<Attributed<PolyLine>>(), polygons);
+    }
+
+    private static TileRenderer renderer() {
+        return new TileRenderer(map(), Painter.polygon(Color.gray(0.5)),
+                new FlatModel(), new Vector3(-1, 1, 1), 72, 0);
+    }
+
+    @Test
+    public void tilesShowTheMapAndTheRelief() {
+        TileRenderer renderer = renderer();
+        BufferedImage northEast = renderer.renderTile(1, 1, 0);
+        BufferedImage northWest = renderer.renderTile(1, 0, 0);
+        BufferedImage southEast = renderer.renderTile(1, 1, 1);
+        assertEquals(TileRenderer.TILE_SIZE, northEast.getWidth());
+        assertEquals(TileRenderer.TILE_SIZE, northEast.getHeight());
+
+        // The west isn't in the DEM, so it has no relief
+        assertEquals(WHITE, northWest.getRGB(128, 128) & WHITE);
+        int relief = southEast.getRGB(128, 128) & WHITE;
+        assertNotEquals(WHITE, relief);
+        int polygon = northEast.getRGB(128, 128) & WHITE;
+        assertTrue((polygon & 0xFF) < (relief & 0xFF));
+    }
+
+    @Test
+    public void tilesWhoseBlurMarginIsOutOfTheModelHaveNoRelief() {
+        // The blurred margin of the tiles on the west edge of the DEM is out
+        // of it, the tiles next to them are shaded
+        TileRenderer renderer = new TileRenderer(map(), Painter.polygon(Color
+                .gray(0.5)), new FlatModel(), new Vector3(-1, 1, 1), 72, 10);
+        BufferedImage edge = renderer.renderTile(12, 2048, 2047);
+        BufferedImage inside = renderer.renderTile(12, 2049, 2047);
+        int polygon = edge.getRGB(128, 128) & WHITE;
+        int relief = inside.getRGB(128, 128) & WHITE;
+        assertTrue((relief & 0xFF) < (polygon & 0xFF));
+        assertEquals(polygon, edge.getRGB(1, 128) & WHITE);
+    }
+
+    @Test
+    public void shadesArePrecomputedOnlyWhenAsked() {
+        Vector3 light = new Vector3(-1, 1, 1);
+        FlatModel model = new FlatModel();
+        new TileRenderer(map(), Painter.polygon(Color.gray(0.5)), model,
+                light, 72, 0);
+        assertNull(model.precomputedLight);
+        TileRenderer renderer = new TileRenderer(map(), Painter.polygon(Color
+                .gray(0.5)), model, light, 72, 0, true);
+        assertSame(light, model.precomputedLight);
+        assertNotEquals(WHITE, renderer.renderTile(1, 1, 1).getRGB(128, 128)
+                & WHITE);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void missingTileFails() {
+        renderer().renderTile(2, 4, 0);
+    }
+
+    @Test
+    public void pyramidKeepsTheTilesUpToDate() throws IOException {
+        File directory = Files.createTempDirectory("tiles").toFile();
+        PointGeo bl = new PointGeo(Math.toRadians(6.5), Math.toRadians(46.5));
+        PointGeo tr = new PointGeo(Math.toRadians(6.6), Math.toRadians(46.6));
+        TileRenderer renderer = renderer();
+        try {
+            assertEquals(3, renderer.renderPyramid(bl, tr, 0, 2, directory, 0, 2));
+            for (String tile : new String[] { "0/0/0.png", "1/1/0.png", "2/2/1.png" })
+                assertTrue(new File(directory, tile).isFile());
+            // The tiles are more recent than the sources
+            assertEquals(0, renderer.renderPyramid(bl, tr, 0, 2, directory, 0, 2));
+            long future = System.currentTimeMillis() + 60_000;
+            assertEquals(2, renderer.renderPyramid(bl, tr, 1, 2, directory, future, 1));
+        } finally {
+            for (String tile : new String[] { "0/0/0.png", "1/1/0.png", "2/2/1.png", "0/0", "1/1", "2/2", "0", "1", "2", "" })
+                new File(directory, tile).delete();
+        }
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void decreasingZoomsFail() throws IOException {
+        renderer().renderPyramid(new PointGeo(0, 0), new PointGeo(0.1, 0.1), 3, 2, new File("."), 0, 1);
+    }
+}
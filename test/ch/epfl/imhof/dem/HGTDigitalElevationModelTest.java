@@ -2,8 +2,11 @@ package ch.epfl.imhof.dem;
 
 import static org.junit.Assert.*;
 
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
 
 import org.junit.Test;
 
@@ -23,4 +26,146 @@ public class HGTDigitalElevationModelTest {
             System.out.println(e.toString());
         }
     }
+
+    @Test
+    public void primitiveNormalsMatchVectorNormals() throws Exception {
+        try (HGTDigitalElevationModel hgt = new HGTDigitalElevationModel(
+                syntheticHGT(5))) {
+            double[] lonLat = new double[8];
+            for (int k = 0; k < 4; ++k) {
+                lonLat[2 * k] = Math.toRadians(6.1 + 0.2 * k);
+                lonLat[2 * k + 1] = Math.toRadians(46.8 - 0.15 * k);
+            }
+            double[] normals = new double[12];
+            hgt.normalsAt(lonLat, 4, normals);
+            double[] normal = new double[3];
+            for (int k = 0; k < 4; ++k) {
+                Vector3 v = hgt.normalAt(new PointGeo(lonLat[2 * k],
+                        lonLat[2 * k + 1]));
+                hgt.normalAt(lonLat[2 * k], lonLat[2 * k + 1], normal);
+                assertEquals(v.x(), normal[0], 0);
+                assertEquals(v.y(), normal[1], 0);
+                assertEquals(v.z(), normal[2], 0);
+                assertEquals(v.x(), normals[3 * k], 0);
+                assertEquals(v.y(), normals[3 * k + 1], 0);
+                assertEquals(v.z(), normals[3 * k + 2], 0);
+                assertEquals(1, v.norm(), 1e-9);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void primitiveNormalFailsOutsideOfFile() throws Exception {
+        try (HGTDigitalElevationModel hgt = new HGTDigitalElevationModel(
+                syntheticHGT(5))) {
+            hgt.normalAt(Math.toRadians(7.5), Math.toRadians(46.5),
+                    new double[3]);
+        }
+    }
+
+    @Test
+    public void precomputedGridsMatchComputedNormals() throws Exception {
+        try (HGTDigitalElevationModel hgt = new HGTDigitalElevationModel(
+                syntheticHGT(7))) {
+            Vector3 light = new Vector3(-1, 1, 1).normalized();
+            double[] lonLat = new double[20];
+            for (int k = 0; k < 10; ++k) {
+                lonLat[2 * k] = Math.toRadians(6 + 0.1 * k);
+                lonLat[2 * k + 1] = Math.toRadians(47 - 0.1 * k);
+            }
+            double[] normals = new double[30], shades = new double[10];
+            hgt.normalsAt(lonLat, 10, normals);
+            hgt.shadesAt(lonLat, 10, light, shades);
+
+            hgt.precomputeNormals();
+            hgt.precomputeShades(light);
+            double[] gridNormals = new double[30], gridShades = new double[10];
+            hgt.normalsAt(lonLat, 10, gridNormals);
+            hgt.shadesAt(lonLat, 10, light, gridShades);
+            for (int k = 0; k < 30; ++k)
+                assertEquals(normals[k], gridNormals[k], 1e-6);
+            for (int k = 0; k < 10; ++k) {
+                assertEquals(shades[k], gridShades[k], 1e-6);
+                assertEquals(normals[3 * k] * light.x() + normals[3 * k + 1]
+                        * light.y() + normals[3 * k + 2] * light.z(),
+                        shades[k], 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void elevationIsInterpolatedBetweenSamples() throws Exception {
+        try (HGTDigitalElevationModel hgt = new HGTDigitalElevationModel(
+                syntheticHGT(5))) {
+            // Samples of the top left cell: (column, row) -> 30 * (12 + row)
+            // + 10 * column^2
+            assertEquals(360, hgt.elevationAt(new PointGeo(Math.toRadians(6),
+                    Math.toRadians(47))), 1e-9);
+            assertEquals(370, hgt.elevationAt(new PointGeo(Math
+                    .toRadians(6.25), Math.toRadians(47))), 1e-9);
+            assertEquals(390, hgt.elevationAt(new PointGeo(Math.toRadians(6),
+                    Math.toRadians(46.75))), 1e-9);
+            assertEquals(380, hgt.elevationAt(new PointGeo(Math
+                    .toRadians(6.125), Math.toRadians(46.875))), 1e-9);
+            assertEquals(30 * 16 + 10 * 16, hgt.elevationAt(new PointGeo(Math
+                    .toRadians(7), Math.toRadians(46))), 1e-9);
+        }
+    }
+
+    @Test
+    public void sampledGridMatchesElevations() throws Exception {
+        try (HGTDigitalElevationModel hgt = new HGTDigitalElevationModel(
+                syntheticHGT(9))) {
+            PointGeo bl = new PointGeo(Math.toRadians(6.1),
+                    Math.toRadians(46.05));
+            PointGeo tr = new PointGeo(Math.toRadians(6.9),
+                    Math.toRadians(46.95));
+            int width = 13, height = 7;
+            float[] grid = new float[width * height];
+            hgt.sampleGrid(bl, tr, width, height, grid);
+            for (int j = 0; j < height; ++j)
+                for (int i = 0; i < width; ++i) {
+                    PointGeo p = new PointGeo(bl.longitude() + i
+                            * (tr.longitude() - bl.longitude()) / (width - 1),
+                            tr.latitude() - j
+                                    * (tr.latitude() - bl.latitude())
+                                    / (height - 1));
+                    assertEquals(hgt.elevationAt(p), grid[i + width * j], 1e-2);
+                }
+        }
+    }
+
+    /**
+     * Writes a side x side HGT file covering N46E006, whose altitudes grow
+     * with the row and the column.
+     */
+    static File syntheticHGT(int side) throws IOException {
+        File directory = Files.createTempDirectory("hgt").toFile();
+        directory.deleteOnExit();
+        return syntheticHGT(directory, 46, 6, side);
+    }
+
+    /**
+     * Writes a side x side HGT file whose bottom left corner is at the given
+     * latitude and longitude (in degrees, both positive). The altitudes only
+     * depend on the position of the samples, so that neighboring files agree
+     * on their common border.
+     */
+    static File syntheticHGT(File directory, int latitude, int longitude,
+            int side) throws IOException {
+        File hgt = new File(directory, String.format("N%02dE%03d.hgt",
+                latitude, longitude));
+        hgt.deleteOnExit();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(
+                hgt))) {
+            for (int row = 0; row < side; ++row) {
+                int y = (49 - latitude) * (side - 1) + row;
+                for (int column = 0; column < side; ++column) {
+                    int x = (longitude - 6) * (side - 1) + column;
+                    out.writeShort(30 * y + 10 * x * x);
+                }
+            }
+        }
+        return hgt;
+    }
 }
@@ -0,0 +1,139 @@
+package ch.epfl.imhof.dem;
+
+import static ch.epfl.imhof.dem.HGTDigitalElevationModelTest.syntheticHGT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import ch.epfl.imhof.PointGeo;
+import ch.epfl.imhof.Vector3;
+
+public class MosaicDigitalElevationModelTest {
+
+    private static File mosaicDirectory() throws IOException {
+        File directory = Files.createTempDirectory("mosaic").toFile();
+        directory.deleteOnExit();
+        syntheticHGT(directory, 46, 6, 5);
+        syntheticHGT(directory, 46, 7, 5);
+        syntheticHGT(directory, 45, 6, 5);
+        return directory;
+    }
+
+    private static PointGeo point(double lonDegrees, double latDegrees) {
+        return new PointGeo(Math.toRadians(lonDegrees),
+                Math.toRadians(latDegrees));
+    }
+
+    @Test
+    public void containsOnlyPointsOfExistingFiles() throws Exception {
+        try (MosaicDigitalElevationModel mosaic = new MosaicDigitalElevationModel(
+                mosaicDirectory())) {
+            assertTrue(mosaic.contains(point(6.5, 46.5)));
+            assertTrue(mosaic.contains(point(7.5, 46.5)));
+            assertTrue(mosaic.contains(point(6.5, 45.5)));
+            assertTrue(mosaic.contains(point(7, 46)));
+            assertFalse(mosaic.contains(point(7.5, 45.5)));
+            assertFalse(mosaic.contains(point(8.5, 46.5)));
+        }
+    }
+
+    @Test
+    public void normalsAreTheOnesOfTheFiles() throws Exception {
+        File directory = mosaicDirectory();
+        try (MosaicDigitalElevationModel mosaic = new MosaicDigitalElevationModel(
+                directory, 1);
+                HGTDigitalElevationModel west = new HGTDigitalElevationModel(
+                        new File(directory, "N46E006.hgt"));
+                HGTDigitalElevationModel east = new HGTDigitalElevationModel(
+                        new File(directory, "N46E007.hgt"))) {
+            // Alternating between the files also exercises the unmapping
+            for (int k = 0; k < 10; ++k) {
+                PointGeo p = point(6.05 + 0.2 * k, 46.1 + 0.07 * k);
+                HGTDigitalElevationModel file = k < 5 ? west : east;
+                Vector3 expected = file.normalAt(p);
+                Vector3 actual = mosaic.normalAt(p);
+                assertEquals(expected.x(), actual.x(), 0);
+                assertEquals(expected.y(), actual.y(), 0);
+                assertEquals(expected.z(), actual.z(), 0);
+            }
+        }
+    }
+
+    @Test
+    public void rowsMayCrossTheBordersOfTheFiles() throws Exception {
+        try (MosaicDigitalElevationModel mosaic = new MosaicDigitalElevationModel(
+                mosaicDirectory(), 2)) {
+            double[] lonLat = new double[16];
+            for (int k = 0; k < 8; ++k) {
+                lonLat[2 * k] = Math.toRadians(6.6 + 0.1 * k);
+                lonLat[2 * k + 1] = Math.toRadians(45.85 + 0.05 * k);
+            }
+            double[] normals = new double[24];
+            double[] shades = new double[8];
+            Vector3 light = new Vector3(-1, 1, 1).normalized();
+            mosaic.normalsAt(lonLat, 8, normals);
+            mosaic.shadesAt(lonLat, 8, light, shades);
+            for (int k = 0; k < 8; ++k) {
+                Vector3 n = mosaic.normalAt(new PointGeo(lonLat[2 * k],
+                        lonLat[2 * k + 1]));
+                assertEquals(n.x(), normals[3 * k], 0);
+                assertEquals(n.y(), normals[3 * k + 1], 0);
+                assertEquals(n.z(), normals[3 * k + 2], 0);
+                assertEquals(n.scalarProduct(light), shades[k], 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void precomputedShadesAreTheOnesOfTheNormals() throws Exception {
+        try (MosaicDigitalElevationModel mosaic = new MosaicDigitalElevationModel(
+                mosaicDirectory(), 1)) {
+            Vector3 light = new Vector3(-1, 1, 1).normalized();
+            mosaic.precomputeShades(light);
+            // With a single file mapped, the row maps the files back and
+            // forth, which precomputes them again
+            double[] lonLat = new double[20];
+            for (int k = 0; k < 10; ++k) {
+                lonLat[2 * k] = Math.toRadians(k % 2 == 0 ? 6.3 : 7.3);
+                lonLat[2 * k + 1] = Math.toRadians(46.05 + 0.09 * k);
+            }
+            double[] shades = new double[10];
+            mosaic.shadesAt(lonLat, 10, light, shades);
+            for (int k = 0; k < 10; ++k) {
+                Vector3 n = mosaic.normalAt(new PointGeo(lonLat[2 * k],
+                        lonLat[2 * k + 1]));
+                assertEquals(n.scalarProduct(light), shades[k], 1e-6);
+                // The precomputed shades are floats
+                assertEquals((float) shades[k], shades[k], 0);
+            }
+        }
+    }
+
+    @Test
+    public void gridMayCrossTheBordersOfTheFiles() throws Exception {
+        try (MosaicDigitalElevationModel mosaic = new MosaicDigitalElevationModel(
+                mosaicDirectory())) {
+            PointGeo bl = point(6.5, 46.2), tr = point(7.5, 46.8);
+            float[] grid = new float[5 * 3];
+            mosaic.sampleGrid(bl, tr, 5, 3, grid);
+            for (int j = 0; j < 3; ++j)
+                for (int i = 0; i < 5; ++i)
+                    assertEquals(mosaic.elevationAt(point(6.5 + 0.25 * i,
+                            46.8 - 0.3 * j)), grid[i + 5 * j], 1e-2);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void normalFailsWithoutFile() throws Exception {
+        try (MosaicDigitalElevationModel mosaic = new MosaicDigitalElevationModel(
+                mosaicDirectory())) {
+            mosaic.normalAt(point(7.5, 45.5));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package ch.epfl.imhof.geometry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PackedRTreeTest {
+    private static double[] randomBoxes(Random random, int count) {
+        double[] boxes = new double[4 * count];
+        for (int i = 0; i < count; ++i) {
+            double x = random.nextDouble() * 1000, y = random.nextDouble() * 1000;
+            boxes[4 * i] = x;
+            boxes[4 * i + 1] = y;
+            boxes[4 * i + 2] = x + random.nextDouble() * 20;
+            boxes[4 * i + 3] = y + random.nextDouble() * 20;
+        }
+        return boxes;
+    }
+
+    @Test
+    public void searchFindsTheBoxesOfBruteForce() {
+        Random random = new Random(0x7EE);
+        for (int count : new int[] { 0, 1, 15, 16, 17, 300, 5000 }) {
+            double[] boxes = randomBoxes(random, count);
+            PackedRTree tree = new PackedRTree(boxes);
+            assertEquals(count, tree.size());
+            for (int q = 0; q < 50; ++q) {
+                double minX = random.nextDouble() * 1000 - 100;
+                double minY = random.nextDouble() * 1000 - 100;
+                double maxX = minX + random.nextDouble() * 300;
+                double maxY = minY + random.nextDouble() * 300;
+                List<Integer> expected = new ArrayList<>();
+                for (int i = 0; i < count; ++i)
+                    if (boxes[4 * i] <= maxX && minX <= boxes[4 * i + 2]
+                            && boxes[4 * i + 1] <= maxY && minY <= boxes[4 * i + 3])
+                        expected.add(i);
+                List<Integer> found = new ArrayList<>();
+                tree.search(minX, minY, maxX, maxY, found::add);
+                Collections.sort(found);
+                assertEquals(expected, found);
+            }
+        }
+    }
+
+    @Test
+    public void touchingBoxesIntersect() {
+        PackedRTree tree = new PackedRTree(new double[] { 0, 0, 1, 1 });
+        List<Integer> found = new ArrayList<>();
+        tree.search(1, 1, 2, 2, found::add);
+        assertEquals(1, found.size());
+    }
+
+    @Test
+    public void isWithinChecksAllTheBoxes() {
+        PackedRTree tree = new PackedRTree(randomBoxes(new Random(3), 100));
+        assertTrue(tree.isWithin(0, 0, 1020, 1020));
+        assertFalse(tree.isWithin(0, 0, 500, 1020));
+        assertTrue(new PackedRTree(new double[0]).isWithin(0, 0, 0, 0));
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void incompleteBoxFails() {
+        new PackedRTree(new double[] { 0, 0, 1 });
+    }
+}
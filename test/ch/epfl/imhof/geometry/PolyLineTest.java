@@ -106,4 +106,69 @@ public abstract class PolyLineTest {
         assertTrue(ol instanceof ClosedPolyLine);
         assertEqualsPoints(ol.points(),pts2, DELTA);
     }
+
+    private static double distanceToSegment(Point p, Point a, Point b) {
+        double dx = b.x() - a.x(), dy = b.y() - a.y();
+        double l2 = dx * dx + dy * dy;
+        double t = l2 == 0 ? 0 : Math.max(0, Math.min(1,
+                ((p.x() - a.x()) * dx + (p.y() - a.y()) * dy) / l2));
+        return Math.hypot(a.x() + t * dx - p.x(), a.y() + t * dy - p.y());
+    }
+
+    private static double distanceTo(Point p, PolyLine l) {
+        List<Point> ps = new ArrayList<>(l.points());
+        if (l.isClosed())
+            ps.add(ps.get(0));
+        double d = Math.hypot(p.x() - ps.get(0).x(), p.y() - ps.get(0).y());
+        for (int i = 1; i < ps.size(); ++i)
+            d = Math.min(d, distanceToSegment(p, ps.get(i - 1), ps.get(i)));
+        return d;
+    }
+
+    @Test
+    public void simplifiedRemovesCollinearPoints() {
+        PolyLine l = newPolyLine(Arrays.asList(new Point(0, 0), new Point(1,
+                0), new Point(2, 0), new Point(2, 1), new Point(2, 3)));
+        PolyLine s = l.simplified(0);
+        assertEquals(l.isClosed(), s.isClosed());
+        assertEqualsPoints(Arrays.asList(new Point(0, 0), new Point(2, 0),
+                new Point(2, 3)), s.points(), 0);
+    }
+
+    @Test
+    public void simplifiedStaysWithinTolerance() {
+        java.util.Random random = new java.util.Random(0x5149);
+        List<Point> ps = new ArrayList<>();
+        for (int i = 0; i < 2000; ++i) {
+            double angle = 2 * Math.PI * i / 2000;
+            double radius = 100 + random.nextDouble();
+            ps.add(new Point(radius * Math.cos(angle), radius
+                    * Math.sin(angle)));
+        }
+        PolyLine l = newPolyLine(ps);
+        for (double tolerance : new double[] { 0.5, 2, 10 }) {
+            PolyLine s = l.simplified(tolerance);
+            assertEquals(l.isClosed(), s.isClosed());
+            assertTrue(s.points().size() < ps.size());
+            assertTrue(s.points().size() >= 3);
+            assertEqualsPoint(ps.get(0), s.firstPoint(), 0);
+            assertTrue(l.points().containsAll(s.points()));
+            for (Point p : ps)
+                assertTrue(distanceTo(p, s) <= tolerance + DELTA);
+        }
+    }
+
+    @Test
+    public void simplifiedKeepsShortPolyLinesAndCachesTheLastOne() {
+        PolyLine l = newPolyLine(pts2);
+        assertTrue(l == l.simplified(100));
+        PolyLine polygon = newPolyLine(ptsPolygon);
+        assertTrue(polygon.simplified(1) == polygon.simplified(1));
+        assertTrue(polygon.simplified(0) == polygon);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void simplifiedFailsOnNegativeTolerance() {
+        newPolyLine(pts3).simplified(-1);
+    }
 }
@@ -0,0 +1,177 @@
+package ch.epfl.imhof.osm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+import ch.epfl.imhof.PointGeo;
+
+public class OSMMapCacheTest {
+
+    private static File copyOf(String resource) throws Exception {
+        File directory = Files.createTempDirectory("osmcache").toFile();
+        directory.deleteOnExit();
+        File copy = new File(directory, "map.osm");
+        copy.deleteOnExit();
+        new File(copy.getPath() + ".cache").deleteOnExit();
+        Files.copy(new File(OSMMapCacheTest.class.getResource(resource)
+                .getFile().replace("%20", " ")).toPath(), copy.toPath());
+        return copy;
+    }
+
+    private static void assertSameEntity(OSMEntity expected, OSMEntity actual) {
+        assertEquals(expected.id(), actual.id());
+        assertEquals(expected.attributes().keySet(), actual.attributes()
+                .keySet());
+        for (String key : expected.attributes().keySet())
+            assertEquals(expected.attributeValue(key),
+                    actual.attributeValue(key));
+    }
+
+    private static void assertSameWays(List<OSMWay> expected,
+            List<OSMWay> actual) {
+        assertEquals(expected.size(), actual.size());
+        HashMap<Long, OSMWay> byId = new HashMap<>();
+        for (OSMWay way : actual)
+            byId.put(way.id(), way);
+        for (OSMWay way : expected) {
+            OSMWay cached = byId.get(way.id());
+            assertSameEntity(way, cached);
+            assertEquals(way.nodesCount(), cached.nodesCount());
+            assertEquals(way.isClosed(), cached.isClosed());
+            for (int i = 0; i < way.nodesCount(); ++i) {
+                OSMNode n = way.nodes().get(i), c = cached.nodes().get(i);
+                assertSameEntity(n, c);
+                assertEquals(n.position().longitude(), c.position()
+                        .longitude(), 0);
+                assertEquals(n.position().latitude(), c.position()
+                        .latitude(), 0);
+            }
+        }
+    }
+
+    @Test
+    public void cachedMapIsTheReadMap() throws Exception {
+        for (String resource : new String[] {
+                "/OSMtestFiles/testBuildingMultipleHoles.osm",
+                "/OSMtestFiles/testBoundingBox.osm",
+                "/OSM/usualTestCaseFig1.osm" }) {
+            File osm = copyOf(resource);
+            File cache = new File(osm.getPath() + ".cache");
+            OSMMap read = OSMMapReader.readOSMFile(osm.getPath(), false);
+            OSMMapCache.write(read, cache, osm);
+            OSMMap cached = OSMMapCache.read(cache, osm);
+
+            assertSameWays(read.ways(), cached.ways());
+            assertEquals(read.relations().size(), cached.relations().size());
+            HashMap<Long, OSMRelation> byId = new HashMap<>();
+            for (OSMRelation relation : cached.relations())
+                byId.put(relation.id(), relation);
+            for (OSMRelation relation : read.relations()) {
+                OSMRelation c = byId.get(relation.id());
+                assertSameEntity(relation, c);
+                assertEquals(relation.members().size(), c.members().size());
+                for (int i = 0; i < relation.members().size(); ++i) {
+                    OSMRelation.Member m = relation.members().get(i);
+                    OSMRelation.Member n = c.members().get(i);
+                    assertEquals(m.type(), n.type());
+                    assertEquals(m.role(), n.role());
+                    assertSameEntity(m.member(), n.member());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sharedNodesStayShared() throws Exception {
+        File osm = copyOf("/OSMtestFiles/testBoundingBox.osm");
+        File cache = new File(osm.getPath() + ".cache");
+        OSMMapCache.write(OSMMapReader.readOSMFile(osm.getPath(), false),
+                cache, osm);
+        for (OSMWay way : OSMMapCache.read(cache, osm).ways())
+            if (way.id() == 14)
+                assertSame(way.firstNode(), way.lastNode());
+    }
+
+    @Test
+    public void staleCacheIsIgnored() throws Exception {
+        File osm = copyOf("/OSMtestFiles/testSimpleBuilding.osm");
+        File cache = new File(osm.getPath() + ".cache");
+        assertNull(OSMMapCache.read(cache, osm));
+        OSMMapCache.write(OSMMapReader.readOSMFile(osm.getPath(), false),
+                cache, osm);
+        assertEquals(1, OSMMapCache.read(cache, osm).ways().size());
+        osm.setLastModified(osm.lastModified() - 10000);
+        assertNull(OSMMapCache.read(cache, osm));
+    }
+
+    @Test
+    public void zoneIsTheOneOfTheReader() throws Exception {
+        File osm = copyOf("/OSMtestFiles/testBoundingBox.osm");
+        PointGeo bl = new PointGeo(0, 0);
+        PointGeo tr = new PointGeo(Math.toRadians(1), Math.toRadians(1));
+        OSMMap read = OSMMapReader.readOSMFile(osm.getPath(), false, bl, tr);
+        // The lake enclosing the zone is kept, with the relations 30 and 32
+        assertEquals(3, read.relations().size());
+        for (int i = 0; i < 2; ++i) {
+            // The first read writes the cache, the second one reads it
+            OSMMap cached = OSMMapCache.readOSMFile(osm.getPath(), false, bl,
+                    tr);
+            assertSameWays(read.ways(), cached.ways());
+            assertEquals(read.relations().size(), cached.relations().size());
+        }
+    }
+
+    @Test
+    public void corruptedCacheIsParsedAgain() throws Exception {
+        File osm = copyOf("/OSMtestFiles/testBoundingBox.osm");
+        File cache = new File(osm.getPath() + ".cache");
+        OSMMap read = OSMMapReader.readOSMFile(osm.getPath(), false);
+        OSMMapCache.write(read, cache, osm);
+        // The header is intact, the content is cut in the middle
+        byte[] bytes = Files.readAllBytes(cache.toPath());
+        Files.write(cache.toPath(), Arrays.copyOf(bytes, bytes.length / 2));
+        assertNull(OSMMapCache.read(cache, osm));
+
+        PointGeo bl = new PointGeo(-1, -1), tr = new PointGeo(1, 1);
+        assertSameWays(read.ways(), OSMMapCache.readOSMFile(osm.getPath(),
+                false, bl, tr).ways());
+        // The cache has been written over
+        assertSameWays(read.ways(), OSMMapCache.read(cache, osm).ways());
+    }
+
+    @Test
+    public void cacheFailuresAreHandedToTheCaller() throws Exception {
+        File osm = copyOf("/OSMtestFiles/testBoundingBox.osm");
+        // A directory that isn't empty can't be replaced by the cache
+        File cache = new File(osm.getPath() + ".cache");
+        File blocker = new File(cache, "file");
+        assertTrue(cache.mkdir() && blocker.createNewFile());
+        try {
+            List<IOException> failures = new ArrayList<>();
+            PointGeo bl = new PointGeo(-1, -1), tr = new PointGeo(1, 1);
+            OSMMap read = OSMMapCache.readOSMFile(osm.getPath(), false, bl,
+                    tr, failures::add);
+            assertSameWays(OSMMapReader.readOSMFile(osm.getPath(), false)
+                    .ways(), read.ways());
+            assertEquals(1, failures.size());
+            assertTrue(failures.get(0).getMessage().contains(cache.getPath()));
+            // The temporary file has been deleted
+            assertEquals(2, osm.getParentFile().list().length);
+        } finally {
+            blocker.delete();
+            cache.delete();
+        }
+    }
+}
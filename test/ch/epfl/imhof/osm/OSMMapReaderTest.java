@@ -5,11 +5,15 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.PrintWriter;
 
 import org.junit.Test;
 import org.xml.sax.SAXParseException;
 
+import ch.epfl.imhof.PointGeo;
+
 public class OSMMapReaderTest {
 
     @Test
@@ -239,4 +243,120 @@ public class OSMMapReaderTest {
         OSMMapReader.readOSMFile(getClass().getResource("/OSMtestFiles/testSimpleBuildingError.osm").getFile().replace("%20",  " "), false);
     }
 
+
+    @Test
+    public void boundingBoxKeepsOnlyTheEntitiesOfTheZone() throws Exception {
+        String fileName = getClass().getResource("/OSMtestFiles/testBoundingBox.osm").getFile().replace("%20",  " ");
+        OSMMap whole = OSMMapReader.readOSMFile(fileName, false);
+        assertEquals(9, whole.ways().size());
+        assertEquals(5, whole.relations().size());
+
+        OSMMap zone = OSMMapReader.readOSMFile(fileName, false,
+                new PointGeo(0, 0), new PointGeo(Math.toRadians(1), Math.toRadians(1)));
+        assertEquals(3, zone.ways().size());
+        for (OSMWay way : zone.ways())
+            assertTrue(way.id() == 10 || way.id() == 12 || way.id() == 14);
+        assertEquals(3, zone.relations().size());
+        for (OSMRelation relation : zone.relations()) {
+            if (relation.id() == 30)
+                // The member outside of the zone is kept
+                assertEquals(2, relation.members().size());
+            else if (relation.id() == 34)
+                // The lake encloses the zone, none of its ways is in it
+                assertEquals(4, relation.members().size());
+            else
+                assertEquals(32, relation.id());
+        }
+    }
+
+    private static void assertSameMaps(OSMMap expected, OSMMap map) {
+        assertEquals(expected.ways().size(), map.ways().size());
+        for (int i = 0; i < map.ways().size(); ++i) {
+            OSMWay e = expected.ways().get(i), w = map.ways().get(i);
+            assertEquals(e.id(), w.id());
+            assertEquals(e.attributes().keySet(), w.attributes().keySet());
+            assertEquals(e.nodesCount(), w.nodesCount());
+            for (int j = 0; j < w.nodesCount(); ++j) {
+                assertEquals(e.nodes().get(j).id(), w.nodes().get(j).id());
+                assertEquals(e.nodes().get(j).position().latitude(), w.nodes().get(j).position().latitude(), 0);
+            }
+        }
+        assertEquals(expected.relations().size(), map.relations().size());
+        for (int i = 0; i < map.relations().size(); ++i) {
+            OSMRelation e = expected.relations().get(i), r = map.relations().get(i);
+            assertEquals(e.id(), r.id());
+            assertEquals(e.attributes().keySet(), r.attributes().keySet());
+            assertEquals(e.members().size(), r.members().size());
+            for (int j = 0; j < r.members().size(); ++j) {
+                assertEquals(e.members().get(j).type(), r.members().get(j).type());
+                assertEquals(e.members().get(j).role(), r.members().get(j).role());
+                assertEquals(e.members().get(j).member().id(), r.members().get(j).member().id());
+            }
+        }
+    }
+
+    @Test
+    public void pipelineGivesTheMapOfTheSequentialReader() throws Exception {
+        String[] files = { "testBuildingMultipleHoles.osm", "testBoundingBox.osm", "testMultipolygons.osm", "testGZip.osm.gz", "lc.osm.gz" };
+        for (String file : files) {
+            String fileName = getClass().getResource("/OSMtestFiles/" + file).getFile().replace("%20",  " ");
+            boolean unGZip = file.endsWith(".gz");
+            OSMMap expected = OSMMapReader.readOSMFile(fileName, unGZip, 1);
+            for (int parallelism = 2; parallelism <= 4; ++parallelism)
+                assertSameMaps(expected, OSMMapReader.readOSMFile(fileName, unGZip, parallelism));
+        }
+    }
+
+    @Test (expected = SAXParseException.class)
+    public void pipelineReportsErrorInFile() throws Exception {
+        OSMMapReader.readOSMFile(getClass().getResource("/OSMtestFiles/testSimpleBuildingError.osm").getFile().replace("%20",  " "), false, 3);
+    }
+
+    @Test
+    public void relationsKeepTheirUntaggedNodeMembers() throws Exception {
+        // The admin centre of the relation is a node that no way references
+        String fileName = getClass().getResource("/OSMtestFiles/testRelationNode.osm").getFile().replace("%20",  " ");
+        for (int parallelism = 1; parallelism <= 2; ++parallelism) {
+            OSMMap map = OSMMapReader.readOSMFile(fileName, false, parallelism);
+            assertEquals(1, map.relations().size());
+            OSMRelation relation = map.relations().get(0);
+            assertEquals(2, relation.members().size());
+            assertEquals(4, relation.members().get(1).member().id());
+        }
+    }
+
+    @Test (timeout = 30000)
+    public void pipelineStopsWhenAWorkerFails() throws Exception {
+        // The malformed latitude fails in a worker, while the tokenizer is
+        // blocked on the full queue of the thousands of nodes after it
+        File osm = File.createTempFile("malformed", ".osm");
+        osm.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(osm, "UTF-8")) {
+            out.println("<osm version='0.6'>");
+            out.println("<node id='1' lat='north' lon='6.5'/>");
+            for (int i = 2; i < 200_000; ++i)
+                out.println("<node id='" + i + "' lat='46.5' lon='6.5'/>");
+            out.println("</osm>");
+        }
+        try {
+            OSMMapReader.readOSMFile(osm.getPath(), false, 2);
+            fail("The malformed latitude wasn't reported");
+        } catch (NumberFormatException e) {
+            // The stages of the pipeline must end once the reading failed
+            while (isStageAlive())
+                Thread.sleep(10);
+        }
+    }
+
+    private static boolean isStageAlive() {
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+            if (thread.getName().startsWith("OSM "))
+                return true;
+        return false;
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void zeroParallelismFails() throws Exception {
+        OSMMapReader.readOSMFile(getClass().getResource("/OSMtestFiles/testSimpleBuilding.osm").getFile().replace("%20",  " "), false, 0);
+    }
 }
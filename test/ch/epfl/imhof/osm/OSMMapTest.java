@@ -536,4 +536,50 @@ public class OSMMapTest {
         
     }
     
+
+    @Test
+    public void untaggedNodesAreSharedByTheirReferences() {
+        OSMMap.Builder b = new OSMMap.Builder();
+        b.addNode(1, 0.1, 0.2);
+        b.addNode(createOSMNode());
+        OSMNode n = b.nodeForId(1);
+        assertEquals(0.1, n.position().longitude(), 0);
+        assertEquals(0.2, n.position().latitude(), 0);
+        assertTrue(n.attributes().isEmpty());
+        assertSame(n, b.nodeForId(1));
+        assertEquals(3, b.nodeForId(3).id());
+        assertNull(b.nodeForId(2));
+    }
+
+    @Test
+    public void nodesMayBeAddedInAnyOrder() {
+        OSMMap.Builder b = new OSMMap.Builder();
+        for (int i = 2000; i > 0; i -= 2)
+            b.addNode(i, i / 1e4, 0);
+        for (int i = 3001; i < 6000; i += 2)
+            b.addNode(new OSMNode(i, new PointGeo(0, 0), new Attributes(
+                    sampleAttributesValues())));
+        b.addNode(7, 0.5, 0.5);
+        b.addNode(10, 0.5, 0.5);
+        for (int i = 2000; i > 0; i -= 2)
+            assertEquals(i == 10 ? 0.5 : i / 1e4, b.nodeForId(i).position()
+                    .longitude(), 0);
+        assertEquals(0.5, b.nodeForId(7).position().latitude(), 0);
+        assertNull(b.nodeForId(5));
+        assertEquals("testValue 1", b.nodeForId(4001).attributeValue(
+                "testKey 1"));
+    }
+
+    @Test
+    public void droppedNodesAreTheOnesNeverRequested() {
+        OSMMap.Builder b = new OSMMap.Builder();
+        b.addNode(1, 0.1, 0.2);
+        b.addNode(2, 0.3, 0.4);
+        b.addNode(createOSMNode());
+        OSMNode n = b.nodeForId(1);
+        b.dropUntaggedNodes();
+        assertSame(n, b.nodeForId(1));
+        assertNull(b.nodeForId(2));
+        assertEquals(3, b.nodeForId(3).id());
+    }
 }
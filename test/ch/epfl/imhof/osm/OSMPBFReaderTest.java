@@ -0,0 +1,318 @@
+package ch.epfl.imhof.osm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+public class OSMPBFReaderTest {
+    // id, latitude and longitude in 1e-7 degrees
+    private static final long[][] NODES = { { 1, 465123456, 65234567 },
+            { 2, 465123999, 65239999 }, { 3, 465130001, 65240001 },
+            { 4, 465200000, 65300000 }, { 5, 465200000, 65310000 },
+            { 6, -465210000, -65310000 } };
+    private static final long[][] WAYS = { { 10, 1, 2, 3 }, { 11, 4, 5, 6, 4 },
+            { 12, 1, 99 } };
+    private static final String[][] WAY_TAGS = { { "highway", "primary" },
+            { "building", "yes" }, { "highway", "path" } };
+    // id, then (type, ref) couples
+    private static final long[][] RELATIONS = { { 20, 1, 11, 0, 3 },
+            { 21, 1, 12 }, { 22, 2, 20 }, { 23, 2, 24 }, { 24, 1, 10 } };
+    private static final String[] TYPES = { "node", "way", "relation" };
+
+    private static File temporaryFile(String suffix) throws IOException {
+        File file = Files.createTempFile("pbf", suffix).toFile();
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static File writeXML() throws IOException {
+        File file = temporaryFile(".osm");
+        try (PrintWriter w = new PrintWriter(file, "UTF-8")) {
+            w.println("<?xml version='1.0' encoding='UTF-8'?>");
+            w.println("<osm version='0.6'>");
+            for (long[] n : NODES) {
+                w.printf(Locale.ROOT, "<node id='%d' lat='%.7f' lon='%.7f'>%n",
+                        n[0], n[1] / 1e7, n[2] / 1e7);
+                if (n[0] == 3)
+                    w.println("<tag k='amenity' v='bench'/>");
+                w.println("</node>");
+            }
+            for (int i = 0; i < WAYS.length; ++i) {
+                w.printf("<way id='%d'>%n", WAYS[i][0]);
+                for (int j = 1; j < WAYS[i].length; ++j)
+                    w.printf("<nd ref='%d'/>%n", WAYS[i][j]);
+                w.printf("<tag k='%s' v='%s'/>%n", WAY_TAGS[i][0],
+                        WAY_TAGS[i][1]);
+                w.println("</way>");
+            }
+            for (long[] r : RELATIONS) {
+                w.printf("<relation id='%d'>%n", r[0]);
+                for (int j = 1; j < r.length; j += 2)
+                    w.printf("<member type='%s' ref='%d' role='%s'/>%n",
+                            TYPES[(int) r[j]], r[j + 1], j == 1 ? "outer" : "");
+                w.println("<tag k='type' v='multipolygon'/>");
+                w.println("</relation>");
+            }
+            w.println("</osm>");
+        }
+        return file;
+    }
+
+    private static File writePBF() throws IOException {
+        File file = temporaryFile(".osm.pbf");
+        List<String> strings = new ArrayList<>();
+        for (String s : new String[] { "", "amenity", "bench", "type",
+                "multipolygon", "outer" })
+            strings.add(s);
+        for (String[] tags : WAY_TAGS)
+            for (String s : tags)
+                if (!strings.contains(s))
+                    strings.add(s);
+
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(
+                file))) {
+            Proto header = new Proto();
+            header.string(4, "OsmSchema-V0.6");
+            header.string(4, "DenseNodes");
+            writeBlob(out, "OSMHeader", header, true);
+
+            // Nodes 1 to 3 as dense nodes, in a raw blob
+            Proto dense = new Proto();
+            long[] ids = new long[3], lats = new long[3], lons = new long[3];
+            for (int i = 0; i < 3; ++i) {
+                // A granularity of 100 nanodegrees, that is 1e-7 degrees
+                ids[i] = NODES[i][0] - (i > 0 ? NODES[i - 1][0] : 0);
+                lats[i] = NODES[i][1] - (i > 0 ? NODES[i - 1][1] : 0);
+                lons[i] = NODES[i][2] - (i > 0 ? NODES[i - 1][2] : 0);
+            }
+            dense.packed(1, ids, true);
+            dense.packed(8, lats, true);
+            dense.packed(9, lons, true);
+            dense.packed(10, new long[] { 0, 0, strings.indexOf("amenity"),
+                    strings.indexOf("bench"), 0 }, false);
+            Proto group = new Proto();
+            group.message(2, dense);
+            writeBlob(out, "OSMData", block(strings, group), false);
+
+            // Nodes 4 to 6 as simple nodes, with an offset
+            group = new Proto();
+            for (int i = 3; i < 6; ++i) {
+                Proto node = new Proto();
+                node.sint(1, NODES[i][0]);
+                node.sint(8, NODES[i][1] - 1000);
+                node.sint(9, NODES[i][2] + 1000);
+                group.message(1, node);
+            }
+            Proto b = block(strings, group);
+            b.varint(19, 100_000L);
+            b.varint(20, -100_000L);
+            writeBlob(out, "OSMData", b, true);
+
+            group = new Proto();
+            for (int i = 0; i < WAYS.length; ++i) {
+                Proto way = new Proto();
+                way.varint(1, WAYS[i][0]);
+                way.packed(2, new long[] { strings.indexOf(WAY_TAGS[i][0]) },
+                        false);
+                way.packed(3, new long[] { strings.indexOf(WAY_TAGS[i][1]) },
+                        false);
+                long[] refs = new long[WAYS[i].length - 1];
+                for (int j = 0; j < refs.length; ++j)
+                    refs[j] = WAYS[i][j + 1] - (j > 0 ? WAYS[i][j] : 0);
+                way.packed(8, refs, true);
+                group.message(3, way);
+            }
+            writeBlob(out, "OSMData", block(strings, group), true);
+
+            group = new Proto();
+            for (long[] r : RELATIONS) {
+                Proto relation = new Proto();
+                relation.varint(1, r[0]);
+                relation.packed(2, new long[] { strings.indexOf("type") },
+                        false);
+                relation.packed(3,
+                        new long[] { strings.indexOf("multipolygon") }, false);
+                int count = (r.length - 1) / 2;
+                long[] roles = new long[count], ids2 = new long[count];
+                long[] types = new long[count];
+                for (int j = 0; j < count; ++j) {
+                    roles[j] = strings.indexOf(j == 0 ? "outer" : "");
+                    ids2[j] = r[2 * j + 2] - (j > 0 ? r[2 * j] : 0);
+                    types[j] = r[2 * j + 1];
+                }
+                relation.packed(8, roles, false);
+                relation.packed(9, ids2, true);
+                relation.packed(10, types, false);
+                group.message(4, relation);
+            }
+            writeBlob(out, "OSMData", block(strings, group), true);
+        }
+        return file;
+    }
+
+    private static Proto block(List<String> strings, Proto group) {
+        Proto table = new Proto();
+        for (String s : strings)
+            table.string(1, s);
+        Proto block = new Proto();
+        block.message(2, group);
+        block.message(1, table);
+        return block;
+    }
+
+    private static void writeBlob(DataOutputStream out, String type,
+            Proto content, boolean zlib) throws IOException {
+        byte[] raw = content.bytes();
+        Proto blob = new Proto();
+        if (zlib) {
+            Deflater deflater = new Deflater();
+            deflater.setInput(raw);
+            deflater.finish();
+            byte[] buffer = new byte[raw.length + 64];
+            int length = deflater.deflate(buffer);
+            deflater.end();
+            blob.varint(2, raw.length);
+            blob.bytes(3, Arrays.copyOf(buffer, length));
+        } else
+            blob.bytes(1, raw);
+        Proto header = new Proto();
+        header.string(1, type);
+        header.varint(3, blob.bytes().length);
+        out.writeInt(header.bytes().length);
+        out.write(header.bytes());
+        out.write(blob.bytes());
+    }
+
+    /**
+     * A minimal protocol buffers writer.
+     */
+    private static final class Proto {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        byte[] bytes() {
+            return out.toByteArray();
+        }
+
+        void rawVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        void varint(int field, long value) {
+            rawVarint(field << 3);
+            rawVarint(value);
+        }
+
+        void sint(int field, long value) {
+            varint(field, (value << 1) ^ (value >> 63));
+        }
+
+        void bytes(int field, byte[] value) {
+            rawVarint(field << 3 | 2);
+            rawVarint(value.length);
+            out.write(value, 0, value.length);
+        }
+
+        void string(int field, String value) {
+            bytes(field, value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void message(int field, Proto value) {
+            bytes(field, value.bytes());
+        }
+
+        void packed(int field, long[] values, boolean signed) {
+            Proto p = new Proto();
+            for (long v : values)
+                p.rawVarint(signed ? (v << 1) ^ (v >> 63) : v);
+            bytes(field, p.bytes());
+        }
+    }
+
+    @Test
+    public void pbfFileGivesTheMapOfTheXMLFile() throws Exception {
+        OSMMap xml = OSMMapReader.readOSMFile(writeXML().getPath(), false);
+        File pbf = writePBF();
+        for (int parallelism = 1; parallelism <= 3; ++parallelism) {
+            OSMMap map = OSMPBFReader.readPBFFile(pbf.getPath(), parallelism);
+
+            assertEquals(2, map.ways().size());
+            assertEquals(xml.ways().size(), map.ways().size());
+            HashMap<Long, OSMWay> ways = new HashMap<>();
+            for (OSMWay way : map.ways())
+                ways.put(way.id(), way);
+            for (OSMWay expected : xml.ways()) {
+                OSMWay way = ways.get(expected.id());
+                assertEquals(expected.attributeValue("highway"),
+                        way.attributeValue("highway"));
+                assertEquals(expected.nodesCount(), way.nodesCount());
+                assertEquals(expected.isClosed(), way.isClosed());
+                for (int i = 0; i < way.nodesCount(); ++i) {
+                    OSMNode n = expected.nodes().get(i), m = way.nodes()
+                            .get(i);
+                    assertEquals(n.id(), m.id());
+                    assertEquals(n.attributeValue("amenity"),
+                            m.attributeValue("amenity"));
+                    assertEquals(n.position().longitude(), m.position()
+                            .longitude(), 0);
+                    assertEquals(n.position().latitude(), m.position()
+                            .latitude(), 0);
+                }
+            }
+
+            // 21 has a missing way, 23 references a later relation
+            assertEquals(3, map.relations().size());
+            assertEquals(xml.relations().size(), map.relations().size());
+            HashMap<Long, OSMRelation> relations = new HashMap<>();
+            for (OSMRelation relation : map.relations())
+                relations.put(relation.id(), relation);
+            for (OSMRelation expected : xml.relations()) {
+                OSMRelation relation = relations.get(expected.id());
+                assertEquals("multipolygon", relation.attributeValue("type"));
+                assertEquals(expected.members().size(), relation.members()
+                        .size());
+                for (int i = 0; i < relation.members().size(); ++i) {
+                    OSMRelation.Member e = expected.members().get(i);
+                    OSMRelation.Member m = relation.members().get(i);
+                    assertEquals(e.type(), m.type());
+                    assertEquals(e.role(), m.role());
+                    assertEquals(e.member().id(), m.member().id());
+                }
+            }
+            assertSame(relations.get(20L), relations.get(22L).members()
+                    .get(0).member());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void unsupportedFeatureFails() throws Exception {
+        File file = temporaryFile(".osm.pbf");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(
+                file))) {
+            Proto header = new Proto();
+            header.string(4, "OsmSchema-V0.6");
+            header.string(4, "HistoricalInformation");
+            writeBlob(out, "OSMHeader", header, false);
+        }
+        OSMPBFReader.readPBFFile(file.getPath());
+    }
+}
@@ -0,0 +1,150 @@
+package ch.epfl.imhof.painting;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class GaussianBlurTest {
+    private static final int WIDTH = 150, HEIGHT = 130;
+
+    // An image with a vertical edge between 0 and 1, and noise below it
+    private static float[] image() {
+        Random random = new Random(7);
+        float[] values = new float[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; ++y)
+            for (int x = 0; x < WIDTH; ++x)
+                values[y * WIDTH + x] = y > HEIGHT / 2 ? random.nextFloat()
+                        : x < WIDTH / 2 ? 0 : 1;
+        return values;
+    }
+
+    // The image convolved with the Gaussian kernel truncated at the radius,
+    // whose standard deviation is a third of the radius
+    private static float[] convolved(float[] values, double radius) {
+        int middle = (int) Math.ceil(radius);
+        double sigma = radius / 3;
+        double[] kernel = new double[2 * middle + 1];
+        double sum = 0;
+        for (int i = 0; i < kernel.length; ++i) {
+            kernel[i] = Math.exp(-(i - middle) * (i - middle)
+                    / (2 * sigma * sigma));
+            sum += kernel[i];
+        }
+        double[] rows = new double[values.length];
+        for (int y = 0; y < HEIGHT; ++y)
+            for (int x = 0; x < WIDTH; ++x)
+                for (int i = -middle; i <= middle; ++i)
+                    rows[y * WIDTH + x] += kernel[i + middle] / sum
+                            * values[y * WIDTH
+                                    + Math.max(0, Math.min(x + i, WIDTH - 1))];
+        float[] convolved = new float[values.length];
+        for (int y = 0; y < HEIGHT; ++y) {
+            for (int x = 0; x < WIDTH; ++x) {
+                double value = 0;
+                for (int i = -middle; i <= middle; ++i)
+                    value += kernel[i + middle] / sum
+                            * rows[Math.max(0, Math.min(y + i, HEIGHT - 1))
+                                    * WIDTH + x];
+                convolved[y * WIDTH + x] = (float) value;
+            }
+        }
+        return convolved;
+    }
+
+    private static float[] blurred(double radius, int parallelism) {
+        float[] values = image();
+        new GaussianBlur(radius).blur(values, WIDTH, HEIGHT, parallelism);
+        return values;
+    }
+
+    @Test
+    public void smallRadiiApplyTheKernel() {
+        for (double radius : new double[] { 0.5, 1, 1.7, 3, 5.2, 8 }) {
+            assertTrue(Math.ceil(radius) <= GaussianBlur.MAX_KERNEL_RADIUS);
+            assertArrayEquals(convolved(image(), radius), blurred(radius, 1),
+                    1e-4f);
+        }
+    }
+
+    @Test
+    public void bigRadiiAreCloseToTheKernel() {
+        for (double radius : new double[] { 9, 10.04, 17, 40.2 }) {
+            float[] expected = convolved(image(), radius);
+            float[] actual = blurred(radius, 1);
+            // The edge is within the bound stated by GaussianBlur, the
+            // noise further from it
+            for (int i = 0; i < WIDTH * HEIGHT / 3; ++i)
+                assertEquals(expected[i], actual[i], 0.02f);
+            assertArrayEquals(expected, actual, 0.08f);
+        }
+    }
+
+    @Test
+    public void supportIsTheRadiusOfTheKernelOrOfTheBoxes() {
+        assertEquals(0, new GaussianBlur(0).support());
+        assertEquals(2, new GaussianBlur(1.7).support());
+        assertEquals(8, new GaussianBlur(8).support());
+        for (double radius = 8.5; radius < 100; radius *= 1.3)
+            assertTrue(new GaussianBlur(radius).support() <= Math.ceil(radius));
+    }
+
+    @Test
+    public void zeroRadiusKeepsTheImage() {
+        assertArrayEquals(image(), blurred(0, 1), 1e-5f);
+    }
+
+    @Test
+    public void constantImagesStayConstant() {
+        for (double radius : new double[] { 3, 25 }) {
+            float[] values = new float[WIDTH * HEIGHT];
+            Arrays.fill(values, 0.3f);
+            new GaussianBlur(radius).blur(values, WIDTH, HEIGHT, 1);
+            for (float value : values)
+                assertEquals(0.3f, value, 1e-4f);
+        }
+    }
+
+    @Test
+    public void parallelBlurGivesTheSameValues() {
+        for (double radius : new double[] { 4, 21 })
+            assertArrayEquals(blurred(radius, 1), blurred(radius, 3), 0);
+    }
+
+    @Test
+    public void partsWithTheirMarginGiveTheValuesOfTheWholeImage() {
+        for (double radius : new double[] { 6, 13.5 }) {
+            GaussianBlur blur = new GaussianBlur(radius);
+            float[] whole = blurred(radius, 1);
+            int margin = blur.support();
+            // The rows [40, 60[ with their margin
+            int first = 40 - margin, rows = 20 + 2 * margin;
+            float[] part = Arrays.copyOfRange(image(), first * WIDTH,
+                    (first + rows) * WIDTH);
+            blur.blur(part, WIDTH, rows, 1);
+            for (int y = 40; y < 60; ++y)
+                for (int x = 0; x < WIDTH; ++x)
+                    assertEquals(whole[y * WIDTH + x], part[(y - first)
+                            * WIDTH + x], 0);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeRadiusFails() {
+        new GaussianBlur(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wrongSizeFails() {
+        new GaussianBlur(3).blur(new float[10], 3, 3, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroParallelismFails() {
+        new GaussianBlur(3).blur(new float[9], 3, 3, 0);
+    }
+}
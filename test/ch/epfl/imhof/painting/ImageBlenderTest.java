@@ -0,0 +1,84 @@
+package ch.epfl.imhof.painting;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ImageBlenderTest {
+    private static BufferedImage randomImage(Random random, int width,
+            int height, int type) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; ++y)
+            for (int x = 0; x < width; ++x)
+                image.setRGB(x, y, random.nextInt() | 0xFF000000);
+        return image;
+    }
+
+    // The colors multiplied as Main.mix used to
+    private static int expected(int rgb1, int rgb2) {
+        return Color.rgb(rgb1).multiplyWith(Color.rgb(rgb2)).packedRBG();
+    }
+
+    private static void assertMultiplied(BufferedImage target,
+            BufferedImage factor, int parallelism) {
+        int[][] before = new int[target.getHeight()][target.getWidth()];
+        for (int y = 0; y < target.getHeight(); ++y)
+            for (int x = 0; x < target.getWidth(); ++x)
+                before[y][x] = target.getRGB(x, y);
+        ImageBlender.multiply(target, factor, parallelism);
+        for (int y = 0; y < target.getHeight(); ++y)
+            for (int x = 0; x < target.getWidth(); ++x)
+                assertEquals(expected(before[y][x], factor.getRGB(x, y)),
+                        target.getRGB(x, y) & 0xFFFFFF);
+    }
+
+    @Test
+    public void multiplicationIsTheOneOfColors() {
+        Random random = new Random(0xB1E4D);
+        for (int parallelism : new int[] { 1, 2, 5 }) {
+            BufferedImage target = randomImage(random, 301, 257,
+                    BufferedImage.TYPE_INT_RGB);
+            assertMultiplied(target, randomImage(random, 301, 257,
+                    BufferedImage.TYPE_INT_RGB), parallelism);
+        }
+    }
+
+    @Test
+    public void everyPairOfComponentsIsMultipliedExactly() {
+        BufferedImage target = new BufferedImage(256, 256,
+                BufferedImage.TYPE_INT_RGB);
+        BufferedImage factor = new BufferedImage(256, 256,
+                BufferedImage.TYPE_INT_RGB);
+        for (int a = 0; a < 256; ++a) {
+            for (int b = 0; b < 256; ++b) {
+                target.setRGB(a, b, a << 16 | b << 8 | a);
+                factor.setRGB(a, b, b << 16 | a << 8 | 255 - b);
+            }
+        }
+        assertMultiplied(target, factor, 1);
+    }
+
+    @Test
+    public void subimagesAndOtherTypesAreMultiplied() {
+        Random random = new Random(42);
+        BufferedImage target = randomImage(random, 200, 150,
+                BufferedImage.TYPE_INT_RGB).getSubimage(13, 7, 120, 100);
+        BufferedImage factor = randomImage(random, 160, 130,
+                BufferedImage.TYPE_INT_RGB).getSubimage(31, 29, 120, 100);
+        assertMultiplied(target, factor, 2);
+
+        assertMultiplied(
+                randomImage(random, 90, 80, BufferedImage.TYPE_INT_ARGB),
+                randomImage(random, 90, 80, BufferedImage.TYPE_3BYTE_BGR), 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void imagesOfDifferentSizesFail() {
+        ImageBlender.multiply(new BufferedImage(10, 10,
+                BufferedImage.TYPE_INT_RGB), new BufferedImage(10, 11,
+                BufferedImage.TYPE_INT_RGB), 1);
+    }
+}
@@ -0,0 +1,124 @@
+package ch.epfl.imhof.painting;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ch.epfl.imhof.Attributed;
+import ch.epfl.imhof.Attributes;
+import ch.epfl.imhof.Map;
+import ch.epfl.imhof.geometry.ClosedPolyLine;
+import ch.epfl.imhof.geometry.OpenPolyLine;
+import ch.epfl.imhof.geometry.Point;
+import ch.epfl.imhof.geometry.PolyLine;
+import ch.epfl.imhof.geometry.Polygon;
+
+public class Java2DCanvasTest {
+    private static final Point BL = new Point(0, 0);
+    private static final Point TR = new Point(1000, 700);
+
+    private static List<Point> randomPoints(Random random, int count) {
+        List<Point> points = new ArrayList<>();
+        for (int i = 0; i < count; ++i)
+            points.add(new Point(random.nextDouble() * 1100 - 50, random
+                    .nextDouble() * 800 - 50));
+        return points;
+    }
+
+    private static Map randomMap(Random random) {
+        List<Attributed<PolyLine>> polyLines = new ArrayList<>();
+        List<Attributed<Polygon>> polygons = new ArrayList<>();
+        Attributes none = new Attributes.Builder().build();
+        for (int i = 0; i < 100; ++i) {
+            polyLines.add(new Attributed<>(new OpenPolyLine(randomPoints(
+                    random, 2 + random.nextInt(5))), none));
+            // The hole is the shell shrunk towards its first point, so that
+            // it stays within the bounding box of the shell
+            List<Point> shell = randomPoints(random, 3 + random.nextInt(3));
+            List<Point> hole = new ArrayList<>();
+            for (Point p : shell)
+                hole.add(new Point((p.x() + shell.get(0).x()) / 2,
+                        (p.y() + shell.get(0).y()) / 2));
+            polygons.add(new Attributed<>(new Polygon(new ClosedPolyLine(
+                    shell), Collections.singletonList(new ClosedPolyLine(hole))),
+                    none));
+        }
+        return new Map(polyLines, polygons);
+    }
+
+    private static Painter painter() {
+        LineStyle dashed = new LineStyle(3, Color.rgb(0.1, 0.4, 0.8),
+                LineStyle.LineCap.ROUND, LineStyle.LineJoin.ROUND,
+                new float[] { 2f, 1f });
+        return Painter.line(dashed)
+                .above(Painter.outline(new LineStyle(5, Color.RED)))
+                .above(Painter.polygon(Color.gray(0.6)));
+    }
+
+    private static BufferedImage render(Map map, int width, int height,
+            int dpi, int parallelism) {
+        Java2DCanvas canvas = new Java2DCanvas(BL, TR, width, height, dpi,
+                Color.WHITE);
+        canvas.drawMap(painter(), map, parallelism);
+        return canvas.image();
+    }
+
+    @Test
+    public void bandsDrawTheImageOfASingleThread() {
+        Random random = new Random(0xBA4D5);
+        int[][] sizes = { { 800, 560, 150 }, { 641, 449, 72 },
+                { 333, 233, 300 } };
+        for (int[] size : sizes) {
+            Map map = randomMap(random);
+            BufferedImage expected = render(map, size[0], size[1], size[2], 1);
+            for (int parallelism : new int[] { 2, 3, 8 }) {
+                BufferedImage actual = render(map, size[0], size[1],
+                        size[2], parallelism);
+                int white = 0;
+                for (int y = 0; y < size[1]; ++y) {
+                    for (int x = 0; x < size[0]; ++x) {
+                        assertEquals(expected.getRGB(x, y),
+                                actual.getRGB(x, y));
+                        if (actual.getRGB(x, y) == 0xFFFFFFFF)
+                            ++white;
+                    }
+                }
+                assertTrue(white < size[0] * size[1]);
+            }
+        }
+    }
+
+    @Test
+    public void stripsDrawTheRowsOfTheCanvas() {
+        Map map = randomMap(new Random(0x57219));
+        BufferedImage whole = render(map, 400, 280, 150, 1);
+        for (int firstRow : new int[] { 0, 13, 71, 251 }) {
+            int rows = Math.min(29, 280 - firstRow);
+            Java2DCanvas strip = new Java2DCanvas(BL, TR, 400, 280, 150,
+                    Color.WHITE, firstRow, rows);
+            strip.drawMap(painter(), map, 2);
+            assertEquals(rows, strip.image().getHeight());
+            for (int y = 0; y < rows; ++y)
+                for (int x = 0; x < 400; ++x)
+                    assertEquals(whole.getRGB(x, firstRow + y), strip.image()
+                            .getRGB(x, y));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void stripOutsideOfTheCanvasFails() {
+        new Java2DCanvas(BL, TR, 100, 100, 72, Color.WHITE, 90, 11);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroParallelismFails() {
+        render(randomMap(new Random(1)), 100, 100, 72, 0);
+    }
+}
@@ -0,0 +1,175 @@
+package ch.epfl.imhof.painting;
+
+import static ch.epfl.imhof.painting.Filters.tagged;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
+
+import org.junit.Test;
+
+import ch.epfl.imhof.Attributed;
+import ch.epfl.imhof.Attributes;
+import ch.epfl.imhof.Map;
+import ch.epfl.imhof.geometry.ClosedPolyLine;
+import ch.epfl.imhof.geometry.OpenPolyLine;
+import ch.epfl.imhof.geometry.Point;
+import ch.epfl.imhof.geometry.PolyLine;
+import ch.epfl.imhof.geometry.Polygon;
+
+public class PainterTest {
+    private static final String[] LAYERS = { "-6", "-5", "-1", "0", "2",
+            "5", "6", "x" };
+    private static final String[] HIGHWAYS = { "primary", "secondary",
+            "footway" };
+
+    private static final class RecordingCanvas implements Canvas {
+        private final List<String> calls = new ArrayList<>();
+
+        @Override
+        public void drawPolyLine(PolyLine polyLine, LineStyle style) {
+            calls.add("line " + System.identityHashCode(polyLine) + " "
+                    + System.identityHashCode(style));
+        }
+
+        @Override
+        public void drawPolygon(Polygon polygon, Color color) {
+            calls.add("polygon " + System.identityHashCode(polygon) + " "
+                    + System.identityHashCode(color));
+        }
+    }
+
+    private static Attributes randomAttributes(Random random) {
+        Attributes.Builder b = new Attributes.Builder();
+        if (random.nextBoolean())
+            b.put("layer", LAYERS[random.nextInt(LAYERS.length)]);
+        if (random.nextBoolean())
+            b.put("highway", HIGHWAYS[random.nextInt(HIGHWAYS.length)]);
+        if (random.nextInt(3) == 0)
+            b.put("building", "yes");
+        if (random.nextInt(3) == 0)
+            b.put("bridge", "yes");
+        return b.build();
+    }
+
+    private static Map randomMap(Random random) {
+        List<Point> points = Arrays.asList(new Point(0, 0), new Point(1, 0),
+                new Point(1, 1));
+        List<Attributed<PolyLine>> polyLines = new ArrayList<>();
+        List<Attributed<Polygon>> polygons = new ArrayList<>();
+        for (int i = 0; i < 500; ++i) {
+            polyLines.add(new Attributed<>(new OpenPolyLine(points),
+                    randomAttributes(random)));
+            ClosedPolyLine hole = new ClosedPolyLine(points);
+            polygons.add(new Attributed<>(new Polygon(new ClosedPolyLine(
+                    points), Arrays.asList(hole)), randomAttributes(random)));
+        }
+        return new Map(polyLines, polygons);
+    }
+
+    // The painters as they were drawn before the table of rules
+    private static Painter nestedWhen(Painter painter,
+            Predicate<Attributed<?>> predicate) {
+        return (map, canvas) -> {
+            List<Attributed<PolyLine>> polyLines = new ArrayList<>();
+            List<Attributed<Polygon>> polygons = new ArrayList<>();
+            for (Attributed<PolyLine> p : map.polyLines())
+                if (predicate.test(p))
+                    polyLines.add(p);
+            for (Attributed<Polygon> p : map.polygons())
+                if (predicate.test(p))
+                    polygons.add(p);
+            painter.drawMap(new Map(polyLines, polygons), canvas);
+        };
+    }
+
+    private static Painter nestedAbove(Painter above, Painter below) {
+        return (map, canvas) -> {
+            below.drawMap(map, canvas);
+            above.drawMap(map, canvas);
+        };
+    }
+
+    private static Painter nestedLayered(Painter painter) {
+        Painter out = (map, canvas) -> {
+        };
+        for (int i = -5; i <= 5; ++i)
+            out = nestedAbove(nestedWhen(painter, Filters.onLayer(i)), out);
+        return out;
+    }
+
+    private static Painter nested(Painter painter) {
+        // Drawing through a lambda keeps the rules out of the way
+        return (map, canvas) -> painter.drawMap(map, canvas);
+    }
+
+    @Test
+    public void rulesDrawLikeNestedPainters() {
+        LineStyle road = new LineStyle(2, Color.RED);
+        LineStyle border = new LineStyle(3, Color.BLACK);
+        LineStyle outline = new LineStyle(1, Color.BLACK);
+        Color building = Color.gray(0.2);
+        Predicate<Attributed<?>> roads = tagged("highway", "primary",
+                "secondary");
+        Predicate<Attributed<?>> bridges = tagged("bridge");
+        Painter custom = (map, canvas) -> {
+            canvas.drawPolygon(null, Color.WHITE);
+            for (Attributed<Polygon> p : map.polygons())
+                canvas.drawPolyLine(p.value().shell(), border);
+            for (Attributed<PolyLine> p : map.polyLines())
+                canvas.drawPolyLine(p.value(), road);
+        };
+
+        Painter rules = Painter.line(road).when(roads.and(bridges))
+                .above(Painter.line(border).when(roads))
+                .above(Painter.polygon(building).above(Painter.outline(outline))
+                        .when(tagged("building")))
+                .above(custom.when(tagged("highway", "footway")))
+                .layered()
+                .above(custom.layered().when(tagged("bridge")).layered())
+                .above(Painter.empty().when(tagged("building")));
+
+        Painter road2 = nested(Painter.line(road));
+        Painter border2 = nested(Painter.line(border));
+        Painter polygon2 = nested(Painter.polygon(building));
+        Painter outline2 = nested(Painter.outline(outline));
+        Painter nested = nestedAbove(
+                nestedLayered(nestedAbove(
+                        nestedWhen(road2, roads.and(bridges)),
+                        nestedAbove(
+                                nestedWhen(border2, roads),
+                                nestedAbove(
+                                        nestedWhen(
+                                                nestedAbove(polygon2,
+                                                        outline2),
+                                                tagged("building")),
+                                        nestedWhen(custom,
+                                                tagged("highway",
+                                                        "footway")))))),
+                nestedLayered(nestedWhen(nestedLayered(custom),
+                        tagged("bridge"))));
+
+        Random random = new Random(0x1A1E5);
+        for (int i = 0; i < 5; ++i) {
+            Map map = randomMap(random);
+            RecordingCanvas expected = new RecordingCanvas();
+            nested.drawMap(map, expected);
+            RecordingCanvas actual = new RecordingCanvas();
+            rules.drawMap(map, actual);
+            assertTrue(expected.calls.size() > 1000);
+            assertEquals(expected.calls, actual.calls);
+        }
+    }
+
+    @Test
+    public void emptyPainterDrawsNothing() {
+        RecordingCanvas canvas = new RecordingCanvas();
+        Painter.empty().layered().when(tagged("building"))
+                .drawMap(randomMap(new Random(1)), canvas);
+        assertEquals(0, canvas.calls.size());
+    }
+}
@@ -61,4 +61,60 @@ public class CH1903ProjectionTest {
         assertEquals( 0.1524, p.inverse(projectionD).longitude(), DELTA );
         assertEquals( 0.8036, p.inverse(projectionD).latitude(), DELTA );
     }
+
+    @Test
+    public void projectAllGivesTheSameValuesAsProject() {
+        Projection p = new CH1903Projection();
+        double[] lonLat = new double[2 * 21 * 21];
+        int k = 0;
+        for (int i = 0; i <= 20; ++i) {
+            for (int j = 0; j <= 20; ++j) {
+                lonLat[k++] = Math.toRadians(5.9 + 0.2 * i);
+                lonLat[k++] = Math.toRadians(45.8 + 0.1 * j);
+            }
+        }
+        double[] xy = new double[lonLat.length];
+        p.projectAll(lonLat, xy);
+        for (k = 0; k < lonLat.length; k += 2) {
+            Point expected = p.project(new PointGeo(lonLat[k], lonLat[k + 1]));
+            assertEquals(expected.x(), xy[k], 0);
+            assertEquals(expected.y(), xy[k + 1], 0);
+        }
+
+        double[] lonLat2 = new double[lonLat.length];
+        p.inverseAll(xy, lonLat2);
+        for (k = 0; k < xy.length; k += 2) {
+            PointGeo expected = p.inverse(new Point(xy[k], xy[k + 1]));
+            assertEquals(expected.longitude(), lonLat2[k], 0);
+            assertEquals(expected.latitude(), lonLat2[k + 1], 0);
+            assertEquals(lonLat[k], lonLat2[k], DELTA);
+            assertEquals(lonLat[k + 1], lonLat2[k + 1], DELTA);
+        }
+    }
+
+    @Test
+    public void projectAllWorksInPlace() {
+        Projection p = new CH1903Projection();
+        double[] coordinates = { 0.115786678, 0.811730504, 0.1524, 0.8036 };
+        p.projectAll(coordinates, coordinates);
+        assertEquals( 538249.192648, coordinates[0], DELTA );
+        assertEquals( 151142.504634, coordinates[1], DELTA );
+        assertEquals( 700108.820134, coordinates[2], DELTA );
+        assertEquals( 99863.666660, coordinates[3], DELTA );
+        p.inverseAll(coordinates, coordinates);
+        assertEquals( 0.115786678, coordinates[0], DELTA );
+        assertEquals( 0.811730504, coordinates[1], DELTA );
+        assertEquals( 0.1524, coordinates[2], DELTA );
+        assertEquals( 0.8036, coordinates[3], DELTA );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void projectAllFailsOnArraysOfDifferentLengths() {
+        new CH1903Projection().projectAll(new double[4], new double[2]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void inverseAllFailsOnOddArrays() {
+        new CH1903Projection().inverseAll(new double[3], new double[3]);
+    }
 }
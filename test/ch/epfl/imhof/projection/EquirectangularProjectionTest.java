@@ -1,5 +1,6 @@
 package ch.epfl.imhof.projection;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 import org.junit.Test;
@@ -33,4 +34,22 @@ public class EquirectangularProjectionTest {
             }
         }
     }
+
+    @Test
+    public void projectAllAndInverseAllCopyTheCoordinates() {
+        Projection p = new EquirectangularProjection();
+        double[] lonLat = { -3.0, 1.5, 0.1, -0.2, 2.5, 0.7 };
+        double[] xy = new double[lonLat.length];
+        p.projectAll(lonLat, xy);
+        assertArrayEquals(lonLat, xy, 0);
+        double[] back = new double[lonLat.length];
+        p.inverseAll(xy, back);
+        assertArrayEquals(lonLat, back, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void projectAllFailsOnArraysOfDifferentLengths() {
+        new EquirectangularProjection().projectAll(new double[4],
+                new double[6]);
+    }
 }
@@ -0,0 +1,129 @@
+package ch.epfl.imhof.projection;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.function.Function;
+
+import org.junit.Test;
+
+import ch.epfl.imhof.PointGeo;
+import ch.epfl.imhof.geometry.Point;
+
+public class InterpolatedInverseTest {
+    private static final Projection CH1903 = new CH1903Projection();
+    private static final int SIZE = 300;
+
+    // The pixels of an image of SIZE x SIZE covering Lausanne, about 35
+    // metres wide
+    private static Function<Point, Point> pixelToProjected() {
+        Point bl = CH1903.project(new PointGeo(Math.toRadians(6.55), Math
+                .toRadians(46.48)));
+        Point tr = CH1903.project(new PointGeo(Math.toRadians(6.62), Math
+                .toRadians(46.53)));
+        return Point.alignedCoordinateChange(new Point(0, SIZE), bl,
+                new Point(SIZE, 0), tr);
+    }
+
+    private static double[] exactRow(Function<Point, Point> pixelToProjected,
+            int y) {
+        double[] lonLat = new double[2 * SIZE];
+        for (int x = 0; x < SIZE; ++x) {
+            PointGeo p = CH1903.inverse(pixelToProjected
+                    .apply(new Point(x, y)));
+            lonLat[2 * x] = p.longitude();
+            lonLat[2 * x + 1] = p.latitude();
+        }
+        return lonLat;
+    }
+
+    @Test
+    public void stepOneGivesTheExactInverse() {
+        Function<Point, Point> f = pixelToProjected();
+        InterpolatedInverse inverse = new InterpolatedInverse(CH1903, f, SIZE,
+                1);
+        double[] lonLat = new double[2 * SIZE];
+        for (int y = 0; y < SIZE; y += 17) {
+            inverse.inverseRow(y, lonLat);
+            assertArrayEquals(exactRow(f, y), lonLat, 0);
+        }
+    }
+
+    @Test
+    public void interpolatedPixelsAreWithinTheBound() {
+        Function<Point, Point> f = pixelToProjected();
+        for (double bound : new double[] { 1e-8, 1e-9, 1e-10 }) {
+            int step = InterpolatedInverse.step(CH1903, f, SIZE, SIZE, bound);
+            InterpolatedInverse inverse = new InterpolatedInverse(CH1903, f,
+                    SIZE, step);
+            double[] lonLat = new double[2 * SIZE];
+            for (int y = 0; y < SIZE; ++y) {
+                inverse.inverseRow(y, lonLat);
+                assertArrayEquals(exactRow(f, y), lonLat, 2 * bound);
+            }
+        }
+    }
+
+    @Test
+    public void tighterBoundsGiveSmallerSteps() {
+        Function<Point, Point> f = pixelToProjected();
+        assertEquals(InterpolatedInverse.MAX_STEP, InterpolatedInverse.step(
+                CH1903, f, SIZE, SIZE, 1e-6));
+        int previous = InterpolatedInverse.MAX_STEP;
+        for (double bound = 1e-8; bound > 1e-14; bound /= 10) {
+            int step = InterpolatedInverse.step(CH1903, f, SIZE, SIZE, bound);
+            assertTrue(step <= previous);
+            previous = step;
+        }
+        assertEquals(1, InterpolatedInverse.step(CH1903, f, SIZE, SIZE, 0));
+    }
+
+    @Test
+    public void rowsDontDependOnTheRowsComputedBefore() {
+        Function<Point, Point> f = pixelToProjected();
+        InterpolatedInverse sequential = new InterpolatedInverse(CH1903, f,
+                SIZE, 16);
+        double[][] rows = new double[SIZE][2 * SIZE];
+        for (int y = 0; y < SIZE; ++y)
+            sequential.inverseRow(y, rows[y]);
+
+        InterpolatedInverse shuffled = new InterpolatedInverse(CH1903, f,
+                SIZE, 16);
+        double[] lonLat = new double[2 * SIZE];
+        for (int y : new int[] { 299, 40, 41, 3, 16, 15, 200, 0, 64 }) {
+            shuffled.inverseRow(y, lonLat);
+            assertArrayEquals(rows[y], lonLat, 0);
+        }
+    }
+
+    @Test
+    public void gridPixelsAreExact() {
+        Function<Point, Point> f = pixelToProjected();
+        InterpolatedInverse inverse = new InterpolatedInverse(CH1903, f, SIZE,
+                8);
+        double[] lonLat = new double[2 * SIZE];
+        inverse.inverseRow(24, lonLat);
+        double[] exact = exactRow(f, 24);
+        for (int x = 0; x < SIZE; x += 8) {
+            assertEquals(exact[2 * x], lonLat[2 * x], 0);
+            assertEquals(exact[2 * x + 1], lonLat[2 * x + 1], 0);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructorFailsOnNonPositiveStep() {
+        new InterpolatedInverse(CH1903, pixelToProjected(), SIZE, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void stepFailsOnNegativeError() {
+        InterpolatedInverse.step(CH1903, pixelToProjected(), SIZE, SIZE, -1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void inverseRowFailsOnTooSmallArrays() {
+        new InterpolatedInverse(CH1903, pixelToProjected(), SIZE, 4)
+                .inverseRow(0, new double[SIZE]);
+    }
+}
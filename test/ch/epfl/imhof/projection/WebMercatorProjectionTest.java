@@ -0,0 +1,67 @@
+package ch.epfl.imhof.projection;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import ch.epfl.imhof.PointGeo;
+import ch.epfl.imhof.geometry.Point;
+
+public class WebMercatorProjectionTest {
+    private static final double DELTA = 0.001;
+
+    @Test
+    public void projectProducesTheRightValues() {
+        Projection p = new WebMercatorProjection();
+        Point origin = p.project(new PointGeo(0, 0));
+        assertEquals(0, origin.x(), DELTA);
+        assertEquals(0, origin.y(), DELTA);
+        // The corner of the tile 0/0/0
+        Point corner = p.project(new PointGeo(Math.PI, Math.toRadians(85.0511287798)));
+        assertEquals(20037508.342789, corner.x(), DELTA);
+        assertEquals(20037508.342789, corner.y(), DELTA);
+        assertEquals(WebMercatorProjection.HALF_WORLD, corner.x(), DELTA);
+        // Musée Olympique à Lausanne ( 6.634088, 46.508732 )
+        Point lausanne = p.project(new PointGeo(Math.toRadians(6.634088), Math.toRadians(46.508732)));
+        assertEquals(738503.298, lausanne.x(), DELTA);
+        assertEquals(5862252.067, lausanne.y(), DELTA);
+    }
+
+    @Test
+    public void inverseIsTheInverseOfProject() {
+        Projection p = new WebMercatorProjection();
+        for (double lon = -3.0; lon <= 3.0; lon += 0.2) {
+            for (double lat = -1.4; lat <= 1.4; lat += 0.1) {
+                PointGeo pt = p.inverse(p.project(new PointGeo(lon, lat)));
+                assertEquals(lon, pt.longitude(), 1e-9);
+                assertEquals(lat, pt.latitude(), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void inverseWrapsAroundTheAntimeridian() {
+        Projection p = new WebMercatorProjection();
+        PointGeo east = p.inverse(new Point(WebMercatorProjection.HALF_WORLD + 1000, 0));
+        assertEquals(-Math.PI + 1000d / 6378137, east.longitude(), 1e-9);
+    }
+
+    @Test
+    public void projectAllAndInverseAllGoThroughProjectAndInverse() {
+        Projection p = new WebMercatorProjection();
+        double[] lonLat = { -3.0, 1.4, 0.1, -0.2, Math.toRadians(6.634088),
+                Math.toRadians(46.508732) };
+        double[] xy = new double[lonLat.length];
+        p.projectAll(lonLat, xy);
+        assertEquals(738503.298, xy[4], DELTA);
+        assertEquals(5862252.067, xy[5], DELTA);
+        p.inverseAll(xy, xy);
+        for (int i = 0; i < lonLat.length; ++i)
+            assertEquals(lonLat[i], xy[i], 1e-9);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void projectAllFailsOnOddArrays() {
+        new WebMercatorProjection().projectAll(new double[5], new double[5]);
+    }
+}